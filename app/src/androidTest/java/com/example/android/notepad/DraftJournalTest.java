@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the draft journal of the note editor. The journals left behind are recovered into
+ * the provider.
+ */
+public class DraftJournalTest extends ProviderTestCase2<NotePadProvider> {
+
+    // For logging benchmark results
+    private static final String TAG = "DraftJournalTest";
+
+    private MockContentResolver mMockResolver;
+
+    public DraftJournalTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Tests the draft journal of the editor: replaying edits onto the saved note, ignoring a
+     * torn record and journals of other versions of the note, replaying from the last save that
+     * was committed, and recovering the notes of journals left behind. Also measures the bytes
+     * written per edit of a large note.
+     */
+    public void testDraftJournal() throws IOException, InterruptedException {
+        File dir = new File(getContext().getCacheDir(), "drafts");
+        File file = new File(dir, "1.journal");
+        file.delete();
+        String base = NotePadProviderTest.makeLogText(5 * 1024 * 1024);
+
+        // Typing, deleting and replacing, replayed onto the base.
+        DraftJournal journal = new DraftJournal(file);
+        assertEquals(base, journal.open(base));
+        StringBuilder expected = new StringBuilder(base);
+        int edits = 0;
+        for (int i = 0; i < 500; i++) {
+            int start = 1000 + i;
+            expected.insert(start, 'x');
+            journal.replace(start, 0, "x");
+            edits++;
+        }
+        expected.replace(10, 20, "\u4e2d\u6587");
+        journal.replace(10, 10, "\u4e2d\u6587");
+        expected.delete(500, 501);
+        journal.replace(500, 1, "");
+        edits += 2;
+        journal.flush();
+        assertTrue(journal.isBasedOn(base));
+        journal.close();
+        DraftJournal.awaitWrites();
+        Log.i(TAG, edits + " edits of a " + base.length() / (1024 * 1024) + "M character note"
+                + " wrote a " + file.length() + " byte journal");
+        assertTrue(file.length() < 1024);
+
+        journal = new DraftJournal(file);
+        assertEquals(expected.toString(), journal.open(base));
+
+        // A note that was saved without the journal isn't touched by it.
+        journal.close();
+        DraftJournal.awaitWrites();
+        assertNull(DraftJournal.recover(file, "Another text"));
+
+        // A record torn by a crash is ignored, with everything after it.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+        String torn = DraftJournal.recover(file, base);
+        assertNotNull(torn);
+        assertFalse(expected.toString().equals(torn));
+
+        // A save that was queued, but maybe not committed: the journal replays from either.
+        file.delete();
+        journal = new DraftJournal(file);
+        journal.open(base);
+        journal.replace(0, 0, "first ");
+        String saved = "first " + base;
+        journal.rebase(saved);
+        journal.replace(0, 0, "then ");
+        journal.flush();
+        assertEquals("then " + saved, DraftJournal.recover(file, base));
+        assertEquals("then " + saved, DraftJournal.recover(file, saved));
+
+        // Once the save is committed, the journal starts from it.
+        long length = file.length();
+        journal.onSaved();
+        assertTrue(file.length() < length);
+        assertNull(DraftJournal.recover(file, base));
+        assertEquals("then " + saved, DraftJournal.recover(file, saved));
+        assertTrue(journal.isBasedOn(saved));
+        journal.close();
+        DraftJournal.awaitWrites();
+
+        // The notes of the journals left behind are recovered, and the journals deleted.
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NotePadProviderTest.NoteInfo("Draft", "Saved text").getContentValues());
+        File noteFile = new File(dir, ContentUris.parseId(uri) + ".journal");
+        journal = new DraftJournal(noteFile);
+        journal.open("Saved text");
+        journal.replace(10, 0, " and more");
+        journal.close();
+        DraftJournal.awaitWrites();
+        assertEquals(1, DraftJournal.recoverAll(dir, mMockResolver));
+        assertEquals("Saved text and more", readNote(uri));
+        assertFalse(noteFile.exists());
+        assertFalse(file.exists());
+
+        // A journal opened while the journals are being recovered in the background is opened
+        // on the recovered text.
+        journal = new DraftJournal(noteFile);
+        journal.open("Saved text and more");
+        journal.replace(0, 5, "Typed");
+
+        // The journal is closed in the background, ahead of the recovery.
+        journal.close();
+        DraftJournal.recoverAllLater(dir, mMockResolver);
+        final String[] opened = new String[2];
+        final DraftJournal[] openedJournal = new DraftJournal[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        DraftJournal.openNote(noteFile, mMockResolver, uri, new DraftJournal.OpenListener() {
+            @Override
+            public void onOpened(DraftJournal journal, String base, String text) {
+                openedJournal[0] = journal;
+                opened[0] = base;
+                opened[1] = text;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("Typed text and more", opened[0]);
+        assertEquals("Typed text and more", opened[1]);
+        assertFalse(openedJournal[0].hasEdits());
+        openedJournal[0].replace(0, 0, "x");
+        assertTrue(openedJournal[0].hasEdits());
+        openedJournal[0].delete();
+        DraftJournal.awaitWrites();
+        assertFalse(noteFile.exists());
+    }
+
+    // Returns the text of the note at the given URI.
+    private String readNote(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String note = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        cursor.close();
+        return note;
+    }
+}
@@ -16,15 +16,26 @@
 
 package com.example.android.notepad;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+import android.util.Log;
+import android.view.View;
 import com.example.android.notepad.NotesList;
 
 /**
  * Make sure that the main launcher activity opens up properly, which will be
- * verified by {@link #testActivityTestCaseSetUpProperly}.
+ * verified by {@link #testActivityTestCaseSetUpProperly}. Also tests the views of the
+ * activities, on the UI thread.
  */
 public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesList> {
 
+    // For logging benchmark results
+    private static final String TAG = "NotePadActivityTest";
+
+    private NotesList mActivity;
+
     /**
      * Creates an {@link ActivityInstrumentationTestCase2} for the {@link NotesList} activity.
      */
@@ -32,10 +43,82 @@ public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesL
         super(NotesList.class);
     }
 
+    /*
+     * Launches the activity under test. It's launched here, on the instrumentation thread,
+     * since the tests that run on the UI thread can't launch it.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mActivity = getActivity();
+    }
+
     /**
      * Verifies that the activity under test can be launched.
      */
     public void testActivityTestCaseSetUpProperly() {
         assertNotNull("activity should be launched successfully", getActivity());
     }
+
+    /*
+     * Measures the frames of the note editor's ruled lines in a 50,000 line note, at scroll
+     * positions all through it, and tests that only the lines on screen are drawn. The view is
+     * built and drawn on the UI thread, as the editor's is.
+     */
+    @UiThreadTest
+    public void testRuledLinesFrameTime() {
+        final int width = 720;
+        final int height = 1280;
+        final int lines = 50000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append("Line ").append(i);
+        }
+        NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(mActivity, null);
+        view.setText(text);
+        view.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, width, height);
+        assertEquals(lines, view.getLineCount());
+        int onScreen = height / view.getLineHeight() + 2;
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        int frames = 100;
+        int contentHeight = view.getLineCount() * view.getLineHeight();
+        long rulesNanos = 0;
+        long worstRulesNanos = 0;
+        long frameNanos = 0;
+        long worstFrameNanos = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            // Scrolls the canvas the way the editor's parent does for a scrolled view.
+            int y = (int) ((long) (contentHeight - height) * frame / (frames - 1));
+            canvas.save();
+            canvas.translate(0, -y);
+            canvas.clipRect(0, y, width, y + height);
+
+            long start = System.nanoTime();
+            int drawn = view.drawRuledLines(canvas);
+            long nanos = System.nanoTime() - start;
+            rulesNanos += nanos;
+            worstRulesNanos = Math.max(worstRulesNanos, nanos);
+            assertTrue(drawn > 0);
+            assertTrue("Drew " + drawn + " lines at " + y, drawn <= onScreen);
+
+            start = System.nanoTime();
+            view.draw(canvas);
+            nanos = System.nanoTime() - start;
+            frameNanos += nanos;
+            worstFrameNanos = Math.max(worstFrameNanos, nanos);
+            canvas.restore();
+        }
+        bitmap.recycle();
+        Log.i(TAG, "Ruled lines of a " + lines + " line note: " + rulesNanos / frames / 1000
+                + "us on average, " + worstRulesNanos / 1000 + "us at worst; whole frames "
+                + frameNanos / frames / 1000 + "us on average, " + worstFrameNanos / 1000
+                + "us at worst");
+    }
 }
@@ -16,23 +16,55 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.provider.LiveFolders;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
-
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /*
  */
@@ -44,6 +76,9 @@ import java.util.GregorianCalendar;
  */
 public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
+    // For logging benchmark results
+    private static final String TAG = "NotePadProviderTest";
+
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
@@ -119,6 +154,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * a database object from the helper.
          */
         mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        // Sends every change notification immediately, so that the tests don't depend on timing.
+        getProvider().getChangeNotifierForTest().setWindowMillis(0);
     }
 
     /*
@@ -186,9 +224,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the two export types, JSON Lines first.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_JSON_LINES_TYPE, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_ZIP_TYPE, exportTypes[1]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -219,10 +261,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes URI with a filter that none of the export types match. The result
+         * should be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT);
         assertNull(mimeType);
 
     }
@@ -612,6 +654,676 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
       assertEquals(inputNoteId, cursor.getInt(0));
     }
 
+    /*
+     * Tests full-text searches through the search URI. The FTS table is kept in sync by triggers,
+     * so rows written straight into the database by insertData() must be searchable.
+     */
+    public void testSearchOnSearchUri() {
+        // Inserts the test data into the provider's underlying data source.
+        insertData();
+
+        // Asserts that every note was mirrored into the full-text index.
+        Cursor ftsCursor = mDb.rawQuery("SELECT docid FROM notes_fts", null);
+        assertEquals(TEST_NOTES.length, ftsCursor.getCount());
+        ftsCursor.close();
+
+        // A word that occurs in every note body should match every note.
+        Cursor cursor = mMockResolver.query(searchUri("this"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // A title should match only its own note, and return the regular notes columns.
+        cursor = mMockResolver.query(searchUri("Note5"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[5].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // A partially typed word matches as a prefix, and FTS syntax in the input is ignored.
+        cursor = mMockResolver.query(searchUri("\"Not"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Updates and deletes are reflected in the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "rewritten body");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note2" });
+
+        cursor = mMockResolver.query(searchUri("rewritten"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(searchUri("this"), null, null, null, null);
+        assertEquals(TEST_NOTES.length - 2, cursor.getCount());
+        cursor.close();
+
+        // The search URI has the same MIME type as the notes URI.
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mMockResolver.getType(searchUri("this")));
+    }
+
+    /*
+     * Tests searches ranked by relevance: a hit in the title beats hits in the body, more hits
+     * beat fewer, the snippets mark the matches, and only the best results are returned.
+     */
+    public void testRankedSearch() {
+        long title = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries", "eggs and milk").getContentValues()));
+        long twice = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Saturday", "groceries, then more groceries").getContentValues()));
+        long once = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Log", makeLogText(4000) + " groceries " + makeLogText(4000))
+                        .getContentValues()));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Unrelated", "nothing to see").getContentValues());
+
+        Cursor cursor = mMockResolver.query(rankedSearchUri("grocer", 0), null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        long[] order = new long[] { title, twice, once };
+        double previous = Double.MAX_VALUE;
+        while (cursor.moveToNext()) {
+            assertEquals(order[cursor.getPosition()],
+                    cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+            double score = cursor.getDouble(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SCORE));
+            assertTrue(score > 0 && score <= previous);
+            previous = score;
+
+            // Every snippet marks the word that matched.
+            String snippet = cursor.getString(
+                    cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET));
+            int[] offsets = SearchRanker.parseOffsets(cursor.getString(
+                    cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS)));
+            assertTrue(offsets.length >= 2);
+            for (int i = 0; i < offsets.length; i += 2) {
+                assertTrue(snippet.substring(offsets[i], offsets[i + 1]).toLowerCase()
+                        .startsWith("grocer"));
+            }
+        }
+        cursor.close();
+
+        // The long note's snippet is an excerpt around the match.
+        cursor = mMockResolver.query(rankedSearchUri("groceries", 0),
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET }, NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(once) }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).length() < 200);
+        assertTrue(cursor.getString(0).contains("\u2026"));
+        cursor.close();
+
+        // A limit keeps the best results.
+        cursor = mMockResolver.query(rankedSearchUri("grocer", 2),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(title, cursor.getLong(0));
+        cursor.close();
+
+        // An offset skips the best results, for reading the next page.
+        cursor = mMockResolver.query(rankedSearchUri("grocer", 2).buildUpon()
+                .appendQueryParameter(NotePad.Notes.OFFSET_QUERY_PARAMETER, "2").build(),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(once, cursor.getLong(0));
+        cursor.close();
+        cursor = mMockResolver.query(rankedSearchUri("grocer", 2).buildUpon()
+                .appendQueryParameter(NotePad.Notes.OFFSET_QUERY_PARAMETER, "3").build(),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Ranked results have their own order, so they can't be sorted or paged by keyset.
+        try {
+            mMockResolver.query(rankedSearchUri("grocer", 0), null, null, null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mMockResolver.query(rankedSearchUri("grocer", 0).buildUpon()
+                    .appendQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER, "1")
+                    .appendQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER, "1")
+                    .build(), null, null, null, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+     * Measures a ranked search for the 20 best of 5,000 matching notes, against reading every
+     * match in date order, as the unranked search does.
+     */
+    public void testRankedSearchBenchmark() {
+        ContentValues[] notes = new ContentValues[5000];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new NoteInfo("Note " + i, makeLogText(1000)).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        String[] projection = new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW };
+
+        long start = System.nanoTime();
+        Cursor cursor = mMockResolver.query(searchUri("saved note"), projection, null, null,
+                null);
+        int allMatches = cursor.getCount();
+        cursor.close();
+        long allMillis = (System.nanoTime() - start) / 1000000;
+
+        String[] rankedProjection = new String[] { NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS };
+        start = System.nanoTime();
+        cursor = mMockResolver.query(rankedSearchUri("saved note", 20), rankedProjection, null,
+                null, null);
+        int ranked = cursor.getCount();
+        cursor.close();
+        long rankedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(notes.length, allMatches);
+        assertEquals(20, ranked);
+        Log.i(TAG, "Ranked search for the best 20 of " + allMatches + " matches, with snippets: "
+                + rankedMillis + "ms; every match in date order: " + allMillis + "ms");
+    }
+
+    // Builds a ranked search URI for the given query text, with a limit unless it's 0.
+    private static Uri rankedSearchUri(String query, int limit) {
+        Uri.Builder builder = searchUri(query).buildUpon()
+                .appendQueryParameter(NotePad.Notes.RANK_QUERY_PARAMETER, "true");
+        if (limit > 0) {
+            builder.appendQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER,
+                    Integer.toString(limit));
+        }
+        return builder.build();
+    }
+
+    /*
+     * Tests searching Chinese text, which has no spaces between its words: any run of
+     * characters matches, mixed with English, with full-width letters and in any case, and a
+     * single character too. Changing the title or the note keeps the other one indexed, and
+     * the snippets show the text as it was written, with the matched characters marked.
+     */
+    public void testCjkSearch() {
+        assertEquals("\u001f今天\u001f天天\u001f天气\u001f气\u001f,OK",
+                SearchNormalizer.normalize("今天天气，OK"));
+        assertEquals("\"天气 气很*\"", SearchNormalizer.toMatchQuery("天气很"));
+        assertEquals("\"android 应用*\" \"会议*\"",
+                SearchNormalizer.toMatchQuery("ａｎｄｒｏｉｄ应用 会议"));
+        assertNull(SearchNormalizer.toMatchQuery("，。 "));
+
+        long weather = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("天气预报", "今天天气很好，我们去公园散步。").getContentValues()));
+        long meeting = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Meeting 会议", "下午三点开会，讨论ＡＮＤＲＯＩＤ应用的性能优化。")
+                        .getContentValues()));
+        long english = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries", "eggs and milk").getContentValues()));
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NoteCodec.COMPRESSION_THRESHOLD) {
+            text.append("日志记录了很多内容。");
+        }
+        long log = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("日志", text + "关键词在最后").getContentValues()));
+
+        assertSearchResults("天气", weather);
+        assertSearchResults("气很", weather);
+        assertSearchResults("公园散步", weather);
+        assertSearchResults("天", weather);
+        assertSearchResults("android", meeting);
+        assertSearchResults("ａｎｄｒｏｉｄ应用", meeting);
+        assertSearchResults("会议 性能", meeting);
+        assertSearchResults("MEETING", meeting);
+        assertSearchResults("eggs", english);
+        assertSearchResults("关键词", log);
+        assertSearchResults("下雨");
+
+        // An English title keeps the Chinese note indexed, and so does a Chinese title again.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weather");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                weather), values, null, null);
+        assertSearchResults("weather", weather);
+        assertSearchResults("预报");
+        assertSearchResults("公园", weather);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "晴天");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(weather) });
+        assertSearchResults("晴天", weather);
+        assertSearchResults("公园", weather);
+
+        // A new long note, which is stored compressed, is indexed too.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text + "新的关键词");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(log) });
+        assertSearchResults("新的关键", log);
+        assertSearchResults("在最后");
+
+        // The snippet is the text again, not its bigrams or its shadow, with the match marked.
+        Cursor cursor = mMockResolver.query(rankedSearchUri("公园", 0),
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        String snippet = cursor.getString(0);
+        assertTrue(snippet, snippet.startsWith("今天天气很好，我们去公园散步"));
+        int[] offsets = SearchRanker.parseOffsets(cursor.getString(1));
+        assertEquals(2, offsets.length);
+        assertEquals("公园", snippet.substring(offsets[0], offsets[1]));
+        cursor.close();
+
+        // The full-width letters of a match are kept too.
+        cursor = mMockResolver.query(rankedSearchUri("android", 0),
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        snippet = cursor.getString(0);
+        assertTrue(snippet, snippet.contains("开会，讨论ＡＮＤＲＯＩＤ应用"));
+        offsets = SearchRanker.parseOffsets(cursor.getString(1));
+        assertEquals("ＡＮＤＲＯＩＤ", snippet.substring(offsets[0], offsets[1]));
+        cursor.close();
+    }
+
+    /*
+     * Compares the search of 5,000 Chinese notes with a scan of them with LIKE, which is what
+     * finding a word in the middle of a run of Chinese text took before: the results must be the
+     * same, and the time of each is written to the log.
+     */
+    public void testCjkSearchBenchmark() {
+        String[] words = new String[] { "今天", "天气", "会议", "记录", "性能", "优化", "应用",
+                "公园", "散步", "数据库", "搜索", "笔记", "中文", "测试", "报告", "项目", "进度",
+                "明天", "计划", "时间", "问题", "方法" };
+        Random random = new Random(24);
+        ContentValues[] notes = new ContentValues[5000];
+        String[] texts = new String[notes.length];
+        for (int i = 0; i < notes.length; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 100) {
+                text.append(words[random.nextInt(words.length)]);
+                if (random.nextInt(5) == 0) {
+                    text.append('，');
+                }
+            }
+            texts[i] = text.toString();
+            notes[i] = new NoteInfo("笔记 " + i, texts[i]).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        long searchNanos = 0;
+        long scanNanos = 0;
+        int found = 0;
+        for (int i = 0; i < 50; i++) {
+            // Any two to four characters of a note, within a run.
+            String text = texts[random.nextInt(texts.length)];
+            String query;
+            do {
+                int start = random.nextInt(text.length() - 4);
+                query = text.substring(start, start + 2 + random.nextInt(3));
+            } while (query.indexOf('，') >= 0);
+
+            long start = System.nanoTime();
+            Cursor cursor = mMockResolver.query(searchUri(query),
+                    new String[] { NotePad.Notes._ID }, null, null, null);
+            long[] results = readIds(cursor);
+            searchNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            cursor = mDb.rawQuery("SELECT _id FROM notes WHERE title LIKE ? OR note LIKE ?"
+                    + " ORDER BY modified DESC, _id DESC",
+                    new String[] { "%" + query + "%", "%" + query + "%" });
+            long[] expected = readIds(cursor);
+            scanNanos += System.nanoTime() - start;
+
+            Arrays.sort(results);
+            Arrays.sort(expected);
+            assertTrue(query, Arrays.equals(expected, results));
+            found += results.length;
+        }
+        Log.i(TAG, "Searched 5,000 Chinese notes 50 times for " + found + " results: "
+                + searchNanos / 1000000 + "ms; LIKE scans: " + scanNanos / 1000000 + "ms");
+    }
+
+    /*
+     * Tests the backfill of the version 9 step, which indexes the Chinese text of the notes
+     * that existed before the upgrade as bigrams.
+     */
+    public void testCjkBackfill() {
+        insertData();
+        long weather = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("天气预报", "今天天气很好").getContentValues()));
+
+        // Makes the index look like it did before the upgrade, with the text as it is.
+        mDb.execSQL("UPDATE notes_fts SET title = (SELECT title FROM notes WHERE _id = docid),"
+                + " note = (SELECT note FROM notes WHERE _id = docid)");
+        assertSearchResults("气很");
+        DatabaseMigrations.scheduleBackfill(mDb, 9);
+
+        int chunks = 0;
+        int result;
+        while ((result = NotePadProvider.DatabaseHelper.MIGRATIONS.backfillNextChunk(mDb, 3)) > 0) {
+            chunks++;
+        }
+        assertEquals(0, result);
+        assertEquals((TEST_NOTES.length + 1 + 2) / 3, chunks);
+
+        assertSearchResults("气很", weather);
+        assertSearchResults("预报", weather);
+        Cursor cursor = mMockResolver.query(searchUri("Note1"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the pinyin keys of the titles: they're computed on insert and update, and can't be
+     * written otherwise, a search finds a title by its pinyin or its initials, and the notes can
+     * be listed in pinyin order.
+     */
+    public void testPinyinKeys() {
+        assertEquals("bijiruanjian", PinyinKeys.toPinyin("笔记软件"));
+        assertEquals("bjrj", PinyinKeys.toInitials("笔记软件"));
+        assertEquals("androidbiji", PinyinKeys.toPinyin("Android 笔记"));
+        assertEquals("androidbj", PinyinKeys.toInitials("Android 笔记"));
+        assertEquals("lvse", PinyinKeys.toPinyin("绿色"));
+        assertEquals("groceries", PinyinKeys.toPinyin("Groceries"));
+        assertNull(PinyinKeys.toInitials("Groceries"));
+        assertEquals("xian", PinyinKeys.toPrefix("Xi'an"));
+        assertEquals("bjrj", PinyinKeys.toPrefix("bj rj"));
+        assertNull(PinyinKeys.toPrefix("笔记"));
+        assertEquals("bjrk", PinyinKeys.endOfPrefix("bjrj"));
+
+        String[] titles = new String[] { "中国", "Banana", "先生", "笔记软件", "阿姨", "西安",
+                "北京" };
+        long[] ids = new long[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            ContentValues values = new NoteInfo(titles[i], "").getContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN, "ignored");
+            ids[i] = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        }
+        long china = ids[0], banana = ids[1], mister = ids[2], software = ids[3], aunt = ids[4],
+                xian = ids[5], beijing = ids[6];
+
+        // The list in pinyin order.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+                        NotePad.Notes.COLUMN_NAME_TITLE_INITIALS },
+                null, null, NotePad.Notes.PINYIN_SORT_ORDER);
+        long[] order = new long[] { aunt, banana, beijing, software, xian, mister, china };
+        assertEquals(order.length, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(order[cursor.getPosition()], cursor.getLong(0));
+        }
+        assertTrue(cursor.moveToPosition(3));
+        assertEquals("bijiruanjian", cursor.getString(1));
+        assertEquals("bjrj", cursor.getString(2));
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals("banana", cursor.getString(1));
+        assertTrue(cursor.isNull(2));
+        cursor.close();
+
+        assertSearchResults("bjrj", software);
+        assertSearchResults("biji", software);
+        assertSearchResults("BJ", software, beijing);
+        assertSearchResults("xian", xian, mister);
+        assertSearchResults("xs", mister);
+        assertSearchResults("b", software, beijing, banana);
+        assertSearchResults("banana", banana);
+        assertSearchResults("zgx");
+
+        // A ranked search scores a title found by its pinyin.
+        cursor = mMockResolver.query(rankedSearchUri("bjrj", 0), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(software, cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+        assertEquals(SearchRanker.PINYIN_SCORE,
+                cursor.getDouble(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SCORE)), 1e-9);
+        cursor.close();
+
+        // The keys follow the title, and can't be written on their own.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "上海");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                beijing), values, null, null);
+        assertSearchResults("bj", software);
+        assertSearchResults("shanghai", beijing);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS, "bj");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "new text");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        assertSearchResults("bj", software);
+    }
+
+    /*
+     * Compares the first page of 5,000 notes in pinyin order, read through the pinyin index,
+     * with reading every title and sorting them by pinyin, which is what listing the notes in
+     * pinyin order took before. The times are written to the log.
+     */
+    public void testPinyinSortBenchmark() {
+        Random random = new Random(25);
+        ContentValues[] notes = new ContentValues[5000];
+        for (int i = 0; i < notes.length; i++) {
+            StringBuilder title = new StringBuilder();
+            for (int j = 0; j < 4; j++) {
+                // A random level 1 character of GB2312.
+                byte[] code = new byte[] { (byte) (0xb0 + random.nextInt(0x27)),
+                        (byte) (0xa1 + random.nextInt(0x5e)) };
+                title.append(new String(code, Charset.forName("GB2312")));
+            }
+            notes[i] = new NoteInfo(title.toString(), "").getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        String[] projection = new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+
+        long start = System.nanoTime();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER, "50").build(),
+                projection, null, null, NotePad.Notes.PINYIN_SORT_ORDER);
+        ArrayList<String> page = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            page.add(cursor.getString(1));
+        }
+        cursor.close();
+        long indexMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null, null);
+        String[][] keys = new String[cursor.getCount()][];
+        while (cursor.moveToNext()) {
+            String title = cursor.getString(1);
+            keys[cursor.getPosition()] = new String[] { PinyinKeys.toPinyin(title), title };
+        }
+        cursor.close();
+        Arrays.sort(keys, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        long sortMicros = (System.nanoTime() - start) / 1000;
+
+        assertEquals(50, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals(keys[i][0], PinyinKeys.toPinyin(page.get(i)));
+        }
+        Log.i(TAG, "First 50 of " + keys.length + " notes in pinyin order, from the index: "
+                + indexMicros + "us; sorted after reading every title: " + sortMicros + "us");
+    }
+
+    /*
+     * Tests the backfill of the version 10 step, which computes the pinyin keys of the titles
+     * of the notes that existed before the upgrade.
+     */
+    public void testPinyinBackfill() {
+        insertData();
+        long software = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("笔记软件", "").getContentValues()));
+
+        // Makes the notes look like they did before the upgrade.
+        mDb.execSQL("UPDATE notes SET title_pinyin = NULL, title_initials = NULL");
+        assertSearchResults("bjrj");
+        DatabaseMigrations.scheduleBackfill(mDb, 10);
+
+        int chunks = 0;
+        int result;
+        while ((result = NotePadProvider.DatabaseHelper.MIGRATIONS.backfillNextChunk(mDb, 3)) > 0) {
+            chunks++;
+        }
+        assertEquals(0, result);
+        assertEquals((TEST_NOTES.length + 1 + 2) / 3, chunks);
+
+        assertSearchResults("bjrj", software);
+        assertEquals("note1", DatabaseUtils.stringForQuery(mDb,
+                "SELECT title_pinyin FROM notes WHERE title = 'Note1'", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT count(*) FROM notes WHERE title_pinyin IS NULL", null));
+    }
+
+    /*
+     * Tests the backfill of the version 11 step, which stores the size of the text of the notes
+     * that existed before the upgrade, from the header of a compressed note.
+     */
+    public void testNoteSizeBackfill() {
+        insertData();
+        String large = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 4);
+        long largeId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", large).getContentValues()));
+        long emptyId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Empty", "\u4e2d").getContentValues()));
+        mDb.execSQL("UPDATE notes SET note = NULL WHERE _id = " + emptyId);
+
+        // Makes the notes look like they did before the upgrade.
+        mDb.execSQL("UPDATE notes SET note_size = NULL");
+        DatabaseMigrations.scheduleBackfill(mDb, 11);
+
+        int chunks = 0;
+        int result;
+        while ((result = NotePadProvider.DatabaseHelper.MIGRATIONS.backfillNextChunk(mDb, 3)) > 0) {
+            chunks++;
+        }
+        assertEquals(0, result);
+        assertEquals((TEST_NOTES.length + 2 + 2) / 3, chunks);
+
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb,
+                "SELECT typeof(note) FROM notes WHERE _id = " + largeId, null));
+        assertEquals(large.length(), DatabaseUtils.longForQuery(mDb,
+                "SELECT note_size FROM notes WHERE _id = " + largeId, null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT note_size FROM notes WHERE _id = " + emptyId, null));
+        assertEquals(TEST_NOTES[0].note.length(), DatabaseUtils.longForQuery(mDb,
+                "SELECT note_size FROM notes WHERE title = 'Note0'", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT count(*) FROM notes WHERE note_size IS NULL", null));
+    }
+
+    // Checks that a search finds exactly the given notes.
+    private void assertSearchResults(String query, long... ids) {
+        Cursor cursor = mMockResolver.query(searchUri(query), new String[] { NotePad.Notes._ID },
+                null, null, null);
+        long[] results = readIds(cursor);
+        Arrays.sort(results);
+        Arrays.sort(ids);
+        assertTrue(query + ": " + Arrays.toString(results), Arrays.equals(ids, results));
+    }
+
+    // Reads the IDs in the first column of a cursor, and closes it.
+    private static long[] readIds(Cursor cursor) {
+        long[] ids = new long[cursor.getCount()];
+        try {
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    // Builds a search URI for the given query text.
+    static Uri searchUri(String query) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                .build();
+    }
+
+    /*
+     * Tests that the instant search builds its index from the provider in the background, that
+     * it finds only the notes that contain the query, with the case of any letter and the white
+     * space folded, and that its selection reads them.
+     */
+    public void testInstantSearch() throws Exception {
+        ContentValues[] notes = new ContentValues[300];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new NoteInfo(i % 50 == 0 ? "Ärger  im Büro " + i : "Note " + i,
+                    i % 3 == 0 ? "Groceries: milk, eggs" : makeLogText(200)).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        final InstantSearch search = new InstantSearch(mMockResolver, handler);
+        final long[][] found = new long[3][];
+        long deadline = System.currentTimeMillis() + 30000;
+        while (found[0] == null && System.currentTimeMillis() < deadline) {
+            final CountDownLatch searched = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    found[0] = search.search("MILK, E", NotesList.INSTANT_RESULT_LIMIT);
+                    found[1] = search.search("ärger im", NotesList.INSTANT_RESULT_LIMIT);
+                    found[2] = search.search("eggs milk", NotesList.INSTANT_RESULT_LIMIT);
+                    searched.countDown();
+                }
+            });
+            assertTrue(searched.await(5, TimeUnit.SECONDS));
+            Thread.sleep(10);
+        }
+        final CountDownLatch closed = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                search.close();
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        thread.quit();
+        assertNotNull(found[0]);
+        assertEquals(notes.length / 3, found[0].length);
+
+        // SQLite's LIKE wouldn't match these, since it folds only the case of ASCII letters.
+        assertEquals(notes.length / 50, found[1].length);
+
+        // The notes have all of the query's trigrams, but not the query.
+        assertEquals(0, found[2].length);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                InstantSearch.makeSelection(found[1]), null, NotePad.Notes.PAGE_SORT_ORDER);
+        assertEquals(notes.length / 50, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getString(0).startsWith("Ärger  im Büro "));
+        }
+        cursor.close();
+    }
+
+    // Returns random lower case words, about the given number of characters long.
+    static String makeWords(Random random, int length) {
+        StringBuilder words = new StringBuilder(length + 10);
+        while (words.length() < length) {
+            if (words.length() > 0) {
+                words.append(' ');
+            }
+            int wordLength = 2 + random.nextInt(8);
+            for (int i = 0; i < wordLength; i++) {
+                words.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return words.toString();
+    }
+
     /*
      *  Tests inserts into the data model.
      */
@@ -685,6 +1397,119 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests bulk inserts. Every row should get the same defaults as a single insert.
+     */
+    public void testBulkInsert() {
+        // Builds one note with all of its values, and one with no values at all.
+        NoteInfo note = new NoteInfo("Note40", "Test bulk inserting a note");
+        note.setCreationDate(START_DATE);
+        note.setModificationDate(START_DATE + ONE_WEEK_MILLIS);
+        ContentValues[] values = { note.getContentValues(), new ContentValues() };
+
+        // Asserts that both rows were inserted.
+        assertEquals(2, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+
+        // Sorts by creation date, so the note with explicit values comes first.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE + " ASC");
+        assertEquals(2, cursor.getCount());
+
+        assertTrue(cursor.moveToFirst());
+        assertEquals(note.title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals(note.modDate,
+                cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
+
+        // The empty row gets a default title, empty note text and both dates.
+        assertTrue(cursor.moveToNext());
+        assertNotNull(cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals("", cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+        assertTrue(cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) > 0);
+        assertTrue(
+                cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) > 0);
+        cursor.close();
+    }
+
+    /*
+     * Tests that a batch of operations is applied as a single transaction: when one operation
+     * fails, none of the earlier operations in the batch take effect.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Note50")
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" })
+                .build());
+
+        // Applies the batch, and asserts that both operations took effect.
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(TEST_NOTES.length, countNotes());
+
+        // Adds an insert that conflicts with an existing _ID at the end of the batch.
+        ContentValues duplicate = TEST_NOTES[1].getContentValues();
+        duplicate.put(NotePad.Notes._ID, ContentUris.parseId(results[0].uri));
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(duplicate)
+                .build());
+
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected the batch to fail on the duplicate _ID.");
+        } catch (Exception e) {
+            // continue
+        }
+
+        // Asserts that the first two operations were rolled back with the failed one.
+        assertEquals(TEST_NOTES.length, countNotes());
+    }
+
+    /*
+     * Benchmarks bulkInsert against single inserts at 1k, 10k and 100k rows. The results are
+     * written to the log.
+     */
+    public void testBulkInsertThroughput() {
+        for (int rows : new int[] { 1000, 10000, 100000 }) {
+            ContentValues[] values = new ContentValues[rows];
+            for (int i = 0; i < rows; i++) {
+                values[i] = new NoteInfo("Bulk" + i, "Bulk inserted note number " + i)
+                        .getContentValues();
+            }
+
+            long start = System.nanoTime();
+            assertEquals(rows, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+            long bulkMillis = (System.nanoTime() - start) / 1000000;
+            assertEquals(rows, countNotes());
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+
+            Log.i(TAG, "bulkInsert of " + rows + " rows: " + bulkMillis + "ms, "
+                    + (rows * 1000L / Math.max(1, bulkMillis)) + " rows/s");
+        }
+
+        // One separate insert (and transaction) per row, for comparison.
+        int rows = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Single" + i, "Inserted note number " + i).getContentValues());
+        }
+        long singleMillis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "insert of " + rows + " rows one at a time: " + singleMillis + "ms, "
+                + (rows * 1000L / Math.max(1, singleMillis)) + " rows/s");
+    }
+
+    // Returns the number of rows in the notes table.
+    private long countNotes() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME);
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -790,8 +1615,1830 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that long notes are stored compressed, and that they read, search and update as
+     * plain text.
+     */
+    public void testCompressedNotes() throws IOException {
+        String longNote = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 4) + " needle";
+
+        // Inserts a short note and a long one.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Short");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A short note");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Log");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Only the long note is stored as a BLOB, and it's much smaller than the text.
+        assertEquals("text", DatabaseUtils.stringForQuery(mDb,
+                "SELECT typeof(note) FROM notes WHERE title = 'Short'", null));
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb,
+                "SELECT typeof(note) FROM notes WHERE title = 'Log'", null));
+        assertTrue(DatabaseUtils.longForQuery(mDb,
+                "SELECT length(note) FROM notes WHERE title = 'Log'", null) < longNote.length() / 4);
+
+        // Reads the long note back as a string.
+        Cursor cursor = mMockResolver.query(longUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        int noteIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(noteIndex));
+        assertEquals(longNote, cursor.getString(noteIndex));
+        cursor.close();
+
+        // The text of the long note is searchable.
+        cursor = mMockResolver.query(searchUri("needle"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Streams the long note as plain text.
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                longUri, "text/plain", null);
+        BufferedReader reader = new BufferedReader(new FileReader(afd.getFileDescriptor()));
+        assertEquals("Log", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals(longNote, reader.readLine());
+        reader.close();
+        afd.close();
+
+        // Renaming the note keeps its text in the index.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed log");
+        assertEquals(1, mMockResolver.update(longUri, values, null, null));
+        cursor = mMockResolver.query(searchUri("needle"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Updates both notes through the notes URI, with a new long text.
+        String newNote = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 2) + " haystack";
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, newNote);
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        cursor = mMockResolver.query(searchUri("haystack"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("needle"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Shortens the note again, which stores it as text.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(longUri, values, null, null));
+        assertEquals("text", DatabaseUtils.stringForQuery(mDb,
+                "SELECT typeof(note) FROM notes WHERE _id = " + ContentUris.parseId(longUri), null));
+    }
+
+    /*
+     * Tests that text which doesn't compress is stored as it is, and that an unknown codec tag
+     * is rejected.
+     */
+    public void testNoteCodec() {
+        // Short text isn't touched.
+        assertEquals("short", NoteCodec.encode("short"));
+
+        // Random text doesn't compress well enough, so it's stored as text.
+        StringBuilder random = new StringBuilder();
+        Random generator = new Random(0);
+        while (random.length() < NoteCodec.COMPRESSION_THRESHOLD) {
+            random.append((char) (0x4e00 + generator.nextInt(0x5000)));
+        }
+        assertTrue(NoteCodec.encode(random.toString()) instanceof String);
+
+        // Non-ASCII text survives the round trip.
+        String text = makeLogText(NoteCodec.COMPRESSION_THRESHOLD) + " 笔记 ✓";
+        assertEquals(text, NoteCodec.decode((byte[]) NoteCodec.encode(text)));
+
+        try {
+            NoteCodec.decode(new byte[] { 42, 0, 0, 0, 0 });
+            fail("Expected an SQLException");
+        } catch (SQLException expected) {
+        }
+
+        // A header that claims more text than the stream inflates to is rejected, rather than
+        // waiting forever for the rest.
+        byte[] encoded = (byte[]) NoteCodec.encode(text);
+        ByteBuffer header = ByteBuffer.wrap(encoded);
+        header.putInt(1, header.getInt(1) + 1);
+        try {
+            NoteCodec.decode(encoded);
+            fail("Expected an SQLException");
+        } catch (SQLException expected) {
+        }
+    }
+
+    /*
+     * Benchmarks storing and reading a 1MB log-like note, compressed and as plain text. The
+     * compression ratio and the latencies are written to the log.
+     */
+    public void testCompressionBenchmark() {
+        final int rounds = 10;
+        String note = makeLogText(1024 * 1024);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long storedBytes = DatabaseUtils.longForQuery(mDb,
+                "SELECT length(note) FROM notes WHERE _id = " + ContentUris.parseId(uri), null);
+
+        // Writes and reads the note through the provider, which compresses it.
+        long writeNanos = 0;
+        long readNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            mMockResolver.update(uri, values, null, null);
+            writeNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+            cursor.moveToFirst();
+            cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+            cursor.close();
+            readNanos += System.nanoTime() - start;
+        }
+
+        // Writes and reads the same text uncompressed, straight through the database.
+        long plainWriteNanos = 0;
+        long plainReadNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            mDb.execSQL("UPDATE notes SET note = ? WHERE _id = " + ContentUris.parseId(uri),
+                    new Object[] { note });
+            plainWriteNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Cursor cursor = mDb.rawQuery(
+                    "SELECT note FROM notes WHERE _id = " + ContentUris.parseId(uri), null);
+            cursor.moveToFirst();
+            cursor.getString(0);
+            cursor.close();
+            plainReadNanos += System.nanoTime() - start;
+        }
+
+        Log.i(TAG, "1MB note compressed to " + storedBytes + " bytes ("
+                + (storedBytes * 100 / note.length()) + "%). Write: "
+                + writeNanos / rounds / 1000 + "us compressed, "
+                + plainWriteNanos / rounds / 1000 + "us plain. Read: "
+                + readNanos / rounds / 1000 + "us compressed, "
+                + plainReadNanos / rounds / 1000 + "us plain");
+    }
+
+    /*
+     * Tests the text/plain stream of notes that are several MB long, stored compressed and, as
+     * rows written before compression existed, stored as TEXT.
+     */
+    public void testStreamHugeNotes() throws IOException {
+        String hugeNote = makeLogText(8 * 1024 * 1024);
+        ContentValues values = new NoteInfo("Huge", hugeNote).getContentValues();
+        Uri compressedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb, "SELECT typeof(note) FROM notes"
+                + " WHERE _id = " + ContentUris.parseId(compressedUri), null));
+
+        String plainNote = makeLogText(2 * 1024 * 1024) + " \u4e2d\u6587";
+        Uri plainUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Plain", "").getContentValues());
+        mDb.execSQL("UPDATE notes SET note = ? WHERE _id = " + ContentUris.parseId(plainUri),
+                new Object[] { plainNote });
+
+        long start = System.nanoTime();
+        assertEquals(hugeNote, readNoteStream(compressedUri, "Huge"));
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertEquals(plainNote, readNoteStream(plainUri, "Plain"));
+
+        Log.i(TAG, "Streamed an " + hugeNote.length() / (1024 * 1024) + "M character note in "
+                + millis + "ms");
+    }
+
+    /*
+     * Tests that streamed decoding rejects values that NoteCodec didn't write.
+     */
+    public void testStreamDecodeErrors() throws IOException {
+        byte[] encoded = (byte[]) NoteCodec.encode(makeLogText(NoteCodec.COMPRESSION_THRESHOLD));
+        byte[] buffer = new byte[1024];
+
+        // A complete value decodes to the UTF-8 text.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NoteCodec.decode(new ByteArrayInputStream(encoded), out, buffer);
+        assertEquals(NoteCodec.decode(encoded), out.toString("UTF-8"));
+
+        byte[][] invalid = new byte[][] {
+                new byte[0],
+                new byte[] { 7, 1, 2, 3 },
+                Arrays.copyOf(encoded, 3),
+                Arrays.copyOf(encoded, encoded.length / 2),
+        };
+        for (byte[] value : invalid) {
+            try {
+                NoteCodec.decode(new ByteArrayInputStream(value), new ByteArrayOutputStream(),
+                        buffer);
+                fail("Expected an SQLException");
+            } catch (SQLException expected) {
+            }
+        }
+    }
+
+    /*
+     * Tests writing the text of a note through the pipe returned by openFile(), with a note too
+     * large for ContentValues.
+     */
+    public void testWriteNoteThroughPipe() throws IOException, InterruptedException {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Piped", "Old text").getContentValues());
+        String note = makeLogText(4 * 1024 * 1024) + " \u4e2d\u6587";
+
+        byte[] bytes = note.getBytes("UTF-8");
+        ParcelFileDescriptor pfd = mMockResolver.openFileDescriptor(uri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.LENGTH_QUERY_PARAMETER,
+                        Integer.toString(bytes.length)).build(), "w");
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+        for (int offset = 0; offset < bytes.length; offset += 10000) {
+            out.write(bytes, offset, Math.min(10000, bytes.length - offset));
+        }
+        out.close();
+
+        // The provider stores the note once it has read all of it.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!note.equals(readNote(uri))) {
+            assertTrue("The note wasn't written in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb, "SELECT typeof(note) FROM notes"
+                + " WHERE _id = " + ContentUris.parseId(uri), null));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT modified FROM notes WHERE _id = "
+                + ContentUris.parseId(uri), null) > 0);
+
+        // Only existing notes can be written, and only through a note ID URI in a write mode.
+        try {
+            mMockResolver.openFileDescriptor(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000), "w");
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+        try {
+            mMockResolver.openFileDescriptor(uri, "r");
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+        try {
+            mMockResolver.openFileDescriptor(NotePad.Notes.CONTENT_URI, "w");
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+        try {
+            mMockResolver.openFileDescriptor(uri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.LENGTH_QUERY_PARAMETER, "-1").build(),
+                    "w");
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    /*
+     * Tests that text written through the pipe is only stored if the writer finished: all of
+     * the bytes it announced arrived, and a reliable pipe doesn't report an error.
+     */
+    public void testWriteNoteThroughPipeFailures() throws IOException {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Piped", "Old text").getContentValues());
+        byte[] bytes = "New text".getBytes("UTF-8");
+
+        // Fewer bytes than announced, as when the writer stops half way.
+        ParcelFileDescriptor[] pipe = NotePadProvider.createWritePipe();
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        out.write(bytes, 0, 3);
+        out.close();
+        assertFalse(getProvider().readNoteFromPipe(uri, pipe[0], bytes.length));
+        assertEquals("Old text", readNote(uri));
+
+        // More bytes than announced.
+        pipe = NotePadProvider.createWritePipe();
+        out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        out.write(bytes);
+        out.close();
+        assertFalse(getProvider().readNoteFromPipe(uri, pipe[0], 3));
+        assertEquals("Old text", readNote(uri));
+
+        // A huge announced length isn't allocated before the bytes arrive.
+        pipe = NotePadProvider.createWritePipe();
+        out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        out.write(bytes);
+        out.close();
+        assertFalse(getProvider().readNoteFromPipe(uri, pipe[0], Integer.MAX_VALUE));
+        assertEquals("Old text", readNote(uri));
+
+        // A writer that closes a reliable pipe with an error.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            pipe = NotePadProvider.createWritePipe();
+            FileOutputStream stream = new FileOutputStream(pipe[1].getFileDescriptor());
+            stream.write(bytes);
+            pipe[1].closeWithError("The writer failed");
+            assertFalse(getProvider().readNoteFromPipe(uri, pipe[0], -1));
+            assertEquals("Old text", readNote(uri));
+        }
+
+        // The announced length.
+        pipe = NotePadProvider.createWritePipe();
+        out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        out.write(bytes);
+        out.close();
+        assertTrue(getProvider().readNoteFromPipe(uri, pipe[0], bytes.length));
+        assertEquals("New text", readNote(uri));
+    }
+
+    /*
+     * Tests importing text files as notes: the titles, the text, the batches and their
+     * progress, and cancellation.
+     */
+    public void testImportFiles() throws IOException {
+        File dir = new File(getContext().getCacheDir(), "import");
+        dir.mkdirs();
+        ArrayList<File> files = new ArrayList<File>();
+        try {
+            int count = NoteImporter.BATCH_SIZE * 2 + 50;
+            for (int i = 0; i < count; i++) {
+                String text;
+                if (i == 0) {
+                    // A byte order mark, and a title cut back to the last space.
+                    text = "\uFEFFThe first file has a long first line\nand a second one \u4e2d";
+                } else if (i == 1) {
+                    text = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 4);
+                } else {
+                    text = "File " + i;
+                }
+                File file = new File(dir, i + ".txt");
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(text.getBytes("UTF-8"));
+                out.close();
+                file.setLastModified(1000000L * (i + 1));
+                files.add(file);
+            }
+
+            final ArrayList<Integer> progress = new ArrayList<Integer>();
+            NoteImporter importer = new NoteImporter(mMockResolver);
+            importer.setProgressListener(new NoteImporter.ProgressListener() {
+                @Override
+                public void onProgress(int filesImported, int fileCount, long bytesImported,
+                        long byteCount) {
+                    progress.add(filesImported);
+                }
+            });
+            assertEquals(count, importer.importFiles(files));
+            assertEquals(Arrays.asList(NoteImporter.BATCH_SIZE, NoteImporter.BATCH_SIZE * 2,
+                    count), progress);
+            assertEquals(count, countNotes());
+
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                    NotePad.Notes._ID);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("The first file has a long",
+                    cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+            assertEquals("The first file has a long first line\nand a second one \u4e2d",
+                    cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+            assertEquals(files.get(0).lastModified(), cursor.getLong(
+                    cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
+            assertTrue(cursor.moveToNext());
+            assertEquals(makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 4),
+                    cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+            assertTrue(cursor.moveToLast());
+            assertEquals("File " + (count - 1),
+                    cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+            cursor.close();
+
+            // Canceled after its first batch, an import keeps that batch and nothing else.
+            final NoteImporter canceled = new NoteImporter(mMockResolver);
+            canceled.setProgressListener(new NoteImporter.ProgressListener() {
+                @Override
+                public void onProgress(int filesImported, int fileCount, long bytesImported,
+                        long byteCount) {
+                    canceled.cancel();
+                }
+            });
+            assertEquals(NoteImporter.BATCH_SIZE, canceled.importFiles(files));
+            assertEquals(count + NoteImporter.BATCH_SIZE, countNotes());
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /*
+     * Tests the background exports: a text and every note, their progress and outcome, and
+     * cancellation. Also measures how long starting an export takes, which is all of the time
+     * that the UI thread spends on it.
+     */
+    public void testBackgroundExport() throws Exception {
+        File dir = getContext().getCacheDir();
+        String text = makeLogText(8 * 1024 * 1024) + " \u4e2d\u6587";
+
+        File textFile = new File(dir, "export.txt");
+        RecordingExportListener listener = new RecordingExportListener();
+        long start = System.nanoTime();
+        BackgroundExporter.exportText(text, textFile, listener);
+        long startMicros = (System.nanoTime() - start) / 1000;
+        assertTrue(listener.await());
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(textFile, listener.finished);
+        byte[] expected = text.getBytes("UTF-8");
+        assertEquals(expected.length, textFile.length());
+        assertEquals(expected.length, listener.bytesWritten);
+        assertEquals(expected.length, listener.byteCount);
+        assertFalse(new File(dir, "export.txt.part").exists());
+        Log.i(TAG, "Exported an " + text.length() / (1024 * 1024) + "M character note in "
+                + totalMillis + "ms, of which " + startMicros + "us to start it");
+        textFile.delete();
+
+        // A snapshot of a piece table is exported a chunk at a time, without splitting the
+        // surrogate pairs between the chunks.
+        StringBuilder pairs = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            pairs.append("a\ud83d\ude00");
+        }
+        PieceTable document = new PieceTable(pairs);
+        document.replace(1000, 0, "\u4e2d\u6587");
+        listener = new RecordingExportListener();
+        BackgroundExporter.exportText(document.snapshot(), textFile, listener);
+        assertTrue(listener.await());
+        assertEquals(textFile, listener.finished);
+        expected = document.toString().getBytes("UTF-8");
+        assertEquals(expected.length, textFile.length());
+        assertEquals(expected.length, listener.byteCount);
+        byte[] exported = new byte[expected.length];
+        DataInputStream in = new DataInputStream(new FileInputStream(textFile));
+        in.readFully(exported);
+        in.close();
+        assertTrue(Arrays.equals(expected, exported));
+        textFile.delete();
+
+        // Every note, as a ZIP archive.
+        insertData();
+        File zipFile = new File(dir, "export.zip");
+        listener = new RecordingExportListener();
+        BackgroundExporter.exportNotes(mMockResolver, NotePad.Notes.EXPORT_ZIP_TYPE, zipFile,
+                listener);
+        assertTrue(listener.await());
+        assertEquals(zipFile, listener.finished);
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(zipFile));
+        int entries = 0;
+        while (zip.getNextEntry() != null) {
+            entries++;
+        }
+        zip.close();
+        assertEquals(TEST_NOTES.length, entries);
+        zipFile.delete();
+
+        // A canceled export reports it, and leaves no file behind.
+        listener = new RecordingExportListener();
+        BackgroundExporter.exportText(text, textFile, listener).cancel();
+        assertTrue(listener.await());
+        assertTrue(listener.canceled);
+        assertFalse(textFile.exists());
+        assertFalse(new File(dir, "export.txt.part").exists());
+
+        // An import runs on the same threads, and reports the directory it read.
+        File importFile = new File(dir, "import.txt");
+        FileOutputStream out = new FileOutputStream(importFile);
+        out.write("Imported in the background".getBytes("UTF-8"));
+        out.close();
+        listener = new RecordingExportListener();
+        BackgroundExporter.importNotes(mMockResolver, Arrays.asList(importFile), dir, listener);
+        assertTrue(listener.await());
+        assertEquals(dir, listener.finished);
+        assertEquals(importFile.length(), listener.bytesWritten);
+        assertEquals(TEST_NOTES.length + 1, countNotes());
+        importFile.delete();
+    }
+
+    /*
+     * Tests that an export reports exactly one outcome however a cancellation lands: before it
+     * starts, while it runs, around the rename, or after it finished.
+     */
+    public void testBackgroundExportEndsOnce() throws Exception {
+        File dir = getContext().getCacheDir();
+        String text = makeLogText(256 * 1024);
+        Random random = new Random(0);
+        RecordingExportListener[] listeners = new RecordingExportListener[50];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new RecordingExportListener();
+            BackgroundExporter.Export export = BackgroundExporter.exportText(text,
+                    new File(dir, "export" + i + ".txt"), listeners[i]);
+            Thread.sleep(random.nextInt(5));
+            export.cancel();
+            if (i % 10 == 0) {
+                // Waits for it to end first, and cancels it again.
+                assertTrue(listeners[i].await());
+                export.cancel();
+            }
+        }
+        for (RecordingExportListener listener : listeners) {
+            assertTrue(listener.await());
+        }
+
+        // Lets any second outcome that was posted arrive.
+        Thread.sleep(200);
+        for (int i = 0; i < listeners.length; i++) {
+            assertEquals(1, listeners[i].ends.get());
+            File file = new File(dir, "export" + i + ".txt");
+            assertEquals(listeners[i].finished != null, file.exists());
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests the write-behind queue of the editors: saves land in order, merge, and give way to
+     * deletes, and flush() and whenCommitted() wait for them, and a piece table's text is saved.
+     * Also measures how long a save of a large note keeps
+     * the caller, which is the UI thread in onPause(), against a synchronous update.
+     */
+    public void testSaveQueue() throws IOException, InterruptedException {
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver);
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Queued", "Old text").getContentValues());
+
+        // The last of a burst of saves wins, and the columns of earlier saves are kept.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New title");
+        queue.save(uri, values);
+        ChangeNotifier notifier = getProvider().getChangeNotifierForTest();
+        int notifications = notifier.getRequestedCount();
+        int saves = 200;
+        for (int i = 1; i <= saves; i++) {
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Text " + i);
+            queue.save(uri, values);
+        }
+        queue.flush();
+        assertFalse(queue.isPending(uri));
+        assertEquals("Text " + saves, readNote(uri));
+        assertEquals("New title", DatabaseUtils.stringForQuery(mDb, "SELECT title FROM notes"
+                + " WHERE _id = " + ContentUris.parseId(uri), null));
+        int writes = notifier.getRequestedCount() - notifications;
+        assertTrue(writes <= saves + 1);
+        Log.i(TAG, (saves + 1) + " saves of a note took " + writes + " writes");
+
+        // A delete wins over the saves around it, and a task queued after them runs once the
+        // delete is committed.
+        queue.save(uri, values);
+        queue.delete(uri);
+        queue.save(uri, values);
+        final Uri deleted = uri;
+        final AtomicInteger found = new AtomicInteger(-1);
+        final CountDownLatch committed = new CountDownLatch(1);
+        queue.whenCommitted(new Runnable() {
+            @Override
+            public void run() {
+                Cursor cursor = mMockResolver.query(deleted, null, null, null, null);
+                found.set(cursor.getCount());
+                cursor.close();
+                committed.countDown();
+            }
+        });
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, found.get());
+        queue.flush();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes._ID + " = " + ContentUris.parseId(uri), null));
+
+        // The time that the caller waits, synchronously and through the queue.
+        String text = makeLogText(1024 * 1024);
+        uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", "").getContentValues());
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        long start = System.nanoTime();
+        mMockResolver.update(uri, values, null, null);
+        long syncMicros = (System.nanoTime() - start) / 1000;
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text + " queued");
+        start = System.nanoTime();
+        queue.save(uri, values);
+        long queuedMicros = (System.nanoTime() - start) / 1000;
+        queue.flush();
+        assertEquals(text + " queued", readNote(uri));
+        Log.i(TAG, "Saving a " + text.length() / 1024 + "K character note held the caller for "
+                + syncMicros + "us synchronously and " + queuedMicros + "us through the queue");
+
+        // The text of a piece table is only turned into a String by the queue's thread.
+        File file = new File(getContext().getCacheDir(), "piece_table.utf16");
+        PieceTable table = PieceTable.load(new ByteArrayInputStream("Pieces".getBytes("UTF-8")),
+                file);
+        table.replace(6, 0, " of text");
+        queue.saveText(uri, table.snapshot());
+        queue.flush();
+        assertEquals("Pieces of text", readNote(uri));
+    }
+
+    /*
+     * Tests the binary deltas of the revision history on random edits, and on corrupt deltas.
+     */
+    public void testNoteDelta() throws IOException {
+        Random random = new Random(18);
+        byte[] source = makeLogText(64 * 1024).getBytes("UTF-8");
+        for (int i = 0; i < 50; i++) {
+            ByteArrayOutputStream edited = new ByteArrayOutputStream();
+            int start = random.nextInt(source.length);
+            int end = Math.min(source.length, start + random.nextInt(500));
+            byte[] inserted = new byte[random.nextInt(300)];
+            random.nextBytes(inserted);
+            edited.write(source, 0, start);
+            edited.write(inserted);
+            edited.write(source, end, source.length - end);
+            byte[] target = edited.toByteArray();
+
+            byte[] delta = NoteDelta.create(source, target);
+            assertTrue(Arrays.equals(target, NoteDelta.apply(source, delta)));
+            assertTrue(delta.length < inserted.length + 64);
+            source = target;
+        }
+
+        // Nothing in common, and nothing at all.
+        byte[] other = "Something else entirely, with nothing in common".getBytes("UTF-8");
+        assertTrue(Arrays.equals(other, NoteDelta.apply(source, NoteDelta.create(source, other))));
+        assertTrue(Arrays.equals(new byte[0],
+                NoteDelta.apply(source, NoteDelta.create(source, new byte[0]))));
+
+        // A delta only applies to its source, and a truncated or corrupt one is rejected.
+        byte[] delta = NoteDelta.create(source, other);
+        try {
+            NoteDelta.apply(other, delta);
+            fail("Expected an SQLException");
+        } catch (SQLException expected) {
+        }
+        try {
+            NoteDelta.apply(source, Arrays.copyOf(delta, delta.length - 1));
+            fail("Expected an SQLException");
+        } catch (SQLException expected) {
+        }
+
+        // So is one whose target length is negative.
+        try {
+            NoteDelta.apply(new byte[3], new byte[] {
+                    3, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f });
+            fail("Expected an SQLException");
+        } catch (SQLException expected) {
+        }
+    }
+
+    /*
+     * Tests the revision history: a revision per edit through the note ID URI, listing and
+     * rebuilding them, the snapshot interval, the retention and its pruning, and the deletion of
+     * the revisions of a deleted note.
+     */
+    public void testRevisions() throws InterruptedException {
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Revised", "Version 0").getContentValues());
+        long noteId = ContentUris.parseId(uri);
+        Uri revisionsUri = NotePad.Revisions.getContentUri(noteId);
+        ArrayList<String> versions = new ArrayList<String>();
+        versions.add("Version 0");
+        int count = NoteRevisions.SNAPSHOT_INTERVAL * 2 + 3;
+        for (int i = 1; i < count; i++) {
+            String text = "Version " + i + "\n" + makeLogText(NoteCodec.COMPRESSION_THRESHOLD);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            mMockResolver.update(uri, values, null, null);
+            versions.add(text);
+        }
+
+        // A title or an unchanged note isn't a revision.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New title");
+        mMockResolver.update(uri, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, versions.get(count - 1));
+        mMockResolver.update(uri, values, null, null);
+
+        // The revisions, newest first, rebuild every version, each within the snapshot interval.
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(count, cursor.getCount());
+        int index = count;
+        while (cursor.moveToNext()) {
+            index--;
+            long revisionId = cursor.getLong(
+                    cursor.getColumnIndex(NotePad.Revisions._ID));
+            assertEquals(versions.get(index).length(), cursor.getInt(
+                    cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_LENGTH)));
+            Cursor revision = mMockResolver.query(
+                    NotePad.Revisions.getContentUri(noteId, revisionId), null, null, null, null);
+            assertTrue(revision.moveToFirst());
+            assertEquals(versions.get(index), revision.getString(
+                    revision.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE)));
+            revision.close();
+        }
+        cursor.close();
+        assertEquals(NoteRevisions.SNAPSHOT_INTERVAL - 1, DatabaseUtils.longForQuery(mDb,
+                "SELECT max(depth) FROM note_revisions", null));
+
+        // A revision of another note isn't found through this one.
+        cursor = mMockResolver.query(NotePad.Revisions.getContentUri(noteId + 1, 1),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Pruning keeps the newest revisions, and what they're rebuilt from.
+        Bundle retention = new Bundle();
+        retention.putInt(NotePad.Revisions.KEEP_COUNT, 5);
+        getProvider().call(NotePad.Revisions.METHOD_SET_RETENTION, null, retention);
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Final version");
+        mMockResolver.update(uri, values, null, null);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countRevisions(noteId) > 5 + NoteRevisions.SNAPSHOT_INTERVAL) {
+            assertTrue("The revisions weren't pruned in time",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertTrue(countRevisions(noteId) >= 5);
+        cursor = mMockResolver.query(revisionsUri, null, null, null,
+                NotePad.Revisions._ID + " ASC");
+        assertTrue(cursor.moveToFirst());
+        Cursor oldest = mMockResolver.query(NotePad.Revisions.getContentUri(noteId,
+                cursor.getLong(0)), null, null, null, null);
+        assertTrue(oldest.moveToFirst());
+        oldest.close();
+        cursor.close();
+
+        // The revisions go with their note.
+        mMockResolver.delete(uri, null, null);
+        assertEquals(0, countRevisions(noteId));
+    }
+
+    private long countRevisions(long noteId) {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null);
+    }
+
+    /*
+     * Measures the storage of the revision history, and the time to rebuild a revision, on a
+     * realistic trace of editing sessions: sentences added, passages cut and words replaced here
+     * and there in a growing note.
+     */
+    public void testRevisionBenchmark() {
+        Bundle retention = new Bundle();
+        retention.putInt(NotePad.Revisions.KEEP_COUNT, 1000);
+        getProvider().call(NotePad.Revisions.METHOD_SET_RETENTION, null, retention);
+
+        Random random = new Random(2018);
+        StringBuilder text = new StringBuilder(makeLogText(128 * 1024));
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Trace", text.toString()).getContentValues());
+        long noteId = ContentUris.parseId(uri);
+        String[] words = { "note", "edit", "revision", "history", "delta", "snapshot", "\u4e2d\u6587" };
+
+        int sessions = 200;
+        long editedChars = 0;
+        for (int session = 0; session < sessions; session++) {
+            int edits = 1 + random.nextInt(5);
+            for (int e = 0; e < edits; e++) {
+                int at = random.nextInt(text.length());
+                int kind = random.nextInt(100);
+                if (kind < 60) {
+                    StringBuilder sentence = new StringBuilder();
+                    int length = 20 + random.nextInt(180);
+                    while (sentence.length() < length) {
+                        sentence.append(words[random.nextInt(words.length)]).append(' ');
+                    }
+                    sentence.append(".\n");
+                    text.insert(at, sentence);
+                    editedChars += sentence.length();
+                } else if (kind < 85) {
+                    int end = Math.min(text.length(), at + 10 + random.nextInt(290));
+                    editedChars += end - at;
+                    text.delete(at, end);
+                } else {
+                    int end = Math.min(text.length(), at + 5 + random.nextInt(10));
+                    String word = words[random.nextInt(words.length)];
+                    editedChars += end - at + word.length();
+                    text.replace(at, end, word);
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            mMockResolver.update(uri, values, null, null);
+        }
+
+        long deltaBytes = DatabaseUtils.longForQuery(mDb, "SELECT total(length(data)) FROM "
+                + "note_revisions WHERE depth > 0 AND note_id = " + noteId, null);
+        long snapshotBytes = DatabaseUtils.longForQuery(mDb, "SELECT total(length(data)) FROM "
+                + "note_revisions WHERE depth = 0 AND note_id = " + noteId, null);
+        long revisions = countRevisions(noteId);
+        assertEquals(sessions + 1, revisions);
+        Log.i(TAG, revisions + " revisions of a " + text.length() / 1024 + "K character note, "
+                + editedChars + " characters edited: " + deltaBytes + " bytes of deltas, "
+                + snapshotBytes + " bytes of snapshots, against "
+                + (long) text.length() * revisions + " characters of full copies");
+        assertTrue(deltaBytes < editedChars * 2 + revisions * 64);
+
+        long worstNanos = 0;
+        long totalNanos = 0;
+        Cursor cursor = mMockResolver.query(NotePad.Revisions.getContentUri(noteId),
+                new String[] { NotePad.Revisions._ID }, null, null, null);
+        while (cursor.moveToNext()) {
+            long start = System.nanoTime();
+            assertNotNull(NoteRevisions.reconstruct(mDb, cursor.getLong(0)));
+            long nanos = System.nanoTime() - start;
+            worstNanos = Math.max(worstNanos, nanos);
+            totalNanos += nanos;
+        }
+        cursor.close();
+        Log.i(TAG, "Rebuilt a revision in " + totalNanos / revisions / 1000 + "us on average, "
+                + worstNanos / 1000 + "us at worst");
+    }
+
+    /*
+     * Tests the provider's side of the editor's large-document mode, on a 20 MB note: the
+     * note_size column, which is read without the note and is the size of the text however well
+     * it compresses, the stream of the note's text alone, and the save, which records no
+     * revision. Also measures opening the note, moving the editor's window through it, typing in it, and
+     * queuing a save.
+     */
+    public void testLargeNote() throws IOException {
+        String text = makeLogText(20 * 1024 * 1024).replace("; ", "\n");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", text).getContentValues());
+        Uri smallUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Small", "Short").getContentValues());
+        String[] sizeProjection = new String[] { NotePad.Notes.COLUMN_NAME_NOTE_SIZE };
+        Cursor cursor = mMockResolver.query(uri, sizeProjection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.length(), cursor.getLong(0));
+        assertTrue(cursor.getLong(0) >= NoteEditor.LARGE_NOTE_SIZE);
+        cursor.close();
+        cursor = mMockResolver.query(smallUri, sizeProjection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(5, cursor.getLong(0));
+        cursor.close();
+
+        // A note that compresses to a few KB is still large, and the size counts UTF-8 bytes.
+        char[] repeated = new char[NoteEditor.LARGE_NOTE_SIZE / 3];
+        Arrays.fill(repeated, '\u4e2d');
+        Uri compressibleUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Compressible", new String(repeated)).getContentValues());
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT length(note) FROM notes WHERE _id = "
+                + ContentUris.parseId(compressibleUri), null) < 64 * 1024);
+        cursor = mMockResolver.query(compressibleUri, sizeProjection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(repeated.length * 3, cursor.getLong(0));
+        cursor.close();
+
+        // Opens the note the way the editor does.
+        Bundle opts = new Bundle();
+        opts.putBoolean(NotePad.Notes.STREAM_BODY_ONLY, true);
+        long start = System.nanoTime();
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                uri, "text/plain", opts);
+        PieceTable document;
+        InputStream in = afd.createInputStream();
+        try {
+            document = PieceTable.load(in,
+                    File.createTempFile("note", ".utf16", getContext().getCacheDir()));
+        } finally {
+            in.close();
+            afd.close();
+        }
+        long openMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(text.length(), document.length());
+
+        // Moves the window from the start of the note to its end.
+        int windows = 200;
+        long windowNanos = 0;
+        long worstWindowNanos = 0;
+        for (int i = 0; i < windows; i++) {
+            start = System.nanoTime();
+            int line = (int) ((long) (document.getLineCount() - 1) * i / (windows - 1));
+            int windowStart = document.getLineStart(line);
+            int windowEnd = Math.min(document.length(), windowStart + NoteEditor.WINDOW_SIZE);
+            CharSequence window = document.subSequence(windowStart, windowEnd);
+            long nanos = System.nanoTime() - start;
+            windowNanos += nanos;
+            worstWindowNanos = Math.max(worstWindowNanos, nanos);
+            if (i % 20 == 0) {
+                assertEquals(text.substring(windowStart, windowEnd), window.toString());
+            }
+        }
+
+        // Types a few characters in many places.
+        Random random = new Random(20);
+        int edits = 1000;
+        start = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(document.length());
+            for (int j = 0; j < 5; j++) {
+                document.replace(offset + j, 0, "x");
+            }
+        }
+        long editMicros = (System.nanoTime() - start) / 1000 / (edits * 5);
+        assertEquals(text.length() + edits * 5, document.length());
+
+        // The caller only waits for the snapshot.
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver);
+        start = System.nanoTime();
+        queue.saveText(uri, document.snapshot());
+        long saveMicros = (System.nanoTime() - start) / 1000;
+        queue.flush();
+        assertEquals(0, countRevisions(ContentUris.parseId(uri)));
+
+        Log.i(TAG, "A " + text.length() / (1024 * 1024) + "M character note opened in "
+                + openMillis + "ms, showed a window in " + windowNanos / windows / 1000
+                + "us on average and " + worstWindowNanos / 1000 + "us at worst, took "
+                + editMicros + "us per keystroke and held up a save for " + saveMicros + "us");
+    }
+
+    // Records the reports of an export, which arrive on the main thread.
+    private static class RecordingExportListener implements BackgroundExporter.Listener {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger ends = new AtomicInteger();
+        volatile long bytesWritten;
+        volatile long byteCount;
+        volatile File finished;
+        volatile boolean canceled;
+
+        @Override
+        public void onProgress(long bytesWritten, long byteCount) {
+            this.bytesWritten = bytesWritten;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        public void onFinished(File file) {
+            finished = file;
+            ends.incrementAndGet();
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            Log.e(TAG, "Export failed", e);
+            ends.incrementAndGet();
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCanceled() {
+            canceled = true;
+            ends.incrementAndGet();
+            mDone.countDown();
+        }
+
+        // Waits for the end of the export, and returns false if it takes too long.
+        boolean await() throws InterruptedException {
+            return mDone.await(30, TimeUnit.SECONDS);
+        }
+    }
+
+    // Reads the text/plain stream of a note, checks its title, and returns its text.
+    private String readNoteStream(Uri uri, String title) throws IOException {
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                uri, "text/plain", null);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                afd.createInputStream(), "UTF-8"));
+        try {
+            assertEquals(title, reader.readLine());
+            assertEquals("", reader.readLine());
+            String note = reader.readLine();
+            assertNull(reader.readLine());
+            return note;
+        } finally {
+            reader.close();
+            afd.close();
+        }
+    }
+
+    // Returns at least the given number of characters of text that looks like a log file.
+    static String makeLogText(int length) {
+        StringBuilder text = new StringBuilder(length + 100);
+        for (int line = 0; text.length() < length; line++) {
+            text.append("2024-01-01 12:00:").append(line % 60)
+                    .append(" I/NotePad( ").append(1000 + line % 7)
+                    .append("): saved note ").append(line).append(" in ")
+                    .append(line % 13).append("ms; ");
+        }
+        return text.toString();
+    }
+
+    /*
+     * Tests that the provider's database runs in write-ahead logging mode, and that queries can be
+     * routed to the separate snapshot connection.
+     */
+    public void testWriteAheadLogging() {
+        // Asserts that the journal mode is WAL.
+        Cursor cursor = mDb.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+
+        // Inserts the test data, then reads it back through the snapshot connection.
+        insertData();
+        Uri snapshotUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SNAPSHOT_QUERY_PARAMETER, "true")
+                .build();
+        cursor = mMockResolver.query(snapshotUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Benchmarks list query latency while another thread keeps rewriting a large note, first
+     * with the rollback journal and then with WAL. The results are written to the log.
+     */
+    public void testReadLatencyDuringWrites() throws InterruptedException {
+        insertData();
+
+        mDb.disableWriteAheadLogging();
+        long journalMicros = measureReadLatencyDuringWrites();
+
+        mDb.enableWriteAheadLogging();
+        long walMicros = measureReadLatencyDuringWrites();
+
+        Log.i(TAG, "Average list query latency during writes: "
+                + journalMicros + "us with the rollback journal, " + walMicros + "us with WAL");
+    }
+
+    // Runs list queries while a background thread rewrites a 1MB note, and returns the average
+    // query latency in microseconds.
+    private long measureReadLatencyDuringWrites() throws InterruptedException {
+        final int queries = 200;
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 1024 * 1024) {
+            body.append("A long note that is rewritten over and over. ");
+        }
+        final ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        final Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+
+        final boolean[] done = { false };
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (done) {
+                        if (done[0]) {
+                            return;
+                        }
+                    }
+                    mMockResolver.update(noteUri, values, null, null);
+                }
+            }
+        };
+        writer.start();
+
+        final String[] listProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        long total = 0;
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mMockResolver.query(
+                    NotePad.Notes.CONTENT_URI, listProjection, null, null, null);
+            cursor.getCount();
+            cursor.close();
+            total += System.nanoTime() - start;
+        }
+
+        synchronized (done) {
+            done[0] = true;
+        }
+        writer.join();
+        return total / queries / 1000;
+    }
+
+    /*
+     * Tests that the list query is answered from the covering index, without a table scan or a
+     * sort, and that date-range queries use the matching index.
+     */
+    public void testQueryPlans() {
+        insertData();
+
+        // The projection and sort order that NotesList uses.
+        final String[] listProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW
+        };
+        String plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection, null, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, null));
+
+        // Asserts that the whole list comes from the index, in index order.
+        assertTrue(plan, plan.contains("COVERING INDEX " + NotePadProvider.LIST_INDEX_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A range on the modification date is also served by the list index.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " > " + START_DATE,
+                null, null, NotePad.Notes.DEFAULT_SORT_ORDER, null));
+        assertTrue(plan, plan.contains(NotePadProvider.LIST_INDEX_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A range on the creation date uses the created index.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, null,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE + " BETWEEN " + START_DATE + " AND "
+                        + (START_DATE + ONE_DAY_MILLIS),
+                null, null, null, null));
+        assertTrue(plan, plan.contains(NotePadProvider.CREATED_INDEX_NAME));
+
+        // A keyset page seeks into the list index, in index order.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection,
+                "modified <= " + START_DATE + " AND (modified < " + START_DATE + " OR _id < 5)",
+                null, null, NotePad.Notes.PAGE_SORT_ORDER, "10"));
+        assertTrue(plan, plan.contains("COVERING INDEX " + NotePadProvider.LIST_INDEX_NAME));
+        assertTrue(plan, plan.contains("modified<?"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A page read again by its range of keys is bounded at both ends of the seek.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection,
+                "modified <= " + START_DATE + " AND (modified < " + START_DATE + " OR _id < 5)"
+                        + " AND modified >= " + (START_DATE - ONE_DAY_MILLIS) + " AND (modified > "
+                        + (START_DATE - ONE_DAY_MILLIS) + " OR _id >= 2)",
+                null, null, NotePad.Notes.PAGE_SORT_ORDER,
+                Integer.toString(PagedNotesAdapter.MAX_PAGE_ROWS + 1)));
+        assertTrue(plan, plan.contains("COVERING INDEX " + NotePadProvider.LIST_INDEX_NAME));
+        assertTrue(plan, plan.contains("modified>? AND modified<?"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The list in pinyin order walks the pinyin index.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection, null, null, null,
+                NotePad.Notes.PINYIN_SORT_ORDER, "10"));
+        assertTrue(plan, plan.contains(NotePadProvider.PINYIN_INDEX_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A pinyin search is a range scan of each of the pinyin indexes.
+        plan = explainQueryPlan(SQLiteQueryBuilder.buildQueryString(
+                false, NotePad.Notes.TABLE_NAME, listProjection,
+                NotePadProvider.makePinyinWhere("bj"), null, null, null, null));
+        assertTrue(plan, plan.contains(NotePadProvider.PINYIN_INDEX_NAME + " (title_pinyin>?"));
+        assertTrue(plan, plan.contains(NotePadProvider.INITIALS_INDEX_NAME
+                + " (title_initials>?"));
+    }
+
+    /*
+     * Tests that queries on a single note are served from the provider's cache, and that every
+     * kind of write invalidates it.
+     */
+    public void testNoteCache() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First text");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The first read misses and fills the cache, the second one hits.
+        assertEquals("First text", readNote(uri));
+        assertCacheStats(0, 1);
+        assertEquals("First text", readNote(uri));
+        assertCacheStats(1, 1);
+
+        // A lighter projection is served from the cached row.
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        cursor.close();
+        assertCacheStats(2, 1);
+
+        // So is the note stream.
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                uri, "text/plain", null);
+        BufferedReader reader = new BufferedReader(new FileReader(afd.getFileDescriptor()));
+        assertEquals("Cached", reader.readLine());
+        reader.close();
+        afd.close();
+        assertCacheStats(3, 1);
+
+        // An update through the note URI drops the cached row.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second text");
+        mMockResolver.update(uri, values, null, null);
+        assertEquals("Second text", readNote(uri));
+        assertCacheStats(3, 2);
+
+        // So does an update through the notes URI, which can touch any note.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Third text");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        assertEquals("Third text", readNote(uri));
+
+        // And a batch.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(uri)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Fourth text")
+                .build());
+        getProvider().applyBatch(operations);
+        assertEquals("Fourth text", readNote(uri));
+
+        // A deleted note is gone.
+        mMockResolver.delete(uri, null, null);
+        cursor = mMockResolver.query(uri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // Returns the text of the note at the given URI.
+    private String readNote(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String note = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        cursor.close();
+        return note;
+    }
+
+    // Asserts the hit and miss counts of the provider's note cache.
+    private void assertCacheStats(int hits, int misses) {
+        Bundle stats = getProvider().call(NotePad.Notes.METHOD_GET_CACHE_STATS, null, null);
+        assertEquals(hits, stats.getInt(NotePad.Notes.CACHE_HITS));
+        assertEquals(misses, stats.getInt(NotePad.Notes.CACHE_MISSES));
+    }
+
+    /*
+     * Tests that the provider maintains the preview column whenever the note text is written,
+     * and that callers can't write it themselves.
+     */
+    public void testPreviews() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "\n  First line\n\n\tsecond   line  ");
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "ignored");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("First line second line", readPreview(uri));
+
+        // Updating the title leaves the preview alone, and the preview can't be set directly.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title");
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "ignored");
+        mMockResolver.update(uri, values, null, null);
+        assertEquals("First line second line", readPreview(uri));
+
+        // A long note is cut at the preview length, even when it's stored compressed.
+        String longNote = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 2);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        mMockResolver.update(uri, values, null, null);
+        String preview = readPreview(uri);
+        assertEquals(NotePad.Notes.PREVIEW_LENGTH, preview.length());
+        assertTrue(longNote.startsWith(preview));
+
+        // The live folder shows the preview as the description.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.LIVE_FOLDER_URI,
+                new String[] { LiveFolders._ID, LiveFolders.NAME, LiveFolders.DESCRIPTION },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(preview, cursor.getString(2));
+        cursor.close();
+
+        // Surrogate pairs aren't split, and empty notes have an empty preview.
+        StringBuilder emoji = new StringBuilder("a");
+        while (emoji.length() < NotePad.Notes.PREVIEW_LENGTH + 2) {
+            emoji.append("\ud83d\udcdd");
+        }
+        assertEquals(NotePad.Notes.PREVIEW_LENGTH - 1,
+                NotePadProvider.makePreview(emoji.toString()).length());
+        assertEquals("", NotePadProvider.makePreview("  \n "));
+        assertEquals("", NotePadProvider.makePreview(null));
+    }
+
+    // Returns the preview of the note at the given URI.
+    private String readPreview(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_PREVIEW }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String preview = cursor.getString(0);
+        cursor.close();
+        return preview;
+    }
+
+    /*
+     * Tests the backfill of the version 7 step, which computes the previews of the notes that
+     * existed before the upgrade, a few rows at a time.
+     */
+    public void testPreviewBackfill() {
+        insertData();
+
+        // Makes the notes look like they did before the upgrade.
+        mDb.execSQL("UPDATE notes SET preview = NULL");
+        DatabaseMigrations.scheduleBackfill(mDb, 7);
+
+        int chunks = 0;
+        int result;
+        while ((result = NotePadProvider.DatabaseHelper.MIGRATIONS.backfillNextChunk(mDb, 3)) > 0) {
+            chunks++;
+        }
+        assertEquals(0, result);
+        assertEquals((TEST_NOTES.length + 2) / 3, chunks);
+        assertEquals(-1, NotePadProvider.DatabaseHelper.MIGRATIONS.backfillNextChunk(mDb, 3));
+
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT count(*) FROM notes WHERE preview IS NULL", null));
+        assertEquals("This is note 1", DatabaseUtils.stringForQuery(mDb,
+                "SELECT preview FROM notes WHERE title = 'Note1'", null));
+    }
+
+    /*
+     * Tests that opening the database leaves the scheduled backfills to the provider's open
+     * thread, instead of running them while the helper holds its lock.
+     */
+    public void testPendingWorkRunsAfterOpen() {
+        insertData();
+        mDb.execSQL("UPDATE notes SET preview = NULL");
+        DatabaseMigrations.scheduleBackfill(mDb, 7);
+
+        getProvider().getOpenHelperForTest().onOpen(mDb);
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT count(*) FROM " + DatabaseMigrations.PENDING_BACKFILLS_TABLE, null));
+
+        assertTrue(NotePadProvider.DatabaseHelper.MIGRATIONS.finishPending(mDb));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT count(*) FROM notes WHERE preview IS NULL", null));
+        assertFalse(NotePadProvider.DatabaseHelper.MIGRATIONS.finishPending(mDb));
+    }
+
+    /*
+     * Benchmarks reading the list with the preview column against reading it with the note
+     * bodies, which is what showing a preview took before. The results are written to the log.
+     */
+    public void testListQueryIo() {
+        final int notes = 500;
+        ContentValues[] values = new ContentValues[notes];
+        for (int i = 0; i < notes; i++) {
+            values[i] = new ContentValues();
+            values[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values[i].put(NotePad.Notes.COLUMN_NAME_NOTE, makeLogText(8 * 1024));
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+
+        final String[] previewProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW
+        };
+        final String[] bodyProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        long[] preview = measureListQuery(previewProjection);
+        long[] body = measureListQuery(bodyProjection);
+
+        Log.i(TAG, "Listing " + notes + " notes: " + preview[0] + "us and " + preview[1]
+                + " characters with previews, " + body[0] + "us and " + body[1]
+                + " characters with note bodies");
+
+        // The list with previews reads a small fraction of the data.
+        assertTrue(preview[1] * 10 < body[1]);
+    }
+
+    // Reads every row of the list with the given projection, and returns the time taken in
+    // microseconds and the number of characters read.
+    private long[] measureListQuery(String[] projection) {
+        long start = System.nanoTime();
+        Cursor cursor = mMockResolver.query(
+                NotePad.Notes.CONTENT_URI, projection, null, null, null);
+        long characters = 0;
+        while (cursor.moveToNext()) {
+            characters += cursor.getString(1).length() + cursor.getString(3).length();
+        }
+        cursor.close();
+        return new long[] { (System.nanoTime() - start) / 1000, characters };
+    }
+
+    /*
+     * Tests paging through the notes with a limit and keyset cursors. Every note is returned
+     * exactly once, in the page sort order, including notes that share a modification date.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        // Adds notes whose modification dates are equal, so pages have to break ties by _ID.
+        for (int i = 0; i < 5; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Tie" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + ONE_WEEK_MILLIS);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        // Reads all of the notes at once, for comparison.
+        final String[] projection = {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        ArrayList<Long> allIds = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            allIds.add(cursor.getLong(0));
+        }
+        cursor.close();
+        assertEquals(TEST_NOTES.length + 5, allIds.size());
+
+        // Reads the notes three at a time.
+        ArrayList<Long> paged = new ArrayList<Long>();
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER, "3")
+                .build();
+        while (true) {
+            cursor = mMockResolver.query(pageUri, projection, null, null, null);
+            assertTrue(cursor.getCount() <= 3);
+            if (!cursor.moveToLast()) {
+                cursor.close();
+                break;
+            }
+            long lastId = cursor.getLong(0);
+            long lastModified = cursor.getLong(1);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                paged.add(cursor.getLong(0));
+            }
+            cursor.close();
+
+            pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER, "3")
+                    .appendQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER,
+                            Long.toString(lastModified))
+                    .appendQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER,
+                            Long.toString(lastId))
+                    .build();
+        }
+        assertEquals(allIds, paged);
+
+        // A keyset needs both of its parameters and the page sort order.
+        Uri incomplete = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER, "3")
+                .build();
+        try {
+            mMockResolver.query(incomplete, projection, null, null, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        Uri keyset = incomplete.buildUpon()
+                .appendQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER, "0")
+                .build();
+        try {
+            mMockResolver.query(keyset, projection, null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // The limit must be a positive number.
+        Uri badLimit = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER, "none")
+                .build();
+        try {
+            mMockResolver.query(badLimit, projection, null, null, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+     * Tests that upgrading a version 3 database adds the indexes and keeps the existing notes.
+     */
+    public void testUpgradeAddsIndexes() {
+        insertData();
+
+        // Puts the database back into its version 3 shape.
+        mDb.execSQL("DROP INDEX " + NotePadProvider.LIST_INDEX_NAME);
+        mDb.execSQL("DROP INDEX " + NotePadProvider.CREATED_INDEX_NAME);
+
+        getProvider().getOpenHelperForTest().onUpgrade(mDb, 3, 4);
+
+        Cursor cursor = mDb.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type = 'index' AND name IN (?, ?)",
+                new String[] { NotePadProvider.LIST_INDEX_NAME, NotePadProvider.CREATED_INDEX_NAME });
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        assertEquals(TEST_NOTES.length, countNotes());
+    }
+
+    /*
+     * Tests the version 3 step on its own: the full-text index is created during the upgrade,
+     * and the existing notes are indexed afterwards by the chunked copy.
+     */
+    public void testMigrationToVersion3() {
+        insertData();
+
+        // Puts the database back into its version 2 shape.
+        mDb.execSQL("DROP TRIGGER notes_fts_insert");
+        mDb.execSQL("DROP TRIGGER notes_fts_update");
+        mDb.execSQL("DROP TRIGGER notes_fts_delete");
+        mDb.execSQL("DROP TABLE notes_fts");
+
+        NotePadProvider.DatabaseHelper.MIGRATIONS.upgrade(mDb, 2, 3);
+
+        // The upgrade itself only schedules the copy, so the index is still empty.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "notes_fts"));
+
+        // Copies two notes per chunk until the copy is finished.
+        int total = 0;
+        int copied;
+        while ((copied = DatabaseMigrations.copyNextChunk(mDb, 2)) > 0) {
+            assertTrue(copied <= 2);
+            total += copied;
+        }
+        assertEquals(0, copied);
+        assertEquals(TEST_NOTES.length, total);
+        assertEquals(-1, DatabaseMigrations.copyNextChunk(mDb, 2));
+
+        // Searches now find the old notes.
+        Cursor cursor = mMockResolver.query(searchUri("Note1"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a scheduled copy is done in chunks, can be resumed after any chunk, and drops
+     * its source table and its bookkeeping once it's finished.
+     */
+    public void testChunkedCopy() {
+        mDb.execSQL("CREATE TABLE copy_source (_id INTEGER PRIMARY KEY, value TEXT)");
+        mDb.execSQL("CREATE TABLE copy_target (_id INTEGER PRIMARY KEY, value TEXT)");
+        for (int i = 1; i <= 7; i++) {
+            mDb.execSQL("INSERT INTO copy_source (value) VALUES ('row" + i + "')");
+        }
+
+        DatabaseMigrations.scheduleCopy(mDb, "copy_target", "_id, value",
+                "copy_source", "_id, upper(value)", true);
+
+        // Rows inserted after the copy was scheduled aren't copied.
+        mDb.execSQL("INSERT INTO copy_source (value) VALUES ('late')");
+
+        // Copies one chunk, as if the process were killed right after it.
+        assertEquals(3, DatabaseMigrations.copyNextChunk(mDb, 3));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, "copy_target"));
+
+        // Resumes the copy where it stopped.
+        assertEquals(3, DatabaseMigrations.copyNextChunk(mDb, 3));
+        assertEquals(1, DatabaseMigrations.copyNextChunk(mDb, 3));
+        assertEquals(0, DatabaseMigrations.copyNextChunk(mDb, 3));
+        assertEquals(-1, DatabaseMigrations.copyNextChunk(mDb, 3));
+
+        assertEquals(7, DatabaseUtils.queryNumEntries(mDb, "copy_target"));
+        assertEquals("ROW7", DatabaseUtils.stringForQuery(mDb,
+                "SELECT value FROM copy_target WHERE _id = 7", null));
+
+        // The source and the pending copies table are gone.
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM sqlite_master"
+                + " WHERE name IN ('copy_source', ?)",
+                new String[] { DatabaseMigrations.PENDING_COPIES_TABLE }));
+
+        mDb.execSQL("DROP TABLE copy_target");
+    }
+
+    /*
+     * Tests that the migration steps must cover consecutive versions.
+     */
+    public void testMigrationsMustBeConsecutive() {
+        try {
+            new DatabaseMigrations(
+                    new DatabaseMigrations.Migration(3) {
+                        @Override
+                        void migrate(SQLiteDatabase db) {
+                        }
+                    },
+                    new DatabaseMigrations.Migration(5) {
+                        @Override
+                        void migrate(SQLiteDatabase db) {
+                        }
+                    });
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // A version 1 database is too old to be upgraded in place.
+        assertFalse(NotePadProvider.DatabaseHelper.MIGRATIONS.canUpgrade(1));
+        assertTrue(NotePadProvider.DatabaseHelper.MIGRATIONS.canUpgrade(2));
+    }
+
+    /*
+     * Tests that the changes made within the coalescing window are sent as one notification per
+     * URI, leaving out the note URIs when the notes URI itself changed.
+     */
+    public void testCoalescedNotifications() {
+        ChangeNotifier notifier = getProvider().getChangeNotifierForTest();
+
+        // A window long enough that only the explicit flushes below send anything.
+        notifier.setWindowMillis(60 * 1000);
+        int requested = notifier.getRequestedCount();
+        int sent = notifier.getSentCount();
+
+        // Two new notes, one of which is then saved five times.
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note0", "Text0").getContentValues());
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note1", "Text1").getContentValues());
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 5; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Text0, saved " + i);
+            mMockResolver.update(first, values, null, null);
+        }
+        assertEquals(sent, notifier.getSentCount());
+
+        // One notification for each of the two notes.
+        notifier.flush();
+        assertEquals(requested + 7, notifier.getRequestedCount());
+        assertEquals(sent + 2, notifier.getSentCount());
+
+        // A change to every note covers the changes to the single notes.
+        mMockResolver.update(second, values, null, null);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        mMockResolver.update(first, values, null, null);
+        notifier.flush();
+        assertEquals(sent + 3, notifier.getSentCount());
+
+        // Nothing is left to send.
+        notifier.flush();
+        assertEquals(sent + 3, notifier.getSentCount());
+
+        // A bulk insert is a single change to the notes URI.
+        ContentValues[] rows = new ContentValues[10];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new NoteInfo("Bulk" + i, "Text").getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+        notifier.flush();
+        assertEquals(sent + 4, notifier.getSentCount());
+
+        // With coalescing off, every change is sent as it's made.
+        notifier.setWindowMillis(0);
+        mMockResolver.update(first, values, null, null);
+        mMockResolver.update(first, values, null, null);
+        assertEquals(sent + 6, notifier.getSentCount());
+    }
+
+    /*
+     * Measures the notifications, and so the requeries of the notes list, that a scripted burst
+     * of writes causes with and without coalescing: an import of single inserts, followed by
+     * autosaves of a note being typed.
+     */
+    public void testNotificationBurst() {
+        ChangeNotifier notifier = getProvider().getChangeNotifierForTest();
+
+        int[] uncoalesced = runWriteBurst(notifier, 0);
+        int[] coalesced = runWriteBurst(notifier, 60 * 1000);
+
+        Log.i(TAG, "Write burst: " + uncoalesced[0] + " changes, " + uncoalesced[1]
+                + " notifications without coalescing, " + coalesced[1] + " with it");
+
+        assertEquals(uncoalesced[0], uncoalesced[1]);
+        assertEquals(uncoalesced[0], coalesced[0]);
+
+        // One for each imported note, the last of which is the note being typed.
+        assertEquals(20, coalesced[1]);
+    }
+
+    // Runs the burst of writes of testNotificationBurst with the given window, and returns the
+    // number of changes made and of notifications sent.
+    private int[] runWriteBurst(ChangeNotifier notifier, long windowMillis) {
+        notifier.setWindowMillis(windowMillis);
+        int requested = notifier.getRequestedCount();
+        int sent = notifier.getSentCount();
+
+        Uri typed = null;
+        for (int i = 0; i < 20; i++) {
+            typed = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Imported" + i, "Text" + i).getContentValues());
+        }
+        ContentValues values = new ContentValues();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append((char) ('a' + i % 26));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            mMockResolver.update(typed, values, null, null);
+        }
+        notifier.flush();
+
+        return new int[] {
+                notifier.getRequestedCount() - requested, notifier.getSentCount() - sent };
+    }
+
+    /*
+     * Tests the export of every note through the notes URI, as JSON Lines and as a ZIP archive,
+     * across several chunks and including a note that's stored compressed.
+     */
+    public void testExportNotes() throws IOException, JSONException {
+        int notes = NoteExporter.CHUNK_SIZE + 10;
+        ContentValues[] rows = new ContentValues[notes];
+        for (int i = 0; i < notes; i++) {
+            NoteInfo info = new NoteInfo("Note" + i, "Text \"" + i + "\"\nsecond line");
+            info.setCreationDate(1000 + i);
+            info.setModificationDate(2000 + i);
+            rows[i] = info.getContentValues();
+        }
+        String longNote = makeLogText(NoteCodec.COMPRESSION_THRESHOLD * 2);
+        rows[notes - 1].put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        rows[notes - 1].put(NotePad.Notes.COLUMN_NAME_TITLE, "A/B: c?");
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+
+        // JSON Lines, the default type: one object per note, in _ID order.
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL, null);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                afd.createInputStream(), "UTF-8"));
+        String line;
+        int count = 0;
+        while ((line = reader.readLine()) != null) {
+            JSONObject note = new JSONObject(line);
+            assertEquals(count + 1, note.getLong(NotePad.Notes._ID));
+            if (count < notes - 1) {
+                assertEquals("Note" + count, note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+                assertEquals("Text \"" + count + "\"\nsecond line",
+                        note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                assertEquals(1000 + count, note.getLong(NotePad.Notes.COLUMN_NAME_CREATE_DATE));
+                assertEquals(2000 + count,
+                        note.getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+            } else {
+                assertEquals(longNote, note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            }
+            count++;
+        }
+        assertEquals(notes, count);
+        reader.close();
+        afd.close();
+
+        // ZIP: one text file per note, with the note decompressed.
+        afd = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_ZIP_TYPE, null);
+        ZipInputStream zip = new ZipInputStream(afd.createInputStream());
+        ZipEntry entry;
+        count = 0;
+        while ((entry = zip.getNextEntry()) != null) {
+            count++;
+            reader = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
+            if (count == 1) {
+                assertEquals("1 Note0.txt", entry.getName());
+                assertEquals("Note0", reader.readLine());
+                assertEquals("", reader.readLine());
+                assertEquals("Text \"0\"", reader.readLine());
+                assertEquals("second line", reader.readLine());
+            } else if (count == notes) {
+                assertEquals(notes + " A_B_ c_.txt", entry.getName());
+                assertEquals("A/B: c?", reader.readLine());
+                assertEquals("", reader.readLine());
+                assertEquals(longNote, reader.readLine());
+            }
+        }
+        assertEquals(notes, count);
+        zip.close();
+        afd.close();
+    }
+
+    /*
+     * Measures the export of a large number of notes, written to a stream that only counts the
+     * bytes, so that the time is the time taken to read and format the notes.
+     */
+    public void testExportSpeed() throws IOException {
+        int notes = 20000;
+        ContentValues[] rows = new ContentValues[1000];
+        for (int batch = 0; batch < notes / rows.length; batch++) {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new NoteInfo("Note" + batch + "-" + i,
+                        makeLogText(500)).getContentValues();
+            }
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+        }
+
+        for (String type : new String[] {
+                NotePad.Notes.EXPORT_JSON_LINES_TYPE, NotePad.Notes.EXPORT_ZIP_TYPE }) {
+            final long[] bytes = new long[1];
+            OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    bytes[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int offset, int length) {
+                    bytes[0] += length;
+                }
+            };
+            long start = System.nanoTime();
+            assertEquals(notes, NoteExporter.export(mDb, type, out));
+            long millis = (System.nanoTime() - start) / 1000000;
+            Log.i(TAG, "Export of " + notes + " notes as " + type + ": " + millis + "ms, "
+                    + bytes[0] / 1024 + "KB");
+        }
+    }
+
+    // Returns the detail column of EXPLAIN QUERY PLAN for the given statement, one line per step.
+    private String explainQueryPlan(String sql) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
     // A utility for converting note data to a ContentValues map.
-    private static class NoteInfo {
+    static class NoteInfo {
         String title;
         String note;
         long createDate;
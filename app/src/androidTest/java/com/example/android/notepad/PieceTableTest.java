@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.AndroidTestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests the piece table of the note editor's large-document mode.
+ */
+public class PieceTableTest extends AndroidTestCase {
+
+    /*
+     * Tests the piece table of the editor's large-document mode against a StringBuilder, on
+     * random edits: its text, its lines, and a snapshot taken along the way.
+     */
+    public void testPieceTable() throws IOException {
+        String original = NotePadProviderTest.makeLogText(64 * 1024).replace("; ", "\n") + "\ud83d\ude00 \u4e2d\u6587";
+        File file = new File(getContext().getCacheDir(), "piece_table.utf16");
+        PieceTable table = PieceTable.load(
+                new ByteArrayInputStream(original.getBytes("UTF-8")), file);
+        assertFalse(file.exists());
+        assertEquals(original, table.toString());
+        assertFalse(table.isModified());
+
+        Random random = new Random(20);
+        StringBuilder expected = new StringBuilder(original);
+        String[] inserts = { "", "x", "\n", "two\nlines", "\u4e2d\u6587\n\n" };
+        PieceTable snapshot = null;
+        String snapshotText = null;
+        for (int i = 1; i <= 2000; i++) {
+            int start = random.nextInt(expected.length() + 1);
+            int deleteCount = random.nextInt(Math.min(50, expected.length() - start) + 1);
+            String inserted = inserts[random.nextInt(inserts.length)];
+            table.replace(start, deleteCount, inserted);
+            expected.replace(start, start + deleteCount, inserted);
+
+            // Typing extends the edit.
+            for (int j = 0; j < 5; j++) {
+                table.replace(start + inserted.length() + j, 0, "t");
+                expected.insert(start + inserted.length() + j, 't');
+            }
+
+            if (i % 200 == 0) {
+                String text = expected.toString();
+                assertEquals(text, table.toString());
+                if (start < text.length()) {
+                    assertEquals(text.charAt(start), table.charAt(start));
+                }
+                assertLines(text, table, random);
+            }
+            if (i == 1000) {
+                snapshot = table.snapshot();
+                snapshotText = expected.toString();
+            }
+        }
+        assertTrue(table.isModified());
+        table.clearModified();
+        assertFalse(table.isModified());
+        assertEquals(snapshotText, snapshot.toString());
+        assertLines(snapshotText, snapshot, random);
+
+        // Deleting everything leaves a single empty line.
+        table.replace(0, table.length(), "");
+        assertEquals(0, table.length());
+        assertEquals(1, table.getLineCount());
+        assertEquals(0, table.getLineStart(0));
+        table = PieceTable.load(new ByteArrayInputStream(new byte[0]), file);
+        assertEquals("", table.toString());
+        assertEquals(1, table.getLineCount());
+    }
+
+    // Asserts that a piece table finds the same lines as the text it should hold.
+    private static void assertLines(String text, PieceTable table, Random random) {
+        ArrayList<Integer> lineStarts = new ArrayList<Integer>();
+        lineStarts.add(0);
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            lineStarts.add(i + 1);
+        }
+        assertEquals(lineStarts.size(), table.getLineCount());
+        for (int i = 0; i < 50; i++) {
+            int line = random.nextInt(lineStarts.size());
+            assertEquals(lineStarts.get(line).intValue(), table.getLineStart(line));
+            int offset = random.nextInt(text.length() + 1);
+            int expectedLine = 0;
+            while (expectedLine + 1 < lineStarts.size()
+                    && lineStarts.get(expectedLine + 1) <= offset) {
+                expectedLine++;
+            }
+            assertEquals(expectedLine, table.getLineForOffset(offset));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the query runner that the notes list searches with, against the provider.
+ */
+public class QueryRunnerTest extends ProviderTestCase2<NotePadProvider> {
+
+    // For logging benchmark results
+    private static final String TAG = "QueryRunnerTest";
+
+    private MockContentResolver mMockResolver;
+
+    public QueryRunnerTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Tests canceling searches: a search whose signal is canceled, and the query runner that the
+     * notes list searches with, fed a keystroke every 20ms. Measures the time from the last
+     * keystroke to its results, and the rows that the results hold, against keeping a cursor per
+     * keystroke.
+     */
+    public void testCancellableSearch() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        ContentValues[] notes = new ContentValues[2000];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new NotePadProviderTest.NoteInfo("Note " + i, NotePadProviderTest.makeLogText(2048)).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        String[] projection = new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            mMockResolver.query(NotePadProviderTest.searchUri("saved"), projection, null, null, null, signal);
+            fail("Expected an OperationCanceledException");
+        } catch (OperationCanceledException expected) {
+        }
+
+        // Delivers the results on a thread of their own, swapping them in as the list does.
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final String typed = "saved note 1999";
+        final Cursor[] current = new Cursor[1];
+        final int[] delivered = new int[1];
+        final long[] deliveredAt = new long[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        QueryRunner runner = new QueryRunner(mMockResolver, new Handler(thread.getLooper()),
+                new QueryRunner.Callback() {
+                    @Override
+                    public void onQueryComplete(Object cookie, Cursor cursor) {
+                        if (current[0] != null) {
+                            current[0].close();
+                        }
+                        current[0] = cursor;
+                        delivered[0]++;
+                        if (typed.equals(cookie)) {
+                            deliveredAt[0] = System.nanoTime();
+                            done.countDown();
+                        }
+                    }
+                });
+
+        long lastKeystroke = 0;
+        for (int i = 1; i <= typed.length(); i++) {
+            String query = typed.substring(0, i);
+            lastKeystroke = System.nanoTime();
+            runner.startQuery(query, NotePadProviderTest.searchUri(query), projection, null, null, null);
+            Thread.sleep(20);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        runner.close();
+        thread.quit();
+        long latencyMillis = (deliveredAt[0] - lastKeystroke) / 1000000;
+        assertTrue(delivered[0] <= typed.length());
+        int rowsHeld = current[0].getCount();
+        current[0].close();
+
+        // What a cursor kept for every keystroke would have held.
+        int rowsPerKeystroke = 0;
+        for (int i = 1; i <= typed.length(); i++) {
+            Cursor cursor = mMockResolver.query(NotePadProviderTest.searchUri(typed.substring(0, i)), projection,
+                    null, null, null);
+            rowsPerKeystroke += cursor.getCount();
+            cursor.close();
+        }
+        Log.i(TAG, typed.length() + " keystrokes 20ms apart delivered " + delivered[0]
+                + " results, the last one " + latencyMillis + "ms after its keystroke; "
+                + rowsHeld + " rows held, against " + rowsPerKeystroke
+                + " with a cursor per keystroke");
+    }
+}
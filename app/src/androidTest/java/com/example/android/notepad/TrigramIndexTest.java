@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+import android.util.Log;
+import junit.framework.TestCase;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests the trigram index of the notes list's instant search.
+ */
+public class TrigramIndexTest extends TestCase {
+
+    // For logging benchmark results
+    private static final String TAG = "TrigramIndexTest";
+
+    /*
+     * Tests that the trigram index finds every note whose title or preview contains a query, in
+     * list order, and only those.
+     */
+    public void testTrigramIndex() {
+        String[] titles = new String[2000];
+        String[] previews = new String[titles.length];
+        Random random = new Random(22);
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "title", "preview" });
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = (i % 10 == 0 ? "NOTE  " : i % 7 == 0 ? "Überblick " : "Note ") + i;
+            previews[i] = NotePadProviderTest.makeWords(random, 100);
+            cursor.addRow(new Object[] { 10000L - i, titles[i], previews[i] });
+        }
+        TrigramIndex index = TrigramIndex.build(cursor, 0, 1, 2);
+        cursor.close();
+        assertEquals(titles.length, index.getNoteCount());
+
+        // Queries of fewer than three characters can't be answered.
+        assertNull(index.search("no", 10));
+        assertNull(index.search("  n  ", 10));
+        assertEquals(0, index.search("qqqqq", 10).length);
+
+        String[] queries = new String[] { "note 1", "NOTE 19", "note  7", "te 3", "e 1999",
+                previews[5].substring(10, 13), previews[7].substring(20, 30), "ote",
+                "überb", "ÜBERBLICK 14", "1 note" };
+        for (String query : queries) {
+            String folded = TrigramIndex.fold(query);
+            ArrayList<Long> expected = new ArrayList<Long>();
+            for (int i = 0; i < titles.length; i++) {
+                if (TrigramIndex.fold(titles[i]).contains(folded)
+                        || TrigramIndex.fold(previews[i]).contains(folded)) {
+                    expected.add(10000L - i);
+                }
+            }
+
+            long[] found = index.search(query, Integer.MAX_VALUE);
+            ArrayList<Long> ids = new ArrayList<Long>();
+            for (int i = 0; i < found.length; i++) {
+                ids.add(found[i]);
+            }
+            assertEquals(query, expected, ids);
+
+            // A limit keeps the first candidates.
+            long[] first = index.search(query, 5);
+            assertEquals(Math.min(5, found.length), first.length);
+            for (int i = 0; i < first.length; i++) {
+                assertEquals(found[i], first[i]);
+            }
+        }
+    }
+
+    /*
+     * Measures the time it takes to build the trigram index of 100,000 notes, its size, and the
+     * time it takes to answer queries as they're typed.
+     */
+    public void testTrigramIndexBenchmark() {
+        final int noteCount = 100000;
+        Random random = new Random(100);
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "title", "preview" },
+                noteCount);
+        for (int i = 0; i < noteCount; i++) {
+            cursor.addRow(new Object[] { (long) noteCount - i, "Note " + i,
+                    NotePadProviderTest.makeWords(random, NotePad.Notes.PREVIEW_LENGTH) });
+        }
+
+        long start = System.nanoTime();
+        TrigramIndex index = TrigramIndex.build(cursor, 0, 1, 2);
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+        cursor.close();
+        assertEquals(noteCount, index.getNoteCount());
+
+        String typed = "note 4242 " + NotePadProviderTest.makeWords(random, 12);
+        long slowestMicros = 0;
+        long totalMicros = 0;
+        for (int i = 1; i <= typed.length(); i++) {
+            start = System.nanoTime();
+            long[] found = index.search(typed.substring(0, i), NotesList.INSTANT_RESULT_LIMIT);
+            long micros = (System.nanoTime() - start) / 1000;
+            if (i >= 3) {
+                assertNotNull(found);
+                assertTrue(found.length <= NotesList.INSTANT_RESULT_LIMIT);
+            }
+            slowestMicros = Math.max(slowestMicros, micros);
+            totalMicros += micros;
+        }
+        assertEquals(noteCount - 4242, index.search("note 4242", 10)[0]);
+        Log.i(TAG, "Trigram index of " + noteCount + " notes built in " + buildMillis + "ms, "
+                + index.getMemorySize() / 1024 + "KB; " + typed.length()
+                + " keystrokes searched in " + totalMicros / typed.length()
+                + "us on average, " + slowestMicros + "us at worst");
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs exports to files in the background, so that the UI thread only starts them and hears
+ * about their progress. Imports of text files, see {@link #importNotes}, run the same way.
+ * <p>
+ * The exports run on a dedicated executor with at most {@link #MAX_THREADS} threads, at
+ * background priority, and at most {@link #MAX_QUEUED} exports waiting for one. Each export
+ * writes through a file channel, a {@link #BUFFER_SIZE} buffer at a time, into a temporary file
+ * that's renamed to the requested file once it's complete, so a failed or canceled export
+ * leaves nothing behind. Progress, at most every {@link #PROGRESS_INTERVAL_MILLIS}, and the
+ * outcome are delivered to a {@link Listener} on the main thread.
+ */
+final class BackgroundExporter {
+
+    /**
+     * The largest number of exports that run at the same time.
+     */
+    static final int MAX_THREADS = 2;
+
+    /**
+     * The largest number of exports that wait for a thread. Further exports are rejected.
+     */
+    static final int MAX_QUEUED = 8;
+
+    /**
+     * The size of the buffer that each export writes through.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The shortest time between two progress reports of an export.
+     */
+    static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    // The number of characters of a text that an export encodes at a time.
+    private static final int TEXT_CHUNK_SIZE = 16 * 1024;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread("BackgroundExporter #" + mCount.getAndIncrement()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    };
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), THREAD_FACTORY);
+
+        // The threads go away when there's nothing to export.
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Hears about an export. Every method is called on the main thread, and exactly one of
+     * {@link #onFinished}, {@link #onFailed} and {@link #onCanceled} is called at the end.
+     */
+    interface Listener {
+        /**
+         * @param bytesWritten The number of bytes written so far.
+         * @param byteCount The number of bytes that the export writes, or -1 if it isn't known.
+         */
+        void onProgress(long bytesWritten, long byteCount);
+
+        void onFinished(File file);
+
+        void onFailed(Exception e);
+
+        void onCanceled();
+    }
+
+    /**
+     * A running or waiting export.
+     */
+    static final class Export {
+
+        // The states of an export. It ends exactly once, which is when its outcome is posted.
+        private static final int STATE_WAITING = 0;
+        private static final int STATE_RUNNING = 1;
+        private static final int STATE_ENDED = 2;
+
+        private final File mFile;
+        private final Listener mListener;
+        private final AtomicInteger mState = new AtomicInteger(STATE_WAITING);
+        private volatile boolean mCanceled;
+        private Future<?> mFuture;
+
+        // The importer of an import, which has to be told about a cancellation itself.
+        private NoteImporter mImporter;
+
+        // The time of the last progress report, on the export's thread.
+        private long mLastProgressTime;
+
+        private Export(File file, Listener listener) {
+            mFile = file;
+            mListener = listener;
+        }
+
+        /**
+         * Stops the export. It stops after the buffer it's writing, and the listener's
+         * {@link Listener#onCanceled} is called, unless it finishes first: an export that's
+         * past the point of renaming its file reports that it finished instead.
+         */
+        void cancel() {
+            mCanceled = true;
+            Future<?> future;
+            synchronized (this) {
+                future = mFuture;
+                if (mImporter != null) {
+                    mImporter.cancel();
+                }
+            }
+
+            // An export that hasn't started yet ends here, and is dropped from the queue. One
+            // that's running ends on its own thread, and reports the outcome from there.
+            if (mState.compareAndSet(STATE_WAITING, STATE_ENDED)) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onCanceled();
+                    }
+                });
+            }
+        }
+
+        boolean isCanceled() {
+            return mCanceled;
+        }
+
+        private void throwIfCanceled() throws CanceledException {
+            if (mCanceled) {
+                throw new CanceledException();
+            }
+        }
+
+        private void reportProgress(final long bytesWritten, final long byteCount,
+                boolean force) {
+            long now = SystemClock.uptimeMillis();
+            if (!force && now - mLastProgressTime < PROGRESS_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastProgressTime = now;
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(bytesWritten, byteCount);
+                }
+            });
+        }
+
+        /**
+         * Moves the export from waiting to running, on its thread. Returns false if it was
+         * canceled first, in which case it must not run.
+         */
+        private boolean begin() {
+            return mState.compareAndSet(STATE_WAITING, STATE_RUNNING);
+        }
+
+        /**
+         * Ends the export, and posts its outcome, unless it has already ended.
+         *
+         * @param failure The failure, or null.
+         * @param canceled True if it was canceled.
+         */
+        private void end(final Exception failure, final boolean canceled) {
+            if (mState.getAndSet(STATE_ENDED) == STATE_ENDED) {
+                return;
+            }
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != null) {
+                        mListener.onFailed(failure);
+                    } else if (canceled) {
+                        mListener.onCanceled();
+                    } else {
+                        mListener.onFinished(mFile);
+                    }
+                }
+            });
+        }
+    }
+
+    // Thrown inside an export that has been canceled.
+    private static final class CanceledException extends Exception {
+    }
+
+    // Writes the contents of an export to a channel.
+    private interface Writer {
+        void write(Export export, FileChannel out, ByteBuffer buffer)
+                throws IOException, CanceledException;
+    }
+
+    // This class can't be instantiated
+    private BackgroundExporter() {
+    }
+
+    /**
+     * Exports a text, such as the contents of a note, to a file in UTF-8. The text is read a
+     * chunk at a time on the export's thread, so a snapshot of a {@link PieceTable} is never
+     * copied whole.
+     *
+     * @param text The text, which mustn't change until the export is over.
+     * @param file The file to write.
+     * @param listener The listener to report to.
+     * @return The export, which can be canceled.
+     */
+    static Export exportText(final CharSequence text, File file, Listener listener) {
+        return start(file, listener, new Writer() {
+            @Override
+            public void write(Export export, FileChannel out, ByteBuffer buffer)
+                    throws IOException, CanceledException {
+                char[] chars = new char[TEXT_CHUNK_SIZE];
+                long byteCount = 0;
+                for (int start = 0; start < text.length(); ) {
+                    export.throwIfCanceled();
+                    int end = getChunk(text, start, chars);
+                    byteCount += NoteCodec.utf8Length(CharBuffer.wrap(chars, 0, end - start));
+                    start = end;
+                }
+
+                // A lone surrogate is written as '?', as the provider stores it.
+                CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                long written = 0;
+                int start = 0;
+                do {
+                    int end = getChunk(text, start, chars);
+                    CharBuffer in = CharBuffer.wrap(chars, 0, end - start);
+                    CoderResult result;
+                    do {
+                        export.throwIfCanceled();
+                        result = encoder.encode(in, buffer, end == text.length());
+                        if (result.isError()) {
+                            result.throwException();
+                        }
+                        written += drain(out, buffer);
+                        export.reportProgress(written, byteCount, false);
+                    } while (result.isOverflow());
+                    start = end;
+                } while (start < text.length());
+                while (encoder.flush(buffer).isOverflow()) {
+                    written += drain(out, buffer);
+                }
+                written += drain(out, buffer);
+                export.reportProgress(written, written, true);
+            }
+        });
+    }
+
+    /**
+     * Exports every note, as streamed by the provider from the notes URI.
+     *
+     * @param resolver The resolver to open the stream with.
+     * @param mimeType One of the export types of {@link NotePad.Notes}, such as
+     * {@link NotePad.Notes#EXPORT_ZIP_TYPE}.
+     * @param file The file to write.
+     * @param listener The listener to report to.
+     * @return The export, which can be canceled.
+     */
+    static Export exportNotes(final ContentResolver resolver, final String mimeType, File file,
+            Listener listener) {
+        return start(file, listener, new Writer() {
+            @Override
+            public void write(Export export, FileChannel out, ByteBuffer buffer)
+                    throws IOException, CanceledException {
+                AssetFileDescriptor afd = resolver.openTypedAssetFileDescriptor(
+                        NotePad.Notes.CONTENT_URI, mimeType, null);
+                if (afd == null) {
+                    throw new FileNotFoundException("No export of type " + mimeType);
+                }
+                FileInputStream stream = afd.createInputStream();
+                try {
+                    FileChannel in = stream.getChannel();
+                    long written = 0;
+                    while (in.read(buffer) >= 0) {
+                        export.throwIfCanceled();
+                        written += drain(out, buffer);
+                        export.reportProgress(written, -1, false);
+                    }
+                    written += drain(out, buffer);
+                    export.reportProgress(written, written, true);
+                } finally {
+                    // Closing the pipe early stops the provider's writer too.
+                    stream.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Imports text files as new notes with a {@link NoteImporter}. Its progress is reported in
+     * bytes of the files, and a cancellation keeps the notes of the batches imported so far.
+     *
+     * @param resolver The resolver to insert the notes with.
+     * @param files The text files to import.
+     * @param directory The directory that the files are in, which is passed to
+     * {@link Listener#onFinished}.
+     * @param listener The listener to report to.
+     * @return The import, which can be canceled.
+     */
+    static Export importNotes(final ContentResolver resolver, final List<File> files,
+            File directory, Listener listener) {
+        final Export export = new Export(directory, listener);
+        submit(export, new Runnable() {
+            @Override
+            public void run() {
+                runImport(export, resolver, files);
+            }
+        });
+        return export;
+    }
+
+    // Runs an import on the executor's thread.
+    private static void runImport(final Export export, ContentResolver resolver,
+            List<File> files) {
+        if (!export.begin()) {
+            return;
+        }
+        NoteImporter importer = new NoteImporter(resolver);
+        importer.setProgressListener(new NoteImporter.ProgressListener() {
+            @Override
+            public void onProgress(int filesImported, int fileCount, long bytesImported,
+                    long byteCount) {
+                export.reportProgress(bytesImported, byteCount, filesImported == fileCount);
+            }
+        });
+        synchronized (export) {
+            export.mImporter = importer;
+        }
+        if (export.isCanceled()) {
+            importer.cancel();
+        }
+
+        Exception failure = null;
+        try {
+            importer.importFiles(files);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        export.end(failure, failure == null && importer.isCanceled());
+    }
+
+    // Copies the chunk of a text that starts at an offset into an array, and returns the offset
+    // of its end. A chunk doesn't end between the two halves of a surrogate pair.
+    private static int getChunk(CharSequence text, int start, char[] dest) {
+        int end = Math.min(start + dest.length, text.length());
+        if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        if (text instanceof PieceTable) {
+            ((PieceTable) text).getChars(start, end, dest, 0);
+        } else if (text instanceof String) {
+            ((String) text).getChars(start, end, dest, 0);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[i - start] = text.charAt(i);
+            }
+        }
+        return end;
+    }
+
+    // Writes out the buffer, and clears it for filling. Returns the number of bytes written.
+    private static int drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return count;
+    }
+
+    private static Export start(final File file, Listener listener, final Writer writer) {
+        final Export export = new Export(file, listener);
+        submit(export, new Runnable() {
+            @Override
+            public void run() {
+                runExport(export, writer);
+            }
+        });
+        return export;
+    }
+
+    // Queues the task of an export, or reports that the queue is full.
+    private static void submit(Export export, Runnable task) {
+        try {
+            synchronized (export) {
+                export.mFuture = EXECUTOR.submit(task);
+            }
+        } catch (RejectedExecutionException e) {
+            export.end(e, false);
+        }
+    }
+
+    // Runs an export on the executor's thread.
+    private static void runExport(Export export, Writer writer) {
+        if (!export.begin()) {
+            return;
+        }
+        File partial = new File(export.mFile.getPath() + ".part");
+        Exception failure = null;
+        try {
+            export.throwIfCanceled();
+            FileOutputStream out = new FileOutputStream(partial);
+            try {
+                writer.write(export, out.getChannel(), ByteBuffer.allocateDirect(BUFFER_SIZE));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            export.throwIfCanceled();
+            if (!partial.renameTo(export.mFile)) {
+                throw new IOException("Failed to rename " + partial + " to " + export.mFile);
+            }
+        } catch (CanceledException e) {
+            partial.delete();
+            export.end(null, true);
+            return;
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // Such as the SQLException of a corrupt note.
+            failure = e;
+        }
+
+        if (failure != null) {
+            partial.delete();
+        }
+        export.end(failure, false);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Coalesces the change notifications of NotePadProvider.
+ * <p>
+ * The URIs changed within a short window are gathered, and when the window closes, one
+ * notification is sent for each of them. A URI below another gathered URI is left out, since
+ * the notification for its ancestor already reaches its observers. During a burst of writes,
+ * such as an import or rapid autosaves, the lists watching the notes then requery once per
+ * window instead of once per write. The window starts with the first change and isn't extended
+ * by later ones, so a steady stream of writes still notifies once per window.
+ * <p>
+ * With a window of 0, every notification is sent immediately, which is what the tests use.
+ */
+final class ChangeNotifier {
+
+    /**
+     * The default window, in milliseconds.
+     */
+    static final long DEFAULT_WINDOW_MILLIS = 100;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // Sends the gathered notifications when the window closes.
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // The following fields are guarded by this.
+
+    private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+
+    // The URIs changed in the current window, in order.
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // The number of changes reported, and of notifications actually sent.
+    private int mRequestedCount;
+    private int mSentCount;
+
+    ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the window in which changes are gathered. 0 sends every notification immediately.
+     * Any notifications gathered so far are sent.
+     */
+    void setWindowMillis(long windowMillis) {
+        synchronized (this) {
+            mWindowMillis = windowMillis;
+        }
+        flush();
+    }
+
+    /**
+     * Reports a change to the data at the given URI.
+     */
+    void notifyChange(Uri uri) {
+        ArrayList<Uri> uris = new ArrayList<Uri>(1);
+        uris.add(uri);
+        notifyChanges(uris);
+    }
+
+    /**
+     * Reports changes to the data at the given URIs, such as the ones a transaction changed.
+     * They're sent in the same window.
+     */
+    void notifyChanges(Collection<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        boolean immediate;
+        synchronized (this) {
+            mRequestedCount += uris.size();
+            boolean scheduled = !mPending.isEmpty();
+            mPending.addAll(uris);
+            immediate = mWindowMillis <= 0;
+            if (!immediate && !scheduled) {
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+        if (immediate) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the gathered notifications now.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            uris = collapse(mPending);
+            mPending.clear();
+            mSentCount += uris.size();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the number of changes reported so far.
+     */
+    synchronized int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * Returns the number of notifications sent so far.
+     */
+    synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    // Returns the URIs that aren't below another one of them.
+    private static List<Uri> collapse(Collection<Uri> uris) {
+        ArrayList<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (isDescendant(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    // Returns true if the URI is strictly below the ancestor.
+    private static boolean isDescendant(Uri ancestor, Uri uri) {
+        if (!TextUtils.equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorSegments = ancestor.getPathSegments();
+        List<String> segments = uri.getPathSegments();
+        return ancestorSegments.size() < segments.size()
+                && segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Upgrades the notes database in place through an ordered list of versioned steps.
+ * <p>
+ * Each {@link Migration} brings the schema from the version before it to its own version, and
+ * runs inside the transaction that {@link android.database.sqlite.SQLiteOpenHelper} opens for
+ * onUpgrade(). Because that transaction can't be split, a step that needs to copy a whole table
+ * doesn't do it there. Instead it calls {@link #scheduleCopy}, which only records the copy in
+ * the pending copies table. Once the database is open, and the upgrade has been committed, a
+ * background thread calls {@link #finishPending}, and the rows are copied in chunks of bounded
+ * size, each in its own short transaction. The helper's open lock isn't held meanwhile, so
+ * queries are served from the rows that are already there instead of waiting for the copy. The
+ * progress is committed with every chunk, so a copy that is interrupted picks up where it left
+ * off the next time the database is opened.
+ * <p>
+ * Data that can't be computed in SQL is filled in the same way by a {@link Migration#backfill}
+ * that the step schedules with {@link #scheduleBackfill}, and that {@link #finishPending} runs
+ * chunk by chunk after the copies.
+ */
+final class DatabaseMigrations {
+
+    // Used for debugging and logging
+    private static final String TAG = "DatabaseMigrations";
+
+    /**
+     * The table that records the copies that haven't finished yet.
+     */
+    static final String PENDING_COPIES_TABLE = "pending_copies";
+
+    /**
+     * The table that records the backfills that haven't finished yet.
+     */
+    static final String PENDING_BACKFILLS_TABLE = "pending_backfills";
+
+    /**
+     * The number of rows copied or filled in each transaction by {@link #finishPending}.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    // Columns of the pending copies table.
+    private static final String COLUMN_TARGET = "target";
+    private static final String COLUMN_TARGET_COLUMNS = "target_columns";
+    private static final String COLUMN_SOURCE = "source";
+    private static final String COLUMN_SOURCE_COLUMNS = "source_columns";
+    private static final String COLUMN_LAST_ROWID = "last_rowid";
+    private static final String COLUMN_END_ROWID = "end_rowid";
+    private static final String COLUMN_DROP_SOURCE = "drop_source";
+
+    private static final String[] PENDING_COPY_PROJECTION = new String[] {
+            "rowid",
+            COLUMN_TARGET,
+            COLUMN_TARGET_COLUMNS,
+            COLUMN_SOURCE,
+            COLUMN_SOURCE_COLUMNS,
+            COLUMN_LAST_ROWID,
+            COLUMN_END_ROWID,
+            COLUMN_DROP_SOURCE,
+    };
+
+    /**
+     * A single upgrade step.
+     */
+    abstract static class Migration {
+
+        /**
+         * The schema version that this step upgrades to, from the version just before it.
+         */
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Applies the step. Called inside the upgrade transaction.
+         */
+        abstract void migrate(SQLiteDatabase db);
+
+        /**
+         * Fills in the next chunk of rows, in rowid order, for a step that scheduled a backfill
+         * with {@link #scheduleBackfill}. Called in a transaction of its own for every chunk.
+         *
+         * @param afterRowId The rowid of the last row that was filled in, or 0 at the start.
+         * @param chunkSize The maximum number of rows to fill in.
+         * @return The rowid of the last row that this call filled in, or afterRowId if no rows
+         * were left.
+         */
+        long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+            return afterRowId;
+        }
+    }
+
+    // The steps, in ascending order of version.
+    private final Migration[] mMigrations;
+
+    /**
+     * @param migrations The steps, one per version, in ascending order.
+     * @throws IllegalArgumentException if the steps aren't consecutive versions.
+     */
+    DatabaseMigrations(Migration... migrations) {
+        if (migrations.length == 0) {
+            throw new IllegalArgumentException("No migrations");
+        }
+        for (int i = 1; i < migrations.length; i++) {
+            if (migrations[i].version != migrations[i - 1].version + 1) {
+                throw new IllegalArgumentException("Migration to version "
+                        + migrations[i - 1].version + " is followed by version "
+                        + migrations[i].version);
+            }
+        }
+        mMigrations = migrations;
+    }
+
+    /**
+     * Returns true if a database at the given version can be upgraded by these steps.
+     */
+    boolean canUpgrade(int oldVersion) {
+        return oldVersion >= mMigrations[0].version - 1;
+    }
+
+    /**
+     * Applies every step after oldVersion, up to and including newVersion, in order.
+     *
+     * @throws IllegalArgumentException if the database is too old to be upgraded in place.
+     */
+    void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!canUpgrade(oldVersion)) {
+            throw new IllegalArgumentException("Can't upgrade from version " + oldVersion);
+        }
+        for (Migration migration : mMigrations) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                Log.i(TAG, "Migrating database to version " + migration.version);
+                migration.migrate(db);
+            }
+        }
+    }
+
+    /**
+     * Records a copy of every row that currently exists in the source table into the target
+     * table, to be done later by {@link #copyPending}. Rows are copied in rowid order. Rows
+     * inserted after this call aren't part of the copy.
+     *
+     * @param target The table to copy into.
+     * @param targetColumns The comma separated columns of the target that are filled.
+     * @param source The table to copy from.
+     * @param sourceColumns The comma separated expressions selected from the source, matching
+     * targetColumns.
+     * @param dropSource Whether to drop the source table once the copy is done.
+     */
+    static void scheduleCopy(SQLiteDatabase db, String target, String targetColumns,
+            String source, String sourceColumns, boolean dropSource) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PENDING_COPIES_TABLE + " ("
+                + COLUMN_TARGET + " TEXT NOT NULL,"
+                + COLUMN_TARGET_COLUMNS + " TEXT NOT NULL,"
+                + COLUMN_SOURCE + " TEXT NOT NULL,"
+                + COLUMN_SOURCE_COLUMNS + " TEXT NOT NULL,"
+                + COLUMN_LAST_ROWID + " INTEGER NOT NULL,"
+                + COLUMN_END_ROWID + " INTEGER NOT NULL,"
+                + COLUMN_DROP_SOURCE + " INTEGER NOT NULL"
+                + ");");
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TARGET, target);
+        values.put(COLUMN_TARGET_COLUMNS, targetColumns);
+        values.put(COLUMN_SOURCE, source);
+        values.put(COLUMN_SOURCE_COLUMNS, sourceColumns);
+        Cursor cursor = db.rawQuery(
+                "SELECT ifnull(min(rowid) - 1, 0), ifnull(max(rowid), 0) FROM " + source, null);
+        try {
+            cursor.moveToFirst();
+            values.put(COLUMN_LAST_ROWID, cursor.getLong(0));
+            values.put(COLUMN_END_ROWID, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        values.put(COLUMN_DROP_SOURCE, dropSource ? 1 : 0);
+        db.insertOrThrow(PENDING_COPIES_TABLE, null, values);
+    }
+
+    /**
+     * Runs every pending copy, and then every pending backfill, to completion,
+     * {@link #DEFAULT_CHUNK_SIZE} rows at a time. Must not be called from onOpen(), or from
+     * anywhere else that holds the helper's lock, since every query would wait for it.
+     *
+     * @return true if there was anything to do.
+     */
+    boolean finishPending(SQLiteDatabase db) {
+        boolean changed = copyPending(db) > 0;
+        while (backfillNextChunk(db, DEFAULT_CHUNK_SIZE) >= 0) {
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Runs every pending copy to completion, {@link #DEFAULT_CHUNK_SIZE} rows at a time.
+     *
+     * @return The number of rows copied.
+     */
+    static int copyPending(SQLiteDatabase db) {
+        int total = 0;
+        int copied;
+        while ((copied = copyNextChunk(db, DEFAULT_CHUNK_SIZE)) >= 0) {
+            total += copied;
+        }
+        if (total > 0) {
+            Log.i(TAG, "Copied " + total + " rows");
+        }
+        return total;
+    }
+
+    /**
+     * Records that the step to the given version has to run its {@link Migration#backfill}
+     * once the upgrade has been committed. Called from the step's migrate().
+     */
+    static void scheduleBackfill(SQLiteDatabase db, int version) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PENDING_BACKFILLS_TABLE + " ("
+                + "version INTEGER PRIMARY KEY,"
+                + COLUMN_LAST_ROWID + " INTEGER NOT NULL"
+                + ");");
+        db.execSQL("INSERT OR IGNORE INTO " + PENDING_BACKFILLS_TABLE
+                + " (version, " + COLUMN_LAST_ROWID + ") VALUES (" + version + ", 0)");
+    }
+
+    /**
+     * Fills in the next chunk of the oldest pending backfill in a transaction of its own, and
+     * records how far it got in the same transaction.
+     *
+     * @param chunkSize The maximum number of rows to fill in.
+     * @return 1 if rows were filled in, 0 if this call finished a backfill, or -1 if there was
+     * nothing left to do.
+     */
+    int backfillNextChunk(SQLiteDatabase db, int chunkSize) {
+        if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master"
+                + " WHERE type = 'table' AND name = ?", new String[] { PENDING_BACKFILLS_TABLE }) == 0) {
+            return -1;
+        }
+
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(PENDING_BACKFILLS_TABLE,
+                    new String[] { "version", COLUMN_LAST_ROWID }, null, null, null, null,
+                    "version", "1");
+            int version;
+            long lastRowId;
+            try {
+                if (!cursor.moveToFirst()) {
+                    db.execSQL("DROP TABLE " + PENDING_BACKFILLS_TABLE);
+                    db.setTransactionSuccessful();
+                    return -1;
+                }
+                version = cursor.getInt(0);
+                lastRowId = cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+
+            Migration migration = null;
+            for (Migration m : mMigrations) {
+                if (m.version == version) {
+                    migration = m;
+                }
+            }
+
+            // A backfill left over from a step that no longer exists is dropped.
+            long chunkEnd = migration == null
+                    ? lastRowId : migration.backfill(db, lastRowId, chunkSize);
+            if (chunkEnd == lastRowId) {
+                db.delete(PENDING_BACKFILLS_TABLE, "version = " + version, null);
+                db.setTransactionSuccessful();
+                Log.i(TAG, "Finished the backfill of version " + version);
+                return 0;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_LAST_ROWID, chunkEnd);
+            db.update(PENDING_BACKFILLS_TABLE, values, "version = " + version, null);
+            db.setTransactionSuccessful();
+            return 1;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copies the next chunk of the oldest pending copy in a transaction of its own. When the
+     * copy has no more rows, the same transaction finishes it: the source is dropped if that
+     * was asked for, and the copy is removed from the pending table.
+     *
+     * @param chunkSize The maximum number of rows to copy.
+     * @return The number of rows copied, which is 0 when this call finished a copy, or -1 if
+     * there was nothing left to do.
+     */
+    static int copyNextChunk(SQLiteDatabase db, int chunkSize) {
+        if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master"
+                + " WHERE type = 'table' AND name = ?", new String[] { PENDING_COPIES_TABLE }) == 0) {
+            return -1;
+        }
+
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(PENDING_COPIES_TABLE, PENDING_COPY_PROJECTION,
+                    null, null, null, null, "rowid", "1");
+            try {
+                if (!cursor.moveToFirst()) {
+                    // Nothing left, so the bookkeeping table can go too.
+                    db.execSQL("DROP TABLE " + PENDING_COPIES_TABLE);
+                    db.setTransactionSuccessful();
+                    return -1;
+                }
+
+                long copyId = cursor.getLong(0);
+                String target = cursor.getString(1);
+                String targetColumns = cursor.getString(2);
+                String source = cursor.getString(3);
+                String sourceColumns = cursor.getString(4);
+                long lastRowId = cursor.getLong(5);
+                long endRowId = cursor.getLong(6);
+                boolean dropSource = cursor.getInt(7) != 0;
+
+                // Finds the size and the last rowid of the chunk.
+                int copied;
+                long chunkEnd;
+                Cursor chunk = db.rawQuery("SELECT count(*), max(rowid) FROM (SELECT rowid FROM "
+                        + source + " WHERE rowid > " + lastRowId + " AND rowid <= " + endRowId
+                        + " ORDER BY rowid LIMIT " + chunkSize + ")", null);
+                try {
+                    chunk.moveToFirst();
+                    copied = chunk.getInt(0);
+                    chunkEnd = chunk.getLong(1);
+                } finally {
+                    chunk.close();
+                }
+
+                if (copied == 0) {
+                    if (dropSource) {
+                        db.execSQL("DROP TABLE " + source);
+                    }
+                    db.delete(PENDING_COPIES_TABLE, "rowid = " + copyId, null);
+                    db.setTransactionSuccessful();
+                    return 0;
+                }
+
+                db.execSQL("INSERT INTO " + target + " (" + targetColumns + ") SELECT "
+                        + sourceColumns + " FROM " + source + " WHERE rowid > " + lastRowId
+                        + " AND rowid <= " + chunkEnd);
+
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_LAST_ROWID, chunkEnd);
+                db.update(PENDING_COPIES_TABLE, values, "rowid = " + copyId, null);
+
+                db.setTransactionSuccessful();
+                return copied;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+
+/**
+ * Wraps a notes cursor so that notes stored compressed by {@link NoteCodec} read as plain
+ * strings, both in this process and, through {@link #fillWindow}, in the windows that are sent
+ * to other processes.
+ */
+final class DecompressingCursor extends CrossProcessCursorWrapper {
+
+    // The index of the note column.
+    private final int mNoteColumn;
+
+    // The last note that was decoded, and the position it was decoded at, so that repeated
+    // reads of the same row only decompress it once.
+    private int mDecodedPosition = -1;
+    private String mDecoded;
+
+    private DecompressingCursor(Cursor cursor, int noteColumn) {
+        super(cursor);
+        mNoteColumn = noteColumn;
+    }
+
+    /**
+     * Wraps the cursor if it has a note column.
+     *
+     * @param cursor A cursor on the notes table.
+     * @return The wrapped cursor, or the cursor itself if it has no note column.
+     */
+    static Cursor wrap(Cursor cursor) {
+        int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (noteColumn < 0) {
+            return cursor;
+        }
+        return new DecompressingCursor(cursor, noteColumn);
+    }
+
+    // Returns true if the given column of the current row holds a compressed note.
+    private boolean isCompressed(int columnIndex) {
+        return columnIndex == mNoteColumn && super.getType(columnIndex) == FIELD_TYPE_BLOB;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return isCompressed(columnIndex) ? FIELD_TYPE_STRING : super.getType(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (!isCompressed(columnIndex)) {
+            return super.getString(columnIndex);
+        }
+        int position = getPosition();
+        if (position != mDecodedPosition) {
+            mDecoded = NoteCodec.decode(super.getBlob(columnIndex));
+            mDecodedPosition = position;
+        }
+        return mDecoded;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        if (!isCompressed(columnIndex)) {
+            return super.getBlob(columnIndex);
+        }
+        return getString(columnIndex).getBytes();
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        if (!isCompressed(columnIndex)) {
+            super.copyStringToBuffer(columnIndex, buffer);
+            return;
+        }
+        String note = getString(columnIndex);
+        if (buffer.data == null || buffer.data.length < note.length()) {
+            buffer.data = note.toCharArray();
+        } else {
+            note.getChars(0, note.length(), buffer.data, 0);
+        }
+        buffer.sizeCopied = note.length();
+    }
+
+    @Override
+    public boolean requery() {
+        mDecodedPosition = -1;
+        mDecoded = null;
+        return super.requery();
+    }
+
+    /**
+     * Returns null, so that a cursor sent to another process is copied through
+     * {@link #fillWindow}, which decodes the notes, instead of sending the window of the
+     * wrapped cursor, which holds them compressed.
+     */
+    @Override
+    public CursorWindow getWindow() {
+        return null;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        DatabaseUtils.cursorFillWindow(this, position, window);
+    }
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the edits made to a note in {@link NoteEditor}, so that typing
+ * costs a few bytes of I/O per edit however large the note is, and the note only has to be
+ * rewritten as a whole now and then.
+ * <p>
+ * The journal is a file of records, each framed by its length and a CRC32, so that a record
+ * torn by a crash is recognized and ignored with everything after it. A replace record holds an
+ * edit: a range of the text and the text that replaced it. A base record marks the point at
+ * which the text was saved to the provider, identified by its length and hash. The file starts
+ * with a base record, for the text that the journal was opened on.
+ * <p>
+ * Edits are buffered in memory, runs of typing merged into one record, and written and synced
+ * by a background thread at most {@link #SYNC_INTERVAL_MILLIS} after they were made, or on
+ * {@link #sync}. Once a base record has been written and its save committed,
+ * {@link #onSaved} rewrites the journal to start from it.
+ * <p>
+ * To recover, the journal is replayed from its last base record that matches the note in the
+ * provider: so the edits are recovered whether or not the saves that were queued when the
+ * process died were committed. A journal that matches no base is from an older version of the
+ * note, and is dropped.
+ * <p>
+ * The editors {@link #openNote open} their journals, and the list {@link #recoverAllLater
+ * recovers} the ones left behind, on the writing thread, so neither reads a journal on the UI
+ * thread, and a journal is never opened while it's being recovered.
+ */
+final class DraftJournal {
+
+    private static final String TAG = "DraftJournal";
+
+    /**
+     * The longest time that an edit stays in memory before it's written and synced.
+     */
+    static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The size of the edits since the last save after which the editor saves the note as a
+     * whole again, which bounds the time it takes to replay the journal.
+     */
+    static final int COMPACT_BYTES = 64 * 1024;
+
+    /**
+     * The number of edits since the last save after which the editor saves the note again.
+     */
+    static final int COMPACT_OPS = 1024;
+
+    /**
+     * The time after which a paused editor saves its note as a whole, if it was edited, so that
+     * the note that the list, the search and the exports read isn't stale for long.
+     */
+    static final long COMPACT_DELAY_MILLIS = 30 * 1000;
+
+    private static final String DIRECTORY = "drafts";
+    private static final String SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x4e504a31; // "NPJ1"
+    private static final byte RECORD_BASE = 1;
+    private static final byte RECORD_REPLACE = 2;
+
+    // The largest record that's believed when reading a journal back.
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // The journal files that are open in this process, which recovery leaves alone.
+    private static final HashSet<File> sOpenFiles = new HashSet<File>();
+
+    // The thread that writes every journal, in the order of the requests.
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, TAG);
+                }
+            });
+
+    // Runs the callbacks of openNote().
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final File mFile;
+
+    // Guarded by mLock: the edits that haven't been handed to the writing thread yet.
+    private final Object mLock = new Object();
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mBufferOut = new DataOutputStream(mBuffer);
+    private boolean mHasOp;
+    private int mOpStart;
+    private int mOpDeleteCount;
+    private final StringBuilder mOpText = new StringBuilder();
+    private boolean mSyncScheduled;
+    private int mBytesSinceBase;
+    private int mOpsSinceBase;
+    private int mBaseLength;
+    private int mBaseHash;
+
+    // The offset in mBuffer just past the last base record in it, or -1, and that base.
+    private int mBufferMarkerEnd = -1;
+    private int mBufferMarkerLength;
+    private int mBufferMarkerHash;
+
+    // On the writing thread: the output, and the offset in the file just past the last base
+    // record that was written since the journal was last rewritten, or -1, and that base.
+    private FileOutputStream mOut;
+    private long mFileLength;
+    private long mMarkerEnd = -1;
+    private int mMarkerLength;
+    private int mMarkerHash;
+
+    private boolean mClosed;
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            writeBuffer();
+        }
+    };
+
+    /**
+     * Returns the directory that holds the journals.
+     */
+    static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Returns the journal file of a note.
+     */
+    static File getFile(Context context, Uri noteUri) {
+        return new File(getDirectory(context), ContentUris.parseId(noteUri) + SUFFIX);
+    }
+
+    DraftJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Receives the outcome of {@link #openNote}, on the main thread.
+     */
+    interface OpenListener {
+        /**
+         * @param journal The open journal, or null if the note is gone, or is open in another
+         * editor, which journals it.
+         * @param base The text of the note in the provider, or null if the note is gone.
+         * @param text The text with the journal's edits, which is what the editor shows.
+         */
+        void onOpened(DraftJournal journal, String base, String text);
+    }
+
+    /**
+     * Reads the text of a note from the provider, and {@link #open opens} its journal on it, on
+     * the writing thread: after any recovery that was started before, so the text read is the
+     * recovered one. Returns immediately.
+     */
+    static void openNote(final File file, final ContentResolver resolver, final Uri uri,
+            final OpenListener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String base = null;
+                try {
+                    base = readNote(resolver, uri);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to read " + uri, e);
+                }
+                DraftJournal journal = null;
+                String text = base;
+                if (base != null) {
+                    journal = new DraftJournal(file);
+                    try {
+                        text = journal.open(base);
+                    } catch (IllegalStateException e) {
+                        journal = null;
+                    }
+                }
+
+                final DraftJournal opened = journal;
+                final String openedBase = base;
+                final String openedText = text;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onOpened(opened, openedBase, openedText);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Opens the journal on the text of the note in the provider. If the journal holds edits
+     * that were made to that text, and never saved, they're replayed, and the journal carries
+     * on after them. Otherwise, it starts over.
+     *
+     * @param base The text of the note in the provider.
+     * @return The text with the journal's edits, which is what the editor shows.
+     * @throws IllegalStateException if the journal is already open in this process.
+     */
+    String open(String base) {
+        synchronized (sOpenFiles) {
+            if (!sOpenFiles.add(mFile)) {
+                throw new IllegalStateException(mFile + " is already open");
+            }
+        }
+        String text = recover(mFile, base);
+        final int length = base.length();
+        final int hash = base.hashCode();
+        synchronized (mLock) {
+            mBaseLength = length;
+            mBaseHash = hash;
+        }
+        if (text == null) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    startOver(length, hash);
+                }
+            });
+            return base;
+        }
+        return text;
+    }
+
+    /**
+     * Returns true if the journal is based on the given text: the text it was opened on, or
+     * the last text passed to {@link #rebase}.
+     */
+    boolean isBasedOn(String text) {
+        synchronized (mLock) {
+            return text.length() == mBaseLength && text.hashCode() == mBaseHash;
+        }
+    }
+
+    /**
+     * Records an edit, as reported by {@link android.text.TextWatcher#onTextChanged}: the
+     * deleteCount characters at start were replaced by the inserted text. Called on the UI
+     * thread, and only buffers the edit.
+     */
+    void replace(int start, int deleteCount, CharSequence inserted) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            // Typing appends to the edit before it.
+            if (mHasOp && deleteCount == 0 && start == mOpStart + mOpText.length()) {
+                mOpText.append(inserted);
+            } else {
+                appendOp();
+                mHasOp = true;
+                mOpStart = start;
+                mOpDeleteCount = deleteCount;
+                mOpText.append(inserted);
+            }
+            if (!mSyncScheduled) {
+                mSyncScheduled = true;
+                sExecutor.schedule(mSyncTask, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns true if edits were made since the journal was opened or last rebased.
+     */
+    boolean hasEdits() {
+        synchronized (mLock) {
+            return mHasOp || mOpsSinceBase > 0;
+        }
+    }
+
+    /**
+     * Returns true if the edits since the last save are large enough that the note should be
+     * saved as a whole again.
+     */
+    boolean shouldCompact() {
+        synchronized (mLock) {
+            return mBytesSinceBase + mOpText.length() >= COMPACT_BYTES
+                    || mOpsSinceBase >= COMPACT_OPS;
+        }
+    }
+
+    /**
+     * Records that the text has been queued to be saved to the provider, so that the journal
+     * can be replayed from it.
+     */
+    void rebase(String text) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            appendOp();
+            ByteBuffer payload = ByteBuffer.allocate(8);
+            payload.putInt(text.length()).putInt(text.hashCode());
+            appendRecord(RECORD_BASE, payload.array());
+            mBufferMarkerEnd = mBuffer.size();
+            mBufferMarkerLength = mBaseLength = text.length();
+            mBufferMarkerHash = mBaseHash = text.hashCode();
+            mBytesSinceBase = 0;
+            mOpsSinceBase = 0;
+        }
+        sync();
+    }
+
+    /**
+     * Writes and syncs the buffered edits in the background, now.
+     */
+    void sync() {
+        sExecutor.execute(mSyncTask);
+    }
+
+    /**
+     * Writes and syncs the buffered edits, and waits for them to be on disk.
+     */
+    void flush() {
+        await(mSyncTask);
+    }
+
+    /**
+     * Called once the saves queued before the last {@link #rebase} have been committed, which
+     * makes the journal before it useless: the journal is rewritten to start from it, unless
+     * it has been closed since, when the file may already belong to another editor. Waits for
+     * the journal to be on disk.
+     */
+    void onSaved() {
+        await(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (mClosed) {
+                        return;
+                    }
+                }
+                writeBuffer();
+                if (mMarkerEnd >= 0) {
+                    truncate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the buffered edits, and closes the journal, leaving its file behind for the next
+     * time the note is opened. Returns immediately. The file counts as open until it has been
+     * written, so {@link #openNote} and recovery, which run on the writing thread too, find it
+     * closed and written.
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffer();
+                closeOutput();
+                release();
+            }
+        });
+    }
+
+    /**
+     * Closes the journal and deletes its file, when the note has been saved for good, reverted
+     * or deleted. Returns immediately, and the file counts as open until it's deleted.
+     */
+    void delete() {
+        synchronized (mLock) {
+            mClosed = true;
+            mBuffer.reset();
+            mHasOp = false;
+            mOpText.setLength(0);
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                mFile.delete();
+                release();
+            }
+        });
+    }
+
+    /**
+     * Waits for everything queued on the writing thread so far, such as the journals being
+     * closed. Package visible for testing.
+     */
+    static void awaitWrites() {
+        await(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * Replays the journals that were left behind by a process that died with notes open,
+     * and saves the recovered text of their notes. The journals that are open in this process
+     * are left alone.
+     *
+     * @return The number of notes whose text was recovered.
+     */
+    static int recoverAll(File directory, ContentResolver resolver) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            synchronized (sOpenFiles) {
+                if (sOpenFiles.contains(file)) {
+                    continue;
+                }
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                file.delete();
+                continue;
+            }
+
+            Uri uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
+            String base = readNote(resolver, uri);
+            if (base != null) {
+                String text = recover(file, base);
+                if (text != null && !text.equals(base)) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                    resolver.update(uri, values, null, null);
+                    count++;
+                }
+            }
+            file.delete();
+        }
+        return count;
+    }
+
+    /**
+     * Runs {@link #recoverAll} on the writing thread, ahead of the journals opened afterwards.
+     * Returns immediately. The recovered notes are saved through the provider, which tells the
+     * cursors that show them.
+     */
+    static void recoverAllLater(final File directory, final ContentResolver resolver) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recoverAll(directory, resolver);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to recover the journals in " + directory, e);
+                }
+            }
+        });
+    }
+
+    // Returns the text of a note in the provider, "" if it has none, or null if it's gone.
+    private static String readNote(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String text = cursor.getString(0);
+            return text == null ? "" : text;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replays a journal onto the text of its note in the provider.
+     *
+     * @return The text with the edits of the journal since the last base that matches, or null
+     * if there's no journal, or it matches no base.
+     */
+    static String recover(File file, String base) {
+        ArrayList<byte[]> records = readRecords(file);
+        int from = -1;
+        for (int i = records.size() - 1; i >= 0 && from < 0; i--) {
+            byte[] record = records.get(i);
+            if (record[0] == RECORD_BASE && record.length == 9) {
+                ByteBuffer payload = ByteBuffer.wrap(record, 1, 8);
+                if (payload.getInt() == base.length() && payload.getInt() == base.hashCode()) {
+                    from = i;
+                }
+            }
+        }
+        if (from < 0) {
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder(base);
+        for (int i = from + 1; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            if (record[0] != RECORD_REPLACE || record.length < 9) {
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(record, 1, 8);
+            int start = payload.getInt();
+            int deleteCount = payload.getInt();
+            if (start < 0 || deleteCount < 0 || start + deleteCount > text.length()) {
+                Log.w(TAG, "Stopped replaying " + file + " at an edit out of range");
+                break;
+            }
+            try {
+                text.replace(start, start + deleteCount,
+                        new String(record, 9, record.length - 9, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return text.toString();
+    }
+
+    // Reads the records of a journal, up to the first one that's torn or corrupt.
+    private static ArrayList<byte[]> readRecords(File file) {
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        if (!file.exists()) {
+            return records;
+        }
+        CRC32 crc = new CRC32();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                return records;
+            }
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                records.add(record);
+            }
+        } catch (EOFException e) {
+            // The end of the journal, or a record torn by a crash.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return records;
+    }
+
+    // Encodes the edit being merged into, if any, at the end of the buffer. Holds mLock.
+    private void appendOp() {
+        if (!mHasOp) {
+            return;
+        }
+        byte[] text;
+        try {
+            text = mOpText.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(8 + text.length);
+        payload.putInt(mOpStart).putInt(mOpDeleteCount).put(text);
+        appendRecord(RECORD_REPLACE, payload.array());
+        mHasOp = false;
+        mOpText.setLength(0);
+        mOpsSinceBase++;
+        mBytesSinceBase += text.length + 17;
+    }
+
+    // Frames a record at the end of the buffer. Holds mLock.
+    private void appendRecord(byte type, byte[] payload) {
+        try {
+            writeRecord(mBufferOut, type, payload);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream doesn't throw.
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeInt(payload.length + 1);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Runs a task on the writing thread, and waits for it.
+    private static void await(Runnable task) {
+        try {
+            sExecutor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void release() {
+        synchronized (sOpenFiles) {
+            sOpenFiles.remove(mFile);
+        }
+    }
+
+    // The writing thread's side.
+
+    // Writes what's in the buffer to the end of the file, and syncs it.
+    private void writeBuffer() {
+        byte[] bytes;
+        int markerEnd;
+        synchronized (mLock) {
+            mSyncScheduled = false;
+            appendOp();
+            bytes = mBuffer.toByteArray();
+            mBuffer.reset();
+            markerEnd = mBufferMarkerEnd;
+            mBufferMarkerEnd = -1;
+            if (markerEnd >= 0) {
+                mMarkerLength = mBufferMarkerLength;
+                mMarkerHash = mBufferMarkerHash;
+            }
+        }
+        if (bytes.length == 0) {
+            return;
+        }
+        try {
+            if (mOut == null) {
+                mFile.getParentFile().mkdirs();
+                mOut = new FileOutputStream(mFile, true);
+                mFileLength = mFile.length();
+            }
+            mOut.write(bytes);
+            mOut.getFD().sync();
+            if (markerEnd >= 0) {
+                mMarkerEnd = mFileLength + markerEnd;
+            }
+            mFileLength += bytes.length;
+        } catch (IOException e) {
+            // The edits are still saved with the note, only later.
+            Log.e(TAG, "Failed to write " + mFile, e);
+        }
+    }
+
+    // Starts the file over, with a base record for the given text.
+    private void startOver(int length, int hash) {
+        closeOutput();
+        writeFile(length, hash, new byte[0]);
+    }
+
+    // Rewrites the file to start from its last base record, which has been saved.
+    private void truncate() {
+        try {
+            closeOutput();
+            RandomAccessFile in = new RandomAccessFile(mFile, "r");
+            byte[] tail;
+            try {
+                tail = new byte[(int) (in.length() - mMarkerEnd)];
+                in.seek(mMarkerEnd);
+                in.readFully(tail);
+            } finally {
+                in.close();
+            }
+            writeFile(mMarkerLength, mMarkerHash, tail);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rewrite " + mFile, e);
+        }
+        mMarkerEnd = -1;
+    }
+
+    // Replaces the file, atomically, with a base record followed by the given records.
+    private void writeFile(int length, int hash, byte[] records) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            mFile.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(MAGIC);
+                ByteBuffer payload = ByteBuffer.allocate(8);
+                payload.putInt(length).putInt(hash);
+                writeRecord(data, RECORD_BASE, payload.array());
+                data.write(records);
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile, e);
+            temp.delete();
+        }
+        mMarkerEnd = -1;
+    }
+
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+            }
+            mOut = null;
+        }
+    }
+}
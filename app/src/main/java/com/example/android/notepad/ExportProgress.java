@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+
+/**
+ * Shows the progress of a {@link BackgroundExporter} export in an activity: a progress dialog,
+ * which cancels the export when it's canceled, and which only appears if the export is still
+ * running after {@link #DIALOG_DELAY_MILLIS}, so that small exports don't flash it, and a toast
+ * with the outcome. Imports are shown the same way, with their own texts.
+ */
+class ExportProgress implements BackgroundExporter.Listener {
+
+    private static final String TAG = "ExportProgress";
+
+    /**
+     * How long an export runs before its progress dialog appears.
+     */
+    static final long DIALOG_DELAY_MILLIS = 500;
+
+    private final Activity mActivity;
+    private final int mMessageId;
+    private final String mFinishedText;
+    private final String mFailedText;
+    private final Handler mHandler = new Handler();
+    private BackgroundExporter.Export mExport;
+    private ProgressDialog mDialog;
+    private boolean mDetached;
+
+    // The latest progress, shown when the dialog appears.
+    private long mBytesWritten;
+    private long mByteCount = -1;
+
+    private final Runnable mShowDialog = new Runnable() {
+        @Override
+        public void run() {
+            showDialog();
+        }
+    };
+
+    ExportProgress(Activity activity) {
+        this(activity, R.string.export_progress, "Exported to ", "Failed to export");
+    }
+
+    /**
+     * @param messageId The message of the dialog.
+     * @param finishedText The start of the toast shown when the task has finished, which is
+     * followed by the path of its file.
+     * @param failedText The toast shown when the task has failed.
+     */
+    ExportProgress(Activity activity, int messageId, String finishedText, String failedText) {
+        mActivity = activity;
+        mMessageId = messageId;
+        mFinishedText = finishedText;
+        mFailedText = failedText;
+    }
+
+    /**
+     * Starts showing the progress of an export, which must report to this listener.
+     */
+    void attach(BackgroundExporter.Export export) {
+        mExport = export;
+        mHandler.postDelayed(mShowDialog, DIALOG_DELAY_MILLIS);
+    }
+
+    /**
+     * Hides the dialog, for good, and leaves the export running. Its outcome is still shown in
+     * a toast. Called when the activity is destroyed.
+     */
+    void detach() {
+        mDetached = true;
+        dismiss();
+    }
+
+    private void showDialog() {
+        if (mDetached) {
+            return;
+        }
+        mDialog = new ProgressDialog(mActivity);
+        mDialog.setMessage(mActivity.getText(mMessageId));
+        mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDialog.setCancelable(true);
+        mDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                mExport.cancel();
+            }
+        });
+        updateDialog();
+        mDialog.show();
+    }
+
+    private void updateDialog() {
+        if (mDialog == null) {
+            return;
+        }
+        if (mByteCount > 0) {
+            // The dialog counts in KB, so that large exports fit in an int.
+            mDialog.setIndeterminate(false);
+            mDialog.setMax((int) (mByteCount / 1024));
+            mDialog.setProgress((int) (mBytesWritten / 1024));
+        } else {
+            mDialog.setIndeterminate(true);
+        }
+    }
+
+    private void dismiss() {
+        mHandler.removeCallbacks(mShowDialog);
+        if (mDialog != null) {
+            mDialog.dismiss();
+            mDialog = null;
+        }
+    }
+
+    @Override
+    public void onProgress(long bytesWritten, long byteCount) {
+        mBytesWritten = bytesWritten;
+        mByteCount = byteCount;
+        updateDialog();
+    }
+
+    @Override
+    public void onFinished(File file) {
+        dismiss();
+        Toast.makeText(mActivity.getApplicationContext(),
+                mFinishedText + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onFailed(Exception e) {
+        dismiss();
+        Log.w(TAG, mFailedText, e);
+        Toast.makeText(mActivity.getApplicationContext(), mFailedText,
+                Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onCanceled() {
+        dismiss();
+    }
+}
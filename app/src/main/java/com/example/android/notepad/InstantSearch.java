@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a {@link TrigramIndex} of the notes for the search box, so that the notes whose title
+ * or preview contain the query can be listed as it's typed, before the full-text search of the
+ * provider has had time to run.
+ * <p>
+ * The index is built on a background thread, the first time it's needed, from a snapshot of
+ * the list index of the provider. When the notes change, it's marked as stale, and it's built
+ * again the next time it's needed; until then the previous one keeps answering. So a search can
+ * be off by the latest edits for a moment, and the full-text search that follows corrects it.
+ * <p>
+ * The methods must be called on the thread of the handler, which is also where the index is
+ * swapped in.
+ */
+final class InstantSearch {
+
+    private static final String TAG = "InstantSearch";
+
+    // The columns that the index is built from, in list order.
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,                 // 0
+            NotePad.Notes.COLUMN_NAME_TITLE,   // 1
+            NotePad.Notes.COLUMN_NAME_PREVIEW  // 2
+    };
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+    private final ExecutorService mExecutor;
+
+    // The latest index, or null until the first one is built.
+    private TrigramIndex mIndex;
+
+    // True if the notes have changed since the latest index was started, and while an index is
+    // being built.
+    private boolean mStale = true;
+    private boolean mBuilding;
+
+    private boolean mClosed;
+
+    /**
+     * @param resolver The resolver to read the notes from.
+     * @param handler The handler of the thread that the instance is used on.
+     */
+    InstantSearch(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mHandler = handler;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mStale = true;
+            }
+        };
+        resolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Starts building the index if it's missing or stale, such as when the search box gets the
+     * focus, so that it's ready by the time the query is typed.
+     */
+    void prepare() {
+        if (mClosed || !mStale || mBuilding) {
+            return;
+        }
+        mStale = false;
+        mBuilding = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TrigramIndex index = build();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBuilding = false;
+                        if (mClosed) {
+                            return;
+                        } else if (index != null) {
+                            mIndex = index;
+                        } else {
+                            mStale = true;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns true once an index has been built.
+     */
+    boolean isReady() {
+        return mIndex != null;
+    }
+
+    /**
+     * Finds the notes whose title or preview contains the query, from the latest index.
+     * Starts building a new index if it's stale.
+     *
+     * @param limit The largest number of notes to return.
+     * @return The IDs of the notes, in list order, or null if there's no index yet or the query
+     * is shorter than three characters.
+     */
+    long[] search(String query, int limit) {
+        prepare();
+        return mIndex == null ? null : mIndex.search(query, limit);
+    }
+
+    /**
+     * Stops watching the provider and drops the index. The instance can't be used afterwards.
+     */
+    void close() {
+        mClosed = true;
+        mIndex = null;
+        mExecutor.shutdownNow();
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    // Reads the notes and builds an index of them, on the background thread.
+    private TrigramIndex build() {
+        long start = SystemClock.uptimeMillis();
+        Uri uri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SNAPSHOT_QUERY_PARAMETER, "true")
+                .build();
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, PROJECTION, null, null, NotePad.Notes.PAGE_SORT_ORDER);
+            if (cursor == null) {
+                return null;
+            }
+            TrigramIndex index = TrigramIndex.build(cursor, 0, 1, 2);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Indexed " + index.getNoteCount() + " notes in "
+                        + (SystemClock.uptimeMillis() - start) + "ms, "
+                        + index.getMemorySize() / 1024 + "KB");
+            }
+            return index;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Couldn't build the search index", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the selection that reads the notes found by {@link #search}.
+     */
+    static String makeSelection(long[] ids) {
+        StringBuilder selection = new StringBuilder(ids.length * 8 + 16);
+        selection.append(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+}
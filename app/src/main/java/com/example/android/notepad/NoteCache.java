@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+/**
+ * A cache of recently read notes, keyed by _ID and bounded by the memory that the rows take.
+ * NotePadProvider serves queries on a single note from it, including the ones that back the
+ * note streams, so that opening the same note again doesn't touch the database.
+ * <p>
+ * A row read from the database may be stale by the time it's put into the cache, if the note
+ * was written in the meantime. Every invalidation therefore bumps a generation, and a row is
+ * only cached if no invalidation happened since the generation was taken before reading it.
+ */
+final class NoteCache {
+
+    /**
+     * The columns of a cached row, in order.
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+    };
+
+    // The estimated size of a row, apart from its strings.
+    private static final int ROW_OVERHEAD = 128;
+
+    private final LruCache<Long, Object[]> mCache;
+
+    // Rows larger than this aren't cached, so that one huge note can't flush all of the others.
+    private final int mMaxRowSize;
+
+    // Incremented by every invalidation. Guarded by this.
+    private long mGeneration;
+
+    /**
+     * @param maxSize The maximum memory taken by the cached rows, in bytes.
+     */
+    NoteCache(int maxSize) {
+        mCache = new LruCache<Long, Object[]>(maxSize) {
+            @Override
+            protected int sizeOf(Long id, Object[] row) {
+                return NoteCache.sizeOf(row);
+            }
+        };
+        mMaxRowSize = maxSize / 8;
+    }
+
+    // Estimates the memory taken by a row: two bytes per character of its strings.
+    private static int sizeOf(Object[] row) {
+        int size = ROW_OVERHEAD;
+        for (Object value : row) {
+            if (value instanceof String) {
+                size += ((String) value).length() * 2;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns true if every column in the projection can be served from a cached row.
+     *
+     * @param projection The requested columns, or null for all of them.
+     */
+    static boolean supports(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the current generation, to pass to {@link #put} for a row read after this call.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the cached row of a note, or null. Counts as a hit or a miss.
+     */
+    Object[] get(long id) {
+        return mCache.get(id);
+    }
+
+    /**
+     * Caches a row, unless the cache was invalidated since the generation was taken.
+     *
+     * @param id The _ID of the note.
+     * @param row The values of {@link #COLUMNS}, see {@link #readRow}.
+     * @param generation The result of {@link #getGeneration} from before the row was read.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration && sizeOf(row) <= mMaxRowSize) {
+            mCache.put(id, row);
+        }
+    }
+
+    /**
+     * Drops the cached row of a note that was written or deleted.
+     */
+    synchronized void remove(long id) {
+        mGeneration++;
+        mCache.remove(id);
+    }
+
+    /**
+     * Drops every cached row, after a write whose notes aren't known.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    /**
+     * Reads the current row of a cursor whose columns are {@link #COLUMNS}, and whose notes are
+     * decoded.
+     */
+    static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Returns a cursor with one row, made of the requested columns of a cached row.
+     *
+     * @param row A cached row.
+     * @param projection The requested columns, which must be {@link #supports supported}, or
+     * null for all of them.
+     */
+    static Cursor newCursor(Object[] row, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            values[i] = row[indexOf(projection[i])];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    int size() {
+        return mCache.size();
+    }
+
+    int maxSize() {
+        return mCache.maxSize();
+    }
+}
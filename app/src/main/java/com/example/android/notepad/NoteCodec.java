@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.SQLException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Compresses large note bodies for storage in the notes table.
+ * <p>
+ * Notes shorter than {@link #COMPRESSION_THRESHOLD} characters are stored as TEXT, unchanged.
+ * Longer notes are stored as a BLOB that starts with a one byte codec tag, followed by the
+ * length of the UTF-8 text as a big-endian int, followed by the compressed text. The type of
+ * the stored value tells the two forms apart, so existing rows need no conversion, and the tag
+ * leaves room for other codecs later.
+ */
+final class NoteCodec {
+
+    /**
+     * Notes with at least this many characters are compressed. Below it, the savings don't pay
+     * for the CPU time, and short notes are the ones the UI reads most often.
+     */
+    static final int COMPRESSION_THRESHOLD = 16 * 1024;
+
+    /**
+     * The codec tag of a note compressed with {@link Deflater} at {@link Deflater#BEST_SPEED}.
+     */
+    static final byte CODEC_DEFLATE = 1;
+
+    /**
+     * The tag that {@link #decode(InputStream, OutputStream, byte[])} expects in front of a note
+     * stored as TEXT, followed by its UTF-8 bytes. It's never stored.
+     */
+    static final byte CODEC_NONE = 0;
+
+    /**
+     * The size of the tag and the length that precede the compressed data.
+     */
+    static final int HEADER_SIZE = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // This class can't be instantiated
+    private NoteCodec() {
+    }
+
+    /**
+     * Returns the value to store for a note: the note itself if it's short, or if it doesn't
+     * compress, and the encoded BLOB otherwise.
+     *
+     * @param note The note text, or null.
+     * @return A String or a byte[] to put into the note column.
+     */
+    static Object encode(String note) {
+        if (note == null || note.length() < COMPRESSION_THRESHOLD) {
+            return note;
+        }
+
+        byte[] text = note.getBytes(UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 4 + HEADER_SIZE);
+            out.write(CODEC_DEFLATE);
+            out.write(text.length >>> 24);
+            out.write(text.length >>> 16);
+            out.write(text.length >>> 8);
+            out.write(text.length);
+
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+
+                // Incompressible text, such as text that's already been compressed, is stored
+                // as it is.
+                if (out.size() >= text.length) {
+                    return note;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes a note BLOB written by {@link #encode}.
+     *
+     * @param value The stored value.
+     * @return The note text.
+     * @throws SQLException if the value isn't a note that this codec wrote.
+     */
+    static String decode(byte[] value) {
+        int length = decodeLength(value);
+        byte[] text = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value, HEADER_SIZE, value.length - HEADER_SIZE);
+            int offset = 0;
+            while (offset < length) {
+                int count = inflater.inflate(text, offset, length - offset);
+                // Once the stream has finished, or stalled for input it won't get, inflate()
+                // keeps returning 0, so a header that claims more text than is stored would
+                // otherwise loop here forever.
+                if (count == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new SQLException("Truncated note");
+                }
+                offset += count;
+            }
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupt note: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return new String(text, UTF_8);
+    }
+
+    /**
+     * Returns the length of the UTF-8 text of a note BLOB written by {@link #encode}, from its
+     * header, without decompressing it.
+     *
+     * @param value The stored value, or at least its first {@link #HEADER_SIZE} bytes.
+     * @throws SQLException if the value isn't a note that this codec wrote.
+     */
+    static int decodeLength(byte[] value) {
+        if (value.length < HEADER_SIZE || value[0] != CODEC_DEFLATE) {
+            throw new SQLException("Unknown note codec");
+        }
+        int length = (value[1] & 0xff) << 24 | (value[2] & 0xff) << 16
+                | (value[3] & 0xff) << 8 | (value[4] & 0xff);
+        if (length < 0) {
+            throw new SQLException("Corrupt note: negative length");
+        }
+        return length;
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoding of a note, or of a part of one, without encoding
+     * it.
+     *
+     * @param note The note text, or null, whose length is 0.
+     */
+    static int utf8Length(CharSequence note) {
+        if (note == null) {
+            return 0;
+        }
+        int length = 0;
+        int count = note.length();
+        for (int i = 0; i < count; i++) {
+            char c = note.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                length += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(note.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // A lone surrogate is encoded as '?'.
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a note from a stream into the UTF-8 bytes of its text, one buffer at a time, so
+     * that the memory taken doesn't depend on the size of the note.
+     *
+     * @param in The stored value: a BLOB written by {@link #encode}, or the {@link #CODEC_NONE}
+     * tag followed by the UTF-8 bytes of a note stored as TEXT.
+     * @param out The stream that the UTF-8 text is written to.
+     * @param buffer A buffer to copy through.
+     * @return The number of bytes written.
+     * @throws SQLException if the value isn't a note that this codec wrote.
+     * @throws IOException if reading or writing fails.
+     */
+    static long decode(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int codec = in.read();
+        if (codec == CODEC_NONE) {
+            return copy(in, out, buffer);
+        } else if (codec != CODEC_DEFLATE) {
+            throw new SQLException("Unknown note codec");
+        }
+
+        DataInputStream header = new DataInputStream(in);
+        int length;
+        try {
+            length = header.readInt();
+        } catch (EOFException e) {
+            throw new SQLException("Truncated note");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            long count;
+            try {
+                count = copy(new InflaterInputStream(in, inflater, buffer.length), out, buffer);
+            } catch (ZipException e) {
+                throw new SQLException("Corrupt note: " + e.getMessage());
+            } catch (EOFException e) {
+                throw new SQLException("Truncated note");
+            }
+            if (count != length) {
+                throw new SQLException("Truncated note");
+            }
+            return count;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.SQLException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary deltas between two versions of a note, for the revision history.
+ * <p>
+ * A delta turns a source into a target with two kinds of instructions: copy a range of the
+ * source, and insert literal bytes. It starts with the lengths of both, as varints. The common
+ * prefix and suffix of the two versions are single copies. Between them, the source is indexed
+ * by the hash of each aligned {@link #BLOCK_SIZE} byte block, and the target is scanned with a
+ * rolling hash: a block that's found in the source becomes a copy, extended as far as both
+ * agree, and the bytes that aren't found become inserts. So a delta takes about as many bytes
+ * as the edit that it describes, whatever the size of the note, and is applied in one pass.
+ */
+final class NoteDelta {
+
+    /**
+     * The size of the blocks of the source that a copy is found from. Shorter matches are
+     * inserted.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    // The multiplier of the rolling hash, and its power for the byte leaving the window.
+    private static final int PRIME = 0x01000193;
+    private static final int PRIME_POWER;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            power *= PRIME;
+        }
+        PRIME_POWER = power;
+    }
+
+    // This class can't be instantiated
+    private NoteDelta() {
+    }
+
+    /**
+     * Returns the delta that turns the source into the target.
+     */
+    static byte[] create(byte[] source, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, source.length);
+        writeVarint(out, target.length);
+
+        int prefix = 0;
+        int max = Math.min(source.length, target.length);
+        while (prefix < max && source[prefix] == target[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        max -= prefix;
+        while (suffix < max
+                && source[source.length - 1 - suffix] == target[target.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        if (prefix > 0) {
+            writeCopy(out, 0, prefix);
+        }
+        diff(out, source, prefix, source.length - suffix, target, prefix, target.length - suffix);
+        if (suffix > 0) {
+            writeCopy(out, source.length - suffix, suffix);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies a delta written by {@link #create} to its source.
+     *
+     * @return The target.
+     * @throws SQLException if the delta is corrupt, or isn't for this source.
+     */
+    static byte[] apply(byte[] source, byte[] delta) {
+        int[] position = new int[1];
+        if (readVarint(delta, position) != source.length) {
+            throw new SQLException("Revision delta for another source");
+        }
+        int targetLength = readVarint(delta, position);
+        if (targetLength < 0) {
+            throw new SQLException("Corrupt revision delta");
+        }
+        byte[] target = new byte[targetLength];
+        int offset = 0;
+        while (position[0] < delta.length) {
+            int op = delta[position[0]++];
+            if (op == OP_COPY) {
+                int start = readVarint(delta, position);
+                int length = readVarint(delta, position);
+                if (start < 0 || length < 0 || start > source.length - length
+                        || length > target.length - offset) {
+                    throw new SQLException("Corrupt revision delta");
+                }
+                System.arraycopy(source, start, target, offset, length);
+                offset += length;
+            } else if (op == OP_INSERT) {
+                int length = readVarint(delta, position);
+                if (length < 0 || length > target.length - offset
+                        || length > delta.length - position[0]) {
+                    throw new SQLException("Corrupt revision delta");
+                }
+                System.arraycopy(delta, position[0], target, offset, length);
+                position[0] += length;
+                offset += length;
+            } else {
+                throw new SQLException("Corrupt revision delta");
+            }
+        }
+        if (offset != target.length) {
+            throw new SQLException("Truncated revision delta");
+        }
+        return target;
+    }
+
+    // Writes the instructions that turn source[sourceStart, sourceEnd) into
+    // target[targetStart, targetEnd).
+    private static void diff(ByteArrayOutputStream out, byte[] source, int sourceStart,
+            int sourceEnd, byte[] target, int targetStart, int targetEnd) {
+        int blocks = (sourceEnd - sourceStart) / BLOCK_SIZE;
+        if (blocks == 0 || targetEnd - targetStart < BLOCK_SIZE) {
+            writeInsert(out, target, targetStart, targetEnd - targetStart);
+            return;
+        }
+
+        // A direct-mapped table of block offsets, by hash, about twice as large as the number
+        // of blocks. A colliding block only costs a missed copy.
+        int bits = 32 - Integer.numberOfLeadingZeros(blocks * 2 - 1);
+        int[] table = new int[1 << bits];
+        Arrays.fill(table, -1);
+        for (int i = sourceStart; i + BLOCK_SIZE <= sourceEnd; i += BLOCK_SIZE) {
+            table[slot(hash(source, i), bits)] = i;
+        }
+
+        int literal = targetStart;
+        int j = targetStart;
+        int h = hash(target, j);
+        while (j + BLOCK_SIZE <= targetEnd) {
+            int candidate = table[slot(h, bits)];
+            if (candidate >= 0 && matches(source, candidate, target, j)) {
+                // Extends the match backwards into the pending literal, then forwards.
+                while (j > literal && candidate > sourceStart
+                        && source[candidate - 1] == target[j - 1]) {
+                    candidate--;
+                    j--;
+                }
+                int length = 0;
+                while (candidate + length < sourceEnd && j + length < targetEnd
+                        && source[candidate + length] == target[j + length]) {
+                    length++;
+                }
+                writeInsert(out, target, literal, j - literal);
+                writeCopy(out, candidate, length);
+                j += length;
+                literal = j;
+                if (j + BLOCK_SIZE <= targetEnd) {
+                    h = hash(target, j);
+                }
+            } else {
+                if (j + BLOCK_SIZE < targetEnd) {
+                    h = (h - target[j] * PRIME_POWER) * PRIME + target[j + BLOCK_SIZE];
+                }
+                j++;
+            }
+        }
+        writeInsert(out, target, literal, targetEnd - literal);
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            h = h * PRIME + bytes[offset + i];
+        }
+        return h;
+    }
+
+    private static int slot(int hash, int bits) {
+        return (hash * 0x9e3779b9) >>> (32 - bits);
+    }
+
+    private static boolean matches(byte[] source, int sourceOffset, byte[] target,
+            int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (source[sourceOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int start, int length) {
+        out.write(OP_COPY);
+        writeVarint(out, start);
+        writeVarint(out, length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int start,
+            int length) {
+        if (length > 0) {
+            out.write(OP_INSERT);
+            writeVarint(out, length);
+            out.write(bytes, start, length);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new SQLException("Truncated revision delta");
+            }
+            int b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new SQLException("Corrupt revision delta");
+    }
+}
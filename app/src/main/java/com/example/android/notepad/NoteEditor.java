@@ -37,6 +37,9 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -44,11 +47,10 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
-import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * This Activity handles "editing" a note, where editing is responding to
@@ -75,6 +77,27 @@ public class NoteEditor extends Activity {
             NotePad.Notes.COLUMN_NAME_NOTE
     };
 
+    /*
+     * The projection of a note that's edited in large-document mode, whose text is streamed
+     * rather than read through the cursor.
+     */
+    private static final String[] LARGE_NOTE_PROJECTION =
+        new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE
+    };
+
+    /**
+     * The size of the text of a note, in UTF-8 bytes, from which it's edited in large-document
+     * mode. See {@link NotePad.Notes#COLUMN_NAME_NOTE_SIZE}.
+     */
+    static final int LARGE_NOTE_SIZE = 1024 * 1024;
+
+    /**
+     * The number of characters of a large note that are put in the EditText at a time.
+     */
+    static final int WINDOW_SIZE = 32 * 1024;
+
     // A label for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
 
@@ -91,13 +114,67 @@ public class NoteEditor extends Activity {
     private String mOriginalContent;
     private static final int REQUEST_WRITE_STORAGE = 112;
 
+    // Shows the progress of the running export, if any.
+    private ExportProgress mExportProgress;
+
+    // Records the edits made since the note was last saved.
+    private DraftJournal mJournal;
+
+    // The callback of the journal that's being opened, if any. Nothing is saved until it's open.
+    private DraftJournal.OpenListener mJournalOpener;
+
+    // Saves the note as a whole once the editor has been paused for a while.
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+            compactJournal();
+        }
+    };
+
+    /*
+     * Large-document mode. The text of the note is a piece table, of which the EditText holds a
+     * window, [mWindowStart, mWindowEnd), that moves as the user scrolls. Edits made in the
+     * window are applied to the piece table as they're made.
+     */
+    private boolean mLargeNote;
+    private PieceTable mDocument;
+    private int mWindowStart;
+    private int mWindowEnd;
+
+    // True while the window moves, when the EditText's changes aren't edits.
+    private boolean mMovingWindow;
+
+    // The thread that loads the large note, if it's still running.
+    private Thread mLoader;
+
+    // True between onResume() and onPause().
+    private boolean mResumed;
+
+    // True once the note has been shown. Until then the EditText is disabled and empty, and
+    // nothing is saved or deleted from it.
+    private boolean mLoaded;
+
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
     public static class LinedEditText extends EditText {
+
+        /**
+         * Receives the scroll changes of a LinedEditText.
+         */
+        interface OnScrollListener {
+            void onScrollChanged(LinedEditText view);
+        }
+
         private Rect mRect;
+        private Rect mClip;
         private Paint mPaint;
+        private OnScrollListener mOnScrollListener;
+
+        // The end points of the ruled lines of a frame, four coordinates per line, reused from
+        // frame to frame and grown as needed.
+        private float[] mPoints = new float[0];
 
         // This constructor is used by LayoutInflater
         public LinedEditText(Context context, AttributeSet attrs) {
@@ -105,11 +182,27 @@ public class NoteEditor extends Activity {
 
             // Creates a Rect and a Paint object, and sets the style and color of the Paint object.
             mRect = new Rect();
+            mClip = new Rect();
             mPaint = new Paint();
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setColor(0x800000FF);
         }
 
+        /**
+         * Sets the listener that's called whenever the text is scrolled.
+         */
+        void setOnScrollListener(OnScrollListener listener) {
+            mOnScrollListener = listener;
+        }
+
+        @Override
+        protected void onScrollChanged(int left, int top, int oldLeft, int oldTop) {
+            super.onScrollChanged(left, top, oldLeft, oldTop);
+            if (mOnScrollListener != null) {
+                mOnScrollListener.onScrollChanged(this);
+            }
+        }
+
         /**
          * This is called to draw the LinedEditText object
          * @param canvas The canvas on which the background is drawn.
@@ -117,31 +210,73 @@ public class NoteEditor extends Activity {
         @Override
         protected void onDraw(Canvas canvas) {
 
-            // Gets the number of lines of text in the View.
-            int count = getLineCount();
+            // Draws the ruled lines behind the text
+            drawRuledLines(canvas);
+
+            // Finishes up by calling the parent method
+            super.onDraw(canvas);
+        }
+
+        /**
+         * Draws one line under every line of text that's on screen, one dip below its baseline.
+         * <p>
+         * A long note has far more lines than fit on screen, and the canvas clips every line
+         * that's scrolled out of view anyway, so only the lines that cross the clip bounds are
+         * looked up, through the binary search of {@link Layout#getLineForVertical}, and they're
+         * drawn in a single call. A frame costs the same in a 50,000 line note as in a short one.
+         *
+         * @param canvas The canvas on which the background is drawn.
+         * @return The number of lines drawn.
+         */
+        int drawRuledLines(Canvas canvas) {
+
+            // Gets the layout of the text, which isn't there until the View has been measured.
+            Layout layout = getLayout();
+            Rect clip = mClip;
+            if (layout == null || getLineCount() == 0 || !canvas.getClipBounds(clip)) {
+                return 0;
+            }
 
             // Gets the global Rect and Paint objects
             Rect r = mRect;
             Paint paint = mPaint;
 
             /*
-             * Draws one line in the rectangle for every line of text in the EditText
+             * Finds the lines of text that cross the clip bounds. The clip is in the coordinates
+             * of the View's content, scrolling included, and the layout's lines are offset from
+             * them by the padding, which is the difference between the baselines of both.
+             */
+            int offset = getLineBounds(0, r) - layout.getLineBaseline(0);
+            int first = layout.getLineForVertical(clip.top - offset);
+            int last = layout.getLineForVertical(clip.bottom - offset);
+
+            int count = last - first + 1;
+            if (mPoints.length < count * 4) {
+                mPoints = new float[count * 4];
+            }
+            float[] points = mPoints;
+
+            /*
+             * Collects one line in the rectangle for every line of text in the clip bounds
              */
             for (int i = 0; i < count; i++) {
 
                 // Gets the baseline coordinates for the current line of text
-                int baseline = getLineBounds(i, r);
+                int baseline = getLineBounds(first + i, r);
 
                 /*
-                 * Draws a line in the background from the left of the rectangle to the right,
-                 * at a vertical position one dip below the baseline, using the "paint" object
-                 * for details.
+                 * A line in the background from the left of the rectangle to the right, at a
+                 * vertical position one dip below the baseline.
                  */
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                points[i * 4] = r.left;
+                points[i * 4 + 1] = baseline + 1;
+                points[i * 4 + 2] = r.right;
+                points[i * 4 + 3] = baseline + 1;
             }
 
-            // Finishes up by calling the parent method
-            super.onDraw(canvas);
+            // Draws them all at once, using the "paint" object for details.
+            canvas.drawLines(points, 0, count * 4, paint);
+            return count;
         }
     }
 
@@ -220,9 +355,12 @@ public class NoteEditor extends Activity {
          * the block will be momentary, but in a real app you should use
          * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
+        mLargeNote = mState == STATE_EDIT && isLargeNote(mUri);
         mCursor = managedQuery(
             mUri,         // The URI that gets multiple notes from the provider.
-            PROJECTION,   // A projection that returns the note ID and note content for each note.
+            // A projection that returns the note ID and note content for each note, or only
+            // the note ID for a large note.
+            mLargeNote ? LARGE_NOTE_PROJECTION : PROJECTION,
             null,         // No "where" clause selection criteria.
             null,         // No "where" clause selection values.
             null          // Use the default sort order (modification date, descending)
@@ -243,6 +381,41 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // Records every edit in the journal, which costs a few bytes however large the note is.
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (mJournal != null) {
+                    mJournal.replace(start, before, s.subSequence(start, start + count));
+                }
+
+                // In large-document mode, applies the edit to the whole text.
+                if (mDocument != null && !mMovingWindow) {
+                    mDocument.replace(mWindowStart + start, before,
+                            s.subSequence(start, start + count));
+                    mWindowEnd += count - before;
+                }
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
+        // Moves the window of a large note when the user scrolls close to either of its ends.
+        if (mLargeNote) {
+            ((LinedEditText) mText).setOnScrollListener(new LinedEditText.OnScrollListener() {
+                @Override
+                public void onScrollChanged(LinedEditText view) {
+                    onWindowScrolled();
+                }
+            });
+        }
+
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
          * location in the saved Instance state. This gets the state.
@@ -263,12 +436,49 @@ public class NoteEditor extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+        mText.removeCallbacks(mCompactTask);
 
+        /*
+         * A save of the note that's still waiting would be read back stale, so the note is
+         * shown once the save is committed, which is usually a moment later. Until then, the
+         * EditText keeps what it had, or stays disabled if the note hasn't been shown yet.
+         */
+        NoteSaveQueue queue = NoteSaveQueue.getInstance(this);
+        if (mCursor != null && queue.isPending(mUri)) {
+            if (!mLoaded) {
+                mText.setEnabled(false);
+            }
+            queue.whenCommitted(new Runnable() {
+                @Override
+                public void run() {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mResumed) {
+                                showNote();
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        showNote();
+    }
+
+    // Reads the note back, and shows it. Called when the editor is resumed.
+    private void showNote() {
         /*
          * mCursor is initialized, since onCreate() always precedes onResume for any running
          * process. This tests that it's not null, since it should always contain data.
          */
         if (mCursor != null) {
+            if (!mLoaded) {
+                mLoaded = true;
+                mText.setEnabled(true);
+            }
+
             // Requery in case something changed while paused (such as the title)
             mCursor.requery();
 
@@ -299,11 +509,44 @@ public class NoteEditor extends Activity {
              * it should not move the cursor. This helps the user to continue editing or entering.
              */
 
+            // A large note is loaded once, in the background. After that, the text in the piece
+            // table is the current one, since it's what the editor saved.
+            if (mLargeNote) {
+                if (mDocument == null && mLoader == null) {
+                    loadLargeNote();
+                }
+                return;
+            }
+
             // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
             // the text cursor's position.
             int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
             String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
+            if (note == null) {
+                note = "";
+            }
+
+            // If the note hasn't changed since the journal last saw it, the text being edited is
+            // still current, and the edits since the last save are in the journal. Otherwise,
+            // opens the journal on the note, which brings back any edits that a killed process
+            // didn't save. The journal is read in the background, and the EditText is disabled
+            // until it's open.
+            if (mJournalOpener == null && (mJournal == null || !mJournal.isBasedOn(note))) {
+                if (mJournal != null) {
+                    mJournal.close();
+                    mJournal = null;
+                }
+                mText.setTextKeepState(note);
+                mText.setEnabled(false);
+                mJournalOpener = new DraftJournal.OpenListener() {
+                    @Override
+                    public void onOpened(DraftJournal journal, String base, String text) {
+                        onJournalOpened(this, journal, text);
+                    }
+                };
+                DraftJournal.openNote(DraftJournal.getFile(this, mUri), getContentResolver(),
+                        mUri, mJournalOpener);
+            }
 
             // Stores the original note text, to allow the user to revert changes.
             if (mOriginalContent == null) {
@@ -350,6 +593,12 @@ public class NoteEditor extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
+
+        // The EditText is still empty if the note hasn't been shown, so there's nothing to save.
+        if (!mLoaded) {
+            return;
+        }
 
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
@@ -357,7 +606,23 @@ public class NoteEditor extends Activity {
          * exception or error.
          *
          */
-        if (mCursor != null) {
+        if (mCursor != null && mLargeNote) {
+
+            /*
+             * A large note is saved from its piece table, if it was edited. It's only turned
+             * into a String on the save queue's thread. Nothing is saved while it's loading.
+             */
+            if (mDocument == null) {
+                return;
+            }
+            if (isFinishing() && mDocument.length() == 0) {
+                setResult(RESULT_CANCELED);
+                deleteNote();
+            } else if (mDocument.isModified()) {
+                NoteSaveQueue.getInstance(this).saveText(mUri, mDocument.snapshot());
+                mDocument.clearModified();
+            }
+        } else if (mCursor != null) {
 
             // Get the current note text.
             String text = mText.getText().toString();
@@ -373,18 +638,35 @@ public class NoteEditor extends Activity {
                 setResult(RESULT_CANCELED);
                 deleteNote();
 
+            // The note can't have been edited while its journal is opening.
+            } else if (mJournalOpener != null) {
+                return;
+
                 /*
                  * Writes the edits to the provider. The note has been edited if an existing note was
                  * retrieved into the editor *or* if a new note was inserted. In the latter case,
                  * onCreate() inserted a new empty note into the provider, and it is this new note
                  * that is being edited.
                  */
+            } else if (mState == STATE_EDIT && !isFinishing() && mJournal != null
+                    && !mJournal.shouldCompact()) {
+                // The edits since the last save are in the journal, which only has to be synced.
+                // The whole note is saved when the editor finishes, once the journal grows, or
+                // once the editor has been paused for a while.
+                mJournal.sync();
+                mText.postDelayed(mCompactTask, DraftJournal.COMPACT_DELAY_MILLIS);
             } else if (mState == STATE_EDIT) {
                 // Creates a map to contain the new values for the columns
                 updateNote(text, null);
+                if (mJournal != null) {
+                    mJournal.rebase(text);
+                }
             } else if (mState == STATE_INSERT) {
                 updateNote(text, text);
                 mState = STATE_EDIT;
+                if (mJournal != null) {
+                    mJournal.rebase(text);
+                }
           }
         }
     }
@@ -423,6 +705,12 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
+        // The original text of a large note isn't kept, so it can't be reverted to.
+        if (mLargeNote) {
+            menu.findItem(R.id.menu_revert).setVisible(false);
+            return super.onPrepareOptionsMenu(menu);
+        }
+
         // Check if note has changed and enable/disable the revert option
         int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
         String savedNote = mCursor.getString(colNoteIndex);
@@ -450,8 +738,11 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         switch (item.getItemId()) {
             case R.id.menu_save:
-                String text = mText.getText().toString();
-                updateNote(text, null);
+                // A large note is saved by onPause(), from its piece table.
+                if (!mLargeNote) {
+                    String text = mText.getText().toString();
+                    updateNote(text, null);
+                }
                 finish();
                 break;
             case R.id.menu_delete:
@@ -486,7 +777,16 @@ public class NoteEditor extends Activity {
 
     private void exportNote() {
         String title = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
-        String content = mText.getText().toString();
+        CharSequence content;
+        if (!mLargeNote) {
+            content = mText.getText().toString();
+        } else if (mDocument != null) {
+            // The EditText only holds a window of a large note. A snapshot of its piece table
+            // is encoded on the export's thread, without being copied into a String.
+            content = mDocument.snapshot();
+        } else {
+            return;
+        }
 
         // Create a file name
         String fileName = title.replaceAll("[^a-zA-Z0-9]", "_") + ".txt";
@@ -506,21 +806,284 @@ public class NoteEditor extends Activity {
                 return;
             }
         }
+
+        // Writes the note content to the file in the background. The export reports its
+        // progress, and its outcome in a toast.
+        if (mExportProgress != null) {
+            mExportProgress.detach();
+        }
+        mExportProgress = new ExportProgress(this);
+        mExportProgress.attach(BackgroundExporter.exportText(content, file, mExportProgress));
+    }
+
+    /**
+     * Shows the text of the note once its journal is open, with the edits that a killed process
+     * didn't save. If the note was deleted or reverted in the meantime, the journal is deleted,
+     * and if the editor was destroyed, it's closed.
+     */
+    private void onJournalOpened(DraftJournal.OpenListener opener, DraftJournal journal,
+            String text) {
+        if (mCursor == null) {
+            if (journal != null) {
+                journal.delete();
+            }
+            mJournalOpener = null;
+            return;
+        }
+        if (opener != mJournalOpener) {
+            if (journal != null) {
+                journal.close();
+            }
+            return;
+        }
+        mJournalOpener = null;
+
+        // Without a journal, the note is open in another editor, which journals it, and this
+        // one saves the whole note every time.
+        mJournal = journal;
+        if (text != null) {
+            mText.setTextKeepState(text);
+        }
+        mText.setEnabled(true);
+    }
+
+    /**
+     * Saves the note as a whole while the editor is paused, so that the note in the provider
+     * catches up with the journal. Then, once the save is committed, the journal starts from it.
+     */
+    private void compactJournal() {
+        if (mResumed || mCursor == null || mJournal == null || !mJournal.hasEdits()) {
+            return;
+        }
+        String text = mText.getText().toString();
+        updateNote(text, null);
+        mJournal.rebase(text);
+        final DraftJournal journal = mJournal;
+        NoteSaveQueue.getInstance(this).whenCommitted(new Runnable() {
+            @Override
+            public void run() {
+                journal.onSaved();
+            }
+        });
+    }
+
+    /**
+     * This method is called when the Activity is no longer visible, after the Activity that
+     * replaces it has been drawn. The saves made in onPause() are committed in the background,
+     * with the process kept alive until they are, see {@link NoteSaveQueue}.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // Once the saves are committed, the journal only needs the edits made since. Once the
+        // editor finishes, the note has been saved as a whole, and the journal isn't needed.
+        if (mJournal != null) {
+            final DraftJournal journal = mJournal;
+            final boolean finishing = isFinishing();
+            if (finishing) {
+                mJournal = null;
+            }
+            NoteSaveQueue.getInstance(this).whenCommitted(new Runnable() {
+                @Override
+                public void run() {
+                    if (finishing) {
+                        journal.delete();
+                    } else {
+                        journal.onSaved();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mText != null) {
+            mText.removeCallbacks(mCompactTask);
+        }
+
+        // The journal that's still opening is closed when it's open.
+        mJournalOpener = null;
+
+        // Hides the progress of the running export, which carries on in the background.
+        if (mExportProgress != null) {
+            mExportProgress.detach();
+        }
+
+        // The large note that's still loading is dropped when it's loaded.
+        mLoader = null;
+
+        // Leaves the journal for the editor that replaces this one, such as after a rotation.
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+
+    /**
+     * Returns true if a note is large enough to be edited in large-document mode. Only its
+     * stored size is read, not its text.
+     */
+    private boolean isLargeNote(Uri uri) {
+        Cursor c = getContentResolver().query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_SIZE }, null, null, null);
+        if (c == null) {
+            return false;
+        }
         try {
-            // Write the note content to the file
-            FileOutputStream fos = new FileOutputStream(file);
-            fos.write(content.getBytes());
-            fos.close();
+            return c.moveToFirst() && c.getLong(0) >= LARGE_NOTE_SIZE;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Loads a large note into a piece table, on a thread of its own. The text is streamed from
+     * the provider, rather than read through a cursor, and decoded into a memory-mapped file in
+     * the cache directory, so it never takes room on the Java heap. The EditText is disabled
+     * until the first window of the note is shown.
+     */
+    private void loadLargeNote() {
+        mText.setEnabled(false);
+        final Uri uri = mUri;
+        final ContentResolver resolver = getContentResolver();
+        final File cacheDir = getCacheDir();
+        mLoader = new Thread("NoteEditor load") {
+            @Override
+            public void run() {
+                PieceTable document = null;
+                try {
+                    Bundle opts = new Bundle();
+                    opts.putBoolean(NotePad.Notes.STREAM_BODY_ONLY, true);
+                    InputStream in = resolver.openTypedAssetFileDescriptor(uri, "text/plain", opts)
+                            .createInputStream();
+                    try {
+                        document = PieceTable.load(in,
+                                File.createTempFile("note", ".utf16", cacheDir));
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to load " + uri, e);
+                }
+
+                final Thread loader = this;
+                final PieceTable loaded = document;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLargeNoteLoaded(loader, loaded);
+                    }
+                });
+            }
+        };
+        mLoader.start();
+    }
 
-            // Show a toast message
-            Toast.makeText(this, "Note exported to " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Failed to export note", Toast.LENGTH_SHORT).show();
+    /**
+     * Shows the start of a large note once it's loaded, or an error if it couldn't be. Nothing is
+     * done if the editor was destroyed in the meantime.
+     */
+    private void onLargeNoteLoaded(Thread loader, PieceTable document) {
+        if (loader != mLoader) {
+            return;
+        }
+        mLoader = null;
+        if (document == null) {
+            setTitle(getText(R.string.error_title));
+            mText.setText(getText(R.string.error_message));
+            return;
         }
+        mDocument = document;
+        mText.setEnabled(true);
+        showWindow(0, 0);
     }
 
+    /**
+     * Moves the window of a large note once the user has scrolled to within a screen of either
+     * of its ends, so that there's always text to scroll to, while the EditText only ever lays
+     * out {@link #WINDOW_SIZE} characters or so. The line at the top of the screen stays put.
+     */
+    private void onWindowScrolled() {
+        if (mDocument == null || mMovingWindow) {
+            return;
+        }
+        Layout layout = mText.getLayout();
+        if (layout == null) {
+            return;
+        }
+        int scrollY = mText.getScrollY();
+        int height = mText.getHeight();
+        int paddingTop = mText.getTotalPaddingTop();
+        int contentHeight = layout.getHeight() + paddingTop + mText.getTotalPaddingBottom();
+        boolean nearStart = mWindowStart > 0 && scrollY < height;
+        boolean nearEnd = mWindowEnd < mDocument.length() && scrollY + 2 * height > contentHeight;
+        if (!nearStart && !nearEnd) {
+            return;
+        }
 
+        int line = layout.getLineForVertical(scrollY - paddingTop);
+        showWindow(mWindowStart + layout.getLineStart(line),
+                layout.getLineTop(line) + paddingTop - scrollY);
+    }
+
+    /**
+     * Puts the window of a large note around an offset. The window starts and ends at line
+     * breaks, unless the lines there are very long. The selection is kept if it's still in the
+     * window, and moved to the offset otherwise.
+     *
+     * @param anchor An offset in the note.
+     * @param anchorTop Where to show the line that holds the anchor, from the top of the screen.
+     */
+    private void showWindow(int anchor, int anchorTop) {
+        PieceTable document = mDocument;
+        int length = document.length();
+
+        int start = Math.max(0, anchor - WINDOW_SIZE / 2);
+        int lineStart = document.getLineStart(document.getLineForOffset(start));
+        if (start - lineStart < WINDOW_SIZE / 4) {
+            start = lineStart;
+        } else if (Character.isLowSurrogate(document.charAt(start))) {
+            start--;
+        }
+        int end = Math.min(length, start + WINDOW_SIZE);
+        int line = document.getLineForOffset(end);
+        if (line + 1 < document.getLineCount() && document.getLineStart(line) != end) {
+            int lineEnd = document.getLineStart(line + 1);
+            if (lineEnd - end < WINDOW_SIZE / 4) {
+                end = lineEnd;
+            } else if (Character.isLowSurrogate(document.charAt(end))) {
+                end++;
+            }
+        }
+
+        int selectionStart = mWindowStart + Math.max(0, mText.getSelectionStart());
+        int selectionEnd = mWindowStart + Math.max(0, mText.getSelectionEnd());
+
+        mMovingWindow = true;
+        try {
+            mText.setText(document.subSequence(start, end));
+            mWindowStart = start;
+            mWindowEnd = end;
+
+            if (selectionStart >= start && selectionEnd <= end) {
+                mText.setSelection(selectionStart - start, selectionEnd - start);
+            } else {
+                mText.setSelection(anchor - start);
+            }
+
+            Layout layout = mText.getLayout();
+            if (layout != null) {
+                int top = layout.getLineTop(layout.getLineForOffset(anchor - start));
+                mText.scrollTo(0, Math.max(0, top + mText.getTotalPaddingTop() - anchorTop));
+            }
+        } finally {
+            mMovingWindow = false;
+        }
+    }
 
 //BEGIN_INCLUDE(paste)
     /**
@@ -589,6 +1152,32 @@ public class NoteEditor extends Activity {
     }
 //END_INCLUDE(paste)
 
+    /**
+     * Creates the title of a new note from its text: the first 30 characters, cut back to the
+     * last space if the text is longer than that. The importer titles notes the same way.
+     * @param text The note contents.
+     * @return The title.
+     */
+    static String makeTitle(CharSequence text) {
+
+        // Get the note's length
+        int length = text.length();
+
+        // Sets the title by getting a substring of the text that is 31 characters long
+        // or the number of characters in the note plus one, whichever is smaller.
+        String title = text.subSequence(0, Math.min(30, length)).toString();
+
+        // If the resulting length is more than 30 characters, chops off any
+        // trailing spaces
+        if (length > 30) {
+            int lastSpace = title.lastIndexOf(' ');
+            if (lastSpace > 0) {
+                title = title.substring(0, lastSpace);
+            }
+        }
+        return title;
+    }
+
     /**
      * Replaces the current note contents with the text and title provided as arguments.
      * @param text The new note contents to use.
@@ -605,22 +1194,7 @@ public class NoteEditor extends Activity {
 
             // If no title was provided as an argument, create one from the note text.
             if (title == null) {
-  
-                // Get the note's length
-                int length = text.length();
-
-                // Sets the title by getting a substring of the text that is 31 characters long
-                // or the number of characters in the note plus one, whichever is smaller.
-                title = text.substring(0, Math.min(30, length));
-  
-                // If the resulting length is more than 30 characters, chops off any
-                // trailing spaces
-                if (length > 30) {
-                    int lastSpace = title.lastIndexOf(' ');
-                    if (lastSpace > 0) {
-                        title = title.substring(0, lastSpace);
-                    }
-                }
+                title = makeTitle(text);
             }
             // In the values map, sets the value of the title
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
@@ -633,24 +1207,17 @@ public class NoteEditor extends Activity {
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
 
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
+         * Queues the update of the provider with the new values in the map. The ListView is
+         * updated automatically. The provider sets this up by setting the notification URI for
          * query Cursor objects to the incoming URI. The content resolver is thus
          * automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Note: The update is committed on a background thread, so that the UI thread doesn't
+         * wait for the database while the next Activity is drawn. Updates of the same note
+         * that are still waiting are merged into one, and the queue keeps the process alive
+         * until they're committed.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
-
-
+        NoteSaveQueue.getInstance(this).save(mUri, values);
     }
 
     /**
@@ -663,9 +1230,15 @@ public class NoteEditor extends Activity {
                 // Put the original note text back into the database
                 mCursor.close();
                 mCursor = null;
+                if (mJournal != null) {
+                    mJournal.delete();
+                    mJournal = null;
+                }
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+
+                // Goes through the queue, so that it lands after any save that's waiting.
+                NoteSaveQueue.getInstance(this).save(mUri, values);
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -682,7 +1255,12 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            NoteSaveQueue.getInstance(this).delete(mUri);
+            if (mJournal != null) {
+                mJournal.delete();
+                mJournal = null;
+            }
+            mDocument = null;
             mText.setText("");
         }
     }
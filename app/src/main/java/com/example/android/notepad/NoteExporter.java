@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes every note to a stream, as JSON Lines ({@link NotePad.Notes#EXPORT_JSON_LINES_TYPE})
+ * or as a ZIP archive of text files ({@link NotePad.Notes#EXPORT_ZIP_TYPE}). NotePadProvider
+ * uses it to serve streams of the notes URI, through
+ * {@link android.content.ContentProvider#openPipeHelper}.
+ * <p>
+ * The notes are read in chunks of {@link #CHUNK_SIZE} rows, in _ID order. Each chunk is a short
+ * query that seeks into the primary key right after the last note of the previous chunk, and
+ * each row is written out as soon as it's read. The memory taken stays the same however many
+ * notes there are, and every chunk costs the same however far into the table it is. A chunk
+ * doesn't hold a connection between reads, so writers aren't held up by a long export. In
+ * return, a note that's written during the export appears as it was when its chunk was read.
+ */
+final class NoteExporter implements PipeDataWriter<SQLiteDatabase> {
+
+    private static final String TAG = "NoteExporter";
+
+    /**
+     * The number of notes read by each query.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    // The size of the buffer between the rows and the pipe.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The longest part of a title that's used in the name of a file in the archive.
+    private static final int MAX_FILE_TITLE_LENGTH = 64;
+
+    // The columns read for each note.
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,                            // 0
+            NotePad.Notes.COLUMN_NAME_TITLE,              // 1
+            NotePad.Notes.COLUMN_NAME_NOTE,               // 2
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,        // 3
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,  // 4
+    };
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_NOTE = 2;
+    private static final int COLUMN_INDEX_CREATE_DATE = 3;
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 4;
+
+    /**
+     * Writes the notes of the database to the pipe, in the given format.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, SQLiteDatabase db) {
+        FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+        try {
+            export(db, mimeType, out);
+        } catch (IOException e) {
+            // The reader usually closed the pipe before reading everything.
+            Log.w(TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Writes every note of the database to a stream. The stream is flushed, but not closed.
+     *
+     * @param db The database to read the notes from.
+     * @param mimeType {@link NotePad.Notes#EXPORT_JSON_LINES_TYPE} or
+     * {@link NotePad.Notes#EXPORT_ZIP_TYPE}.
+     * @param out The stream to write to.
+     * @return The number of notes written.
+     * @throws IllegalArgumentException if the format isn't supported.
+     */
+    static int export(SQLiteDatabase db, String mimeType, OutputStream out) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        if (NotePad.Notes.EXPORT_JSON_LINES_TYPE.equals(mimeType)) {
+            Writer writer = new OutputStreamWriter(buffered, "UTF-8");
+            int count = exportJsonLines(db, writer);
+            writer.flush();
+            return count;
+        } else if (NotePad.Notes.EXPORT_ZIP_TYPE.equals(mimeType)) {
+            ZipOutputStream zip = new ZipOutputStream(buffered);
+            // Exports are read back rarely, so speed matters more than size.
+            zip.setLevel(Deflater.BEST_SPEED);
+            int count = exportZip(db, zip);
+            zip.finish();
+            zip.flush();
+            return count;
+        } else {
+            throw new IllegalArgumentException("Unsupported export type " + mimeType);
+        }
+    }
+
+    // Writes one JSON object per note, each on its own line.
+    private static int exportJsonLines(SQLiteDatabase db, Writer writer) throws IOException {
+        int count = 0;
+        long lastId = 0;
+        Cursor cursor;
+        while ((cursor = queryChunk(db, lastId)) != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(COLUMN_INDEX_ID);
+                    writer.write("{\"" + NotePad.Notes._ID + "\":");
+                    writer.write(Long.toString(lastId));
+                    writeJsonString(writer, NotePad.Notes.COLUMN_NAME_TITLE,
+                            cursor.getString(COLUMN_INDEX_TITLE));
+                    writeJsonString(writer, NotePad.Notes.COLUMN_NAME_NOTE,
+                            cursor.getString(COLUMN_INDEX_NOTE));
+                    writer.write(",\"" + NotePad.Notes.COLUMN_NAME_CREATE_DATE + "\":");
+                    writer.write(Long.toString(cursor.getLong(COLUMN_INDEX_CREATE_DATE)));
+                    writer.write(",\"" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "\":");
+                    writer.write(Long.toString(cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE)));
+                    writer.write("}\n");
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return count;
+    }
+
+    private static void writeJsonString(Writer writer, String name, String value)
+            throws IOException {
+        writer.write(",\"" + name + "\":");
+        writer.write(value == null ? "null" : JSONObject.quote(value));
+    }
+
+    // Writes one text file per note, in the format of the text/plain stream of a single note.
+    private static int exportZip(SQLiteDatabase db, ZipOutputStream zip) throws IOException {
+        Writer writer = new OutputStreamWriter(zip, "UTF-8");
+        int count = 0;
+        long lastId = 0;
+        Cursor cursor;
+        while ((cursor = queryChunk(db, lastId)) != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(COLUMN_INDEX_ID);
+                    String title = cursor.getString(COLUMN_INDEX_TITLE);
+                    String note = cursor.getString(COLUMN_INDEX_NOTE);
+
+                    ZipEntry entry = new ZipEntry(getFileName(lastId, title));
+                    entry.setTime(cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE));
+                    zip.putNextEntry(entry);
+                    writer.write(title == null ? "" : title);
+                    writer.write("\n\n");
+                    writer.write(note == null ? "" : note);
+                    writer.write('\n');
+                    writer.flush();
+                    zip.closeEntry();
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the name of the file of a note in the archive: its _ID, which keeps the names
+     * unique, followed by as much of the title as is safe to use in a file name.
+     */
+    static String getFileName(long id, String title) {
+        StringBuilder name = new StringBuilder();
+        name.append(id);
+        if (title != null && title.length() > 0) {
+            name.append(' ');
+            int length = Math.min(title.length(), MAX_FILE_TITLE_LENGTH);
+            for (int i = 0; i < length; i++) {
+                char c = title.charAt(i);
+                name.append(c < ' ' || "/\\:*?\"<>|".indexOf(c) >= 0 ? '_' : c);
+            }
+        }
+        return name.append(".txt").toString();
+    }
+
+    /**
+     * Reads the chunk of notes that follows the given _ID.
+     *
+     * @return A cursor on the chunk, or null if there are no more notes.
+     */
+    private static Cursor queryChunk(SQLiteDatabase db, long afterId) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, PROJECTION,
+                NotePad.Notes._ID + " > " + afterId, null, null, null,
+                NotePad.Notes._ID, Integer.toString(CHUNK_SIZE));
+
+        // Notes stored compressed are written out as text.
+        cursor = DecompressingCursor.wrap(cursor);
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
+    }
+}
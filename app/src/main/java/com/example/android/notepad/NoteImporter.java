@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports UTF-8 text files as new notes, one note per file.
+ * <p>
+ * Each file is memory-mapped and decoded straight from the mapping into a char buffer that's
+ * reused from file to file, so the only copy of a note's text that's made is the String that
+ * the provider stores. The title is derived from the text as {@link NoteEditor} does for new
+ * notes, and the creation and modification dates are the file's modification date.
+ * <p>
+ * The notes are inserted with {@link ContentResolver#bulkInsert} in batches of up to
+ * {@link #BATCH_SIZE} files or {@link #BATCH_CHARS} characters, each in one transaction and
+ * with one change notification. Progress is reported after every batch. An import can be
+ * canceled from any thread: it then stops before the next file, and the batch in progress is
+ * dropped, so the notes of the batches reported so far are the ones that were imported.
+ * <p>
+ * An importer runs a single import, on the thread that calls {@link #importFiles}.
+ */
+final class NoteImporter {
+
+    /**
+     * The largest number of files inserted in one batch.
+     */
+    static final int BATCH_SIZE = 200;
+
+    /**
+     * The number of characters after which a batch is inserted, whatever its number of files,
+     * which bounds the memory that a batch takes.
+     */
+    static final int BATCH_CHARS = 4 * 1024 * 1024;
+
+    // The byte order mark that some editors put at the start of UTF-8 files.
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    /**
+     * Receives the progress of an import. Called on the importing thread.
+     */
+    interface ProgressListener {
+        /**
+         * Called after each batch of notes has been inserted.
+         *
+         * @param filesImported The number of files imported so far.
+         * @param fileCount The number of files to import.
+         * @param bytesImported The size of the files imported so far.
+         * @param byteCount The size of all of the files to import.
+         */
+        void onProgress(int filesImported, int fileCount, long bytesImported, long byteCount);
+    }
+
+    private final ContentResolver mResolver;
+    private final CharsetDecoder mDecoder;
+    private ProgressListener mListener;
+    private volatile boolean mCanceled;
+
+    // The buffer that files are decoded into, grown to the largest file so far.
+    private CharBuffer mText = CharBuffer.allocate(0);
+
+    NoteImporter(ContentResolver resolver) {
+        mResolver = resolver;
+        mDecoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stops the import before the next file. Can be called from any thread.
+     */
+    void cancel() {
+        mCanceled = true;
+    }
+
+    boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Imports the files, in order.
+     *
+     * @param files The text files to import.
+     * @return The number of notes inserted, which is less than the number of files if the
+     * import was canceled.
+     * @throws IOException if a file can't be read. The notes of the batches inserted before it
+     * are kept.
+     */
+    int importFiles(List<File> files) throws IOException {
+        long byteCount = 0;
+        for (File file : files) {
+            byteCount += file.length();
+        }
+
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        int batchChars = 0;
+        long batchBytes = 0;
+        int filesImported = 0;
+        long bytesImported = 0;
+        for (File file : files) {
+            if (mCanceled) {
+                return filesImported;
+            }
+
+            String text = readFile(file);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, NoteEditor.makeTitle(mText));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, file.lastModified());
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, file.lastModified());
+            batch.add(values);
+            batchChars += text.length();
+            batchBytes += file.length();
+
+            if (batch.size() >= BATCH_SIZE || batchChars >= BATCH_CHARS) {
+                if (mCanceled) {
+                    return filesImported;
+                }
+                filesImported += insertBatch(batch);
+                bytesImported += batchBytes;
+                batchChars = 0;
+                batchBytes = 0;
+                reportProgress(filesImported, files.size(), bytesImported, byteCount);
+            }
+        }
+        if (!batch.isEmpty() && !mCanceled) {
+            filesImported += insertBatch(batch);
+            bytesImported += batchBytes;
+            reportProgress(filesImported, files.size(), bytesImported, byteCount);
+        }
+        return filesImported;
+    }
+
+    private int insertBatch(ArrayList<ContentValues> batch) {
+        int count = mResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                batch.toArray(new ContentValues[batch.size()]));
+        batch.clear();
+        return count;
+    }
+
+    private void reportProgress(int filesImported, int fileCount, long bytesImported,
+            long byteCount) {
+        if (mListener != null) {
+            mListener.onProgress(filesImported, fileCount, bytesImported, byteCount);
+        }
+    }
+
+    /**
+     * Decodes a file into {@link #mText}, flipped for reading and past any byte order mark,
+     * and returns its text.
+     */
+    private String readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to import");
+            }
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // UTF-8 never decodes to more chars than it has bytes.
+            if (mText.capacity() < size) {
+                mText = CharBuffer.allocate((int) size);
+            }
+            mText.clear();
+            mDecoder.reset();
+            CoderResult result = mDecoder.decode(bytes, mText, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            mDecoder.flush(mText);
+            mText.flip();
+        } finally {
+            in.close();
+        }
+
+        if (mText.length() > 0 && mText.charAt(0) == BYTE_ORDER_MARK) {
+            mText.position(1);
+        }
+        return mText.toString();
+    }
+}
@@ -12,6 +12,7 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -72,6 +73,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * 全文搜索 URI 的路径部分
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * 该表的内容 URI
          */
@@ -95,6 +101,108 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * 全文搜索的内容 URI。搜索词通过 {@link #SEARCH_QUERY_PARAMETER} 查询参数传入，
+         * 返回的列与 {@link #CONTENT_URI} 相同。中文、日文和韩文按字匹配，可以搜索一个词中间的
+         * 任意几个字；全角字母和数字与半角等同，不区分大小写。搜索词只含字母和数字时，标题的
+         * 拼音或拼音首字母以其开头的笔记也会匹配，如 "bjrj" 和 "biji" 都匹配"笔记软件"。
+         */
+        public static final Uri CONTENT_SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * {@link #CONTENT_SEARCH_URI} 上携带搜索词的查询参数名
+         */
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+
+        /**
+         * {@link #CONTENT_SEARCH_URI} 的查询参数名。值为 "true" 时，结果按相关性（BM25，标题的
+         * 权重高于内容）排序，而不是按修改时间排序，并且可以读取 {@link #COLUMN_NAME_SCORE}、
+         * {@link #COLUMN_NAME_SNIPPET} 和 {@link #COLUMN_NAME_SNIPPET_OFFSETS} 列。只返回得分最高
+         * 的 {@link #LIMIT_QUERY_PARAMETER} 条结果，默认为 {@link #RANKED_RESULT_LIMIT} 条；
+         * 不支持键集分页，后面的结果用 {@link #OFFSET_QUERY_PARAMETER} 按位置读取。
+         */
+        public static final String RANK_QUERY_PARAMETER = "rank";
+
+        /**
+         * 按相关性搜索时默认返回的最大结果数
+         */
+        public static final int RANKED_RESULT_LIMIT = 100;
+
+        /**
+         * 查询参数名。值为 "true" 时，查询在独立的只读快照连接上执行，适用于导出、搜索等
+         * 长时间读取：它们读取一致的快照，既不阻塞写入，也不占用界面查询使用的连接。
+         */
+        public static final String SNAPSHOT_QUERY_PARAMETER = "snapshot";
+
+        /**
+         * 查询参数名，值为正整数，限制 {@link #CONTENT_URI} 或 {@link #CONTENT_SEARCH_URI}
+         * 查询返回的最大行数。与 {@link #BEFORE_MODIFIED_QUERY_PARAMETER} 一起用于分页。
+         */
+        public static final String LIMIT_QUERY_PARAMETER = "limit";
+
+        /**
+         * 查询参数名，值为非负整数，只用于 {@link #RANK_QUERY_PARAMETER} 搜索：跳过得分最高的
+         * 这么多条结果，再返回 {@link #LIMIT_QUERY_PARAMETER} 条，用于按位置分页。
+         */
+        public static final String OFFSET_QUERY_PARAMETER = "offset";
+
+        /**
+         * 通过 openFile() 写入笔记时的查询参数名，值为要写入的 UTF-8 文本的字节数。只有收到的字节数
+         * 与之相等时才保存笔记。Android 4.4 之前的管道无法区分写入方正常关闭和中途失败，因此必须提供。
+         */
+        public static final String LENGTH_QUERY_PARAMETER = "length";
+
+        /**
+         * 键集分页的查询参数名：上一页最后一行的修改时间。必须与
+         * {@link #BEFORE_ID_QUERY_PARAMETER} 一起使用，查询只返回按 {@link #PAGE_SORT_ORDER}
+         * 排在该行之后的笔记。无论已经翻过多少页，每一页的代价都相同。
+         */
+        public static final String BEFORE_MODIFIED_QUERY_PARAMETER = "before_modified";
+
+        /**
+         * 键集分页的查询参数名：上一页最后一行的 _ID，见 {@link #BEFORE_MODIFIED_QUERY_PARAMETER}
+         */
+        public static final String BEFORE_ID_QUERY_PARAMETER = "before_id";
+
+        /**
+         * 通过 {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * 读取提供者内笔记缓存统计的方法名。返回的 Bundle 中包含以 CACHE_ 开头的各个键，值为 int。
+         */
+        public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+
+        /**
+         * 缓存统计：命中次数
+         */
+        public static final String CACHE_HITS = "hits";
+
+        /**
+         * 缓存统计：未命中次数
+         */
+        public static final String CACHE_MISSES = "misses";
+
+        /**
+         * 缓存统计：因容量不足而被淘汰的笔记数
+         */
+        public static final String CACHE_EVICTIONS = "evictions";
+
+        /**
+         * 缓存统计：当前缓存占用的字节数（估计值）
+         */
+        public static final String CACHE_SIZE = "size";
+
+        /**
+         * 缓存统计：缓存的最大字节数
+         */
+        public static final String CACHE_MAX_SIZE = "max_size";
+
+        /**
+         * 打开笔记数据流时的选项键，通过
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} 的 opts 传入。
+         * 值为 true 时，数据流只包含笔记内容的 UTF-8 文本，不带标题和结尾的换行。
+         */
+        public static final String STREAM_BODY_ONLY = "body_only";
+
         /*
          * MIME 类型定义
          */
@@ -109,11 +217,34 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * 以 {@link #CONTENT_URI} 导出全部笔记时，JSON Lines 格式数据流的 MIME 类型：每行一个
+         * JSON 对象，包含笔记的 _ID、标题、内容、创建和修改时间。
+         */
+        public static final String EXPORT_JSON_LINES_TYPE = "application/x-ndjson";
+
+        /**
+         * 以 {@link #CONTENT_URI} 导出全部笔记时，ZIP 格式数据流的 MIME 类型：每条笔记一个 .txt
+         * 文件，内容与单条笔记的 text/plain 数据流相同。
+         */
+        public static final String EXPORT_ZIP_TYPE = "application/zip";
+
         /**
          * 该表的默认排序顺序
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * 分页查询的排序顺序。以 _ID 区分修改时间相同的笔记，使每一行都有唯一的位置。
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id DESC";
+
+        /**
+         * 按标题拼音排序的排序顺序。顺序由 {@link #COLUMN_NAME_TITLE_PINYIN} 上的索引直接给出，
+         * 不需要排序。
+         */
+        public static final String PINYIN_SORT_ORDER = "title_pinyin, _id";
+
         /*
          * 列定义
          */
@@ -141,5 +272,166 @@ public final class NotePad {
          * <P>类型：INTEGER (long from System.currentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * 笔记预览的列名：笔记内容开头的一段，空白已合并为单个空格，最多 {@link #PREVIEW_LENGTH}
+         * 个字符。由提供者在写入笔记内容时维护，只读。列表读取它而不必读取完整的笔记内容。
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        /**
+         * {@link #COLUMN_NAME_PREVIEW} 的最大字符数
+         */
+        public static final int PREVIEW_LENGTH = 100;
+
+        /**
+         * 标题拼音的列名：标题中的常用汉字换成不带声调的拼音（ü 写作 v），其余的字母和数字转为
+         * 小写，其他字符略去，如"笔记软件"为 "bijiruanjian"。由提供者在写入标题时维护，只读，
+         * 有索引，用于 {@link #PINYIN_SORT_ORDER} 和按拼音搜索。
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE_PINYIN = "title_pinyin";
+
+        /**
+         * 标题拼音首字母的列名：与 {@link #COLUMN_NAME_TITLE_PINYIN} 相同，但每个汉字只取拼音的
+         * 首字母，如"笔记软件"为 "bjrj"。标题中没有常用汉字时为 null。由提供者在写入标题时维护，
+         * 只读，有索引，用于按拼音首字母搜索。
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE_INITIALS = "title_initials";
+
+        /**
+         * 笔记内容大小的列名：笔记正文 UTF-8 编码的字节数，压缩存储的笔记也按未压缩的大小计算。
+         * 由提供者在写入笔记时记录，只读。编辑器据此在读取笔记内容之前判断是否以大文档模式打开。
+         * <P>类型：INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_SIZE = "note_size";
+
+        /**
+         * 按相关性搜索时结果得分的列名，越大越相关。由提供者计算，只读，只在
+         * {@link #RANK_QUERY_PARAMETER} 搜索中可用。
+         * <P>类型：REAL</P>
+         */
+        public static final String COLUMN_NAME_SCORE = "score";
+
+        /**
+         * 按相关性搜索时摘录的列名：标题或内容中最匹配搜索词的一段文字，省略处以 "…" 表示。
+         * 摘录按原文显示，保留原有的标点、大小写和全角字符。
+         * 由提供者计算，只读，只在 {@link #RANK_QUERY_PARAMETER} 搜索中可用。
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * 按相关性搜索时摘录中匹配位置的列名：以空格分隔的整数，每两个一组，分别是一个匹配在
+         * {@link #COLUMN_NAME_SNIPPET} 中的起始字符位置和结束字符位置（不含）。由提供者计算，
+         * 只读，只在 {@link #RANK_QUERY_PARAMETER} 搜索中可用。
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET_OFFSETS = "snippet_offsets";
+    }
+
+    /**
+     * 笔记修订历史表的契约。每次通过单条笔记 URI 修改笔记内容时，提供者都会记录一个修订：
+     * 大多数修订以相对上一个修订的二进制差异保存，并定期保存完整快照，使任何修订都能在
+     * 有限次差异应用内重建。修订由提供者写入，对调用者只读；笔记删除时其修订一并删除。
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // 这个类不能被实例化
+        private Revisions() {
+        }
+
+        /**
+         * 修订表名
+         */
+        public static final String TABLE_NAME = "note_revisions";
+
+        /**
+         * 笔记 URI 下修订目录的路径段，例如 content://com.google.provider.NotePad/notes/1/revisions
+         */
+        public static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * 修订 URI 中修订 ID 的路径段位置
+         */
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        /**
+         * 返回一条笔记的修订目录 URI。查询它得到笔记的修订列表，不包含内容。
+         */
+        public static Uri getContentUri(long noteId) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(Notes.CONTENT_ID_URI_BASE,
+                    noteId), PATH_REVISIONS);
+        }
+
+        /**
+         * 返回单个修订的 URI。查询它得到重建的修订内容，位于 {@link #COLUMN_NAME_NOTE} 列。
+         */
+        public static Uri getContentUri(long noteId, long revisionId) {
+            return ContentUris.withAppendedId(getContentUri(noteId), revisionId);
+        }
+
+        /**
+         * 修订目录的 MIME 类型
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * 单个修订的 MIME 类型
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * 默认排序顺序：最新的修订在前
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id DESC";
+
+        /**
+         * 通过 {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * 设置修订保留策略的方法名。参数 Bundle 中的 {@link #KEEP_COUNT} 和 {@link #KEEP_MILLIS}
+         * 分别为每条笔记保留的修订数和保留时长；超出的旧修订在后台清理。
+         */
+        public static final String METHOD_SET_RETENTION = "set_revision_retention";
+
+        /**
+         * 保留策略：每条笔记最多保留的修订数，int
+         */
+        public static final String KEEP_COUNT = "keep_count";
+
+        /**
+         * 保留策略：修订的最长保留时间（毫秒），long。每条笔记的最新修订总是保留。
+         */
+        public static final String KEEP_MILLIS = "keep_millis";
+
+        /*
+         * 列定义
+         */
+
+        /**
+         * 修订所属笔记的 _ID 列名
+         * <P>类型：INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * 修订创建时间戳的列名
+         * <P>类型：INTEGER (long from System.currentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * 修订内容字符数的列名
+         * <P>类型：INTEGER</P>
+         */
+        public static final String COLUMN_NAME_LENGTH = "length";
+
+        /**
+         * 修订内容的列名，只出现在单个修订的查询结果中
+         * <P>类型：TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
     }
 }
@@ -14,34 +14,50 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
+import android.annotation.TargetApi;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 提供对笔记数据库的访问。每条笔记都有标题、笔记内容、创建日期和修改日期。
@@ -58,7 +74,55 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * 数据库版本
      */
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 11;
+
+    /**
+     * 镜像 notes 表的全文索引虚拟表，由触发器保持同步
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * 匹配含有非 ASCII 字符的文本的 GLOB 模式。这类文本由提供者而非触发器写入全文索引。
+     */
+    private static final String NON_ASCII_PATTERN = "'*[^\u0001-\u007f]*'";
+
+    /**
+     * 按相关性搜索时未指定投影所返回的列
+     */
+    private static final String[] RANKED_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SCORE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS
+    };
+
+    /**
+     * 按相关性搜索时每条摘录包含的最大词数
+     */
+    private static final int SNIPPET_TOKENS = 16;
+
+    /**
+     * 覆盖笔记列表投影（_id, title, modified）的索引，也用于按修改日期的查询和排序
+     */
+    static final String LIST_INDEX_NAME = "notes_modified_index";
+
+    /**
+     * 创建日期上的索引，用于按创建日期的范围查询
+     */
+    static final String CREATED_INDEX_NAME = "notes_created_index";
+
+    /**
+     * 标题拼音上的索引，用于按拼音排序和按拼音搜索
+     */
+    static final String PINYIN_INDEX_NAME = "notes_pinyin_index";
+
+    /**
+     * 标题拼音首字母上的索引，用于按拼音首字母搜索
+     */
+    static final String INITIALS_INDEX_NAME = "notes_initials_index";
 
     /**
      * 用于从数据库中选择列的投影映射
@@ -71,15 +135,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * 常规笔记的有趣列的标准投影。
+     * 常规笔记的有趣列的标准投影。笔记内容不在其中，由 writeDataToPipe() 分段读取。
      */
     private static final String[] READ_NOTE_PROJECTION = new String[]{
             NotePad.Notes._ID,               // 投影位置 0，笔记的 ID
-            NotePad.Notes.COLUMN_NAME_NOTE,  // 投影位置 1，笔记的内容
-            NotePad.Notes.COLUMN_NAME_TITLE, // 投影位置 2，笔记的标题
+            NotePad.Notes.COLUMN_NAME_TITLE, // 投影位置 1，笔记的标题
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    /**
+     * 读取笔记内容的存储值，供数据流使用。压缩笔记本身以编解码标签开头，文本笔记则在前面加上
+     * NoteCodec.CODEC_NONE 标签 (0)，使 NoteCodec 能区分两者。
+     */
+    private static final String STREAM_NOTE_SQL = "SELECT CASE typeof("
+            + NotePad.Notes.COLUMN_NAME_NOTE + ") WHEN 'blob' THEN "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " ELSE X'00' || "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " END FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    /**
+     * 笔记数据流的缓冲区大小
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 从管道读取笔记时缓冲区的最大长度，即虚拟机能分配的最大数组
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
     /*
      * Uri 匹配器使用的常量，根据传入 URI 的模式选择操作
@@ -104,6 +187,97 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 搜索
     private static final int NOTES_SEARCH = 4;
 
+    // 传入的 URI 匹配一条笔记的修订目录
+    private static final int NOTE_REVISIONS = 5;
+
+    // 传入的 URI 匹配单个修订
+    private static final int NOTE_REVISION_ID = 6;
+
+    /**
+     * 修订目录查询可以返回的列
+     */
+    private static final String[] REVISION_COLUMNS = new String[]{
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.Revisions.COLUMN_NAME_LENGTH,
+    };
+
+    /**
+     * 修订保留策略：每条笔记保留的修订数和保留时长，可通过 call() 修改
+     */
+    private volatile int mRevisionKeepCount = NoteRevisions.DEFAULT_KEEP_COUNT;
+    private volatile long mRevisionKeepMillis = NoteRevisions.DEFAULT_KEEP_MILLIS;
+
+    /**
+     * 在后台清理旧修订的线程，以及等待清理的笔记
+     */
+    private final ExecutorService mRevisionPruner = Executors.newSingleThreadExecutor();
+    private final HashSet<Long> mPendingPrunes = new HashSet<Long>();
+
+    /**
+     * 批处理中预编译插入语句绑定的列，顺序与 INSERT_NOTE_SQL 中的占位符一致
+     */
+    private static final String[] INSERT_COLUMNS = new String[]{
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+            NotePad.Notes.COLUMN_NAME_TITLE_INITIALS,
+            NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+    };
+
+    private static final String INSERT_NOTE_SQL = "INSERT INTO " + NotePad.Notes.TABLE_NAME
+            + " (" + TextUtils.join(", ", INSERT_COLUMNS) + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * 笔记缓存的最大字节数
+     */
+    private static final int NOTE_CACHE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * 最近读取的笔记的缓存，为单条笔记的查询和数据流提供服务
+     */
+    private final NoteCache mNoteCache = new NoteCache(NOTE_CACHE_SIZE);
+
+    /**
+     * 合并一段时间窗口内的变更通知，使连续写入只触发一次重新查询
+     */
+    private ChangeNotifier mChangeNotifier;
+
+    /**
+     * 打开数据库并完成升级后分块迁移的后台线程
+     */
+    private Thread mOpenThread;
+
+    /**
+     * 当前线程正在执行的批处理（bulkInsert 或 applyBatch），不在批处理中时为 null
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * The state of a bulkInsert or applyBatch call running on one thread.
+     */
+    private static final class Batch {
+        // The compiled insert statement, shared by every insert in the batch.
+        SQLiteStatement insertStatement;
+
+        // The URIs whose data the batch changed, which are notified once it's committed.
+        final LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+
+        // Whether the batch's transaction was marked successful.
+        boolean successful;
+
+        SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+            if (insertStatement == null) {
+                insertStatement = db.compileStatement(INSERT_NOTE_SQL);
+            }
+            return insertStatement;
+        }
+    }
+
     /**
      * 一个块，用于实例化和设置静态对象
      */
@@ -127,6 +301,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         // 新增搜索 URI
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        // 笔记的修订目录和单个修订
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS + "/#",
+                NOTE_REVISION_ID);
         /*
          * 创建并初始化一个返回所有列的投影映射
          */
@@ -152,6 +332,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
+        // 将 "preview" 映射到 "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+        // 将 "title_pinyin" 和 "title_initials" 映射到同名的列
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN,
+                NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS,
+                NotePad.Notes.COLUMN_NAME_TITLE_INITIALS);
+
+        // 将 "note_size" 映射到同名的列，它记录笔记正文未压缩的大小，不读取笔记内容本身
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+                NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+
         /*
          * 创建并初始化处理 Live Folders 的投影映射
          */
@@ -165,6 +358,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 将 "NAME" 映射到 "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
                 LiveFolders.NAME);
+
+        // 将 "DESCRIPTION" 映射到 "preview AS DESCRIPTION"，live folder 无需读取笔记内容即可显示预览
+        sLiveFolderProjectionMap.put(LiveFolders.DESCRIPTION, NotePad.Notes.COLUMN_NAME_PREVIEW
+                + " AS " + LiveFolders.DESCRIPTION);
     }
 
     /**
@@ -172,10 +369,48 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // 只读快照连接，由 getSnapshotDatabase() 按需打开。
+        private SQLiteDatabase mSnapshotDb;
+
         DatabaseHelper(Context context) {
 
             // 调用超类构造函数，请求默认的游标工厂。
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            // 启用预写日志（WAL）。写操作追加到日志而不是锁住整个数据库，因此 NotesList 和
+            // live folder 的查询不必等待 NoteEditor 保存长笔记；框架还会为读操作维护一个连接池。
+            // setWriteAheadLoggingEnabled() 需要 API 16，更早的版本在 onOpen() 中启用。
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        /**
+         * Returns a read-only connection that is kept apart from the helper's connection pool,
+         * for long-running reads such as exports and searches. Because the database runs in WAL
+         * mode, every statement on this connection reads a consistent snapshot of the database
+         * as of the moment it started, without taking any lock that a writer has to wait for,
+         * and without holding one of the pooled connections that the UI's queries need.
+         *
+         * @return The snapshot connection, opened on first use.
+         */
+        synchronized SQLiteDatabase getSnapshotDatabase() {
+            if (mSnapshotDb == null || !mSnapshotDb.isOpen()) {
+                // Opening the writable database first makes sure the file exists, is upgraded,
+                // and has been switched to WAL before the read-only connection attaches to it.
+                String path = getWritableDatabase().getPath();
+                mSnapshotDb = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            }
+            return mSnapshotDb;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mSnapshotDb != null) {
+                mSnapshotDb.close();
+                mSnapshotDb = null;
+            }
+            super.close();
         }
 
         /**
@@ -188,27 +423,398 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " INTEGER"
+                    + ");");
+
+            createFullTextIndex(db);
+            createIndexes(db);
+            createPinyinIndexes(db);
+            NoteRevisions.createTable(db);
+        }
+
+        /**
+         * Creates the secondary indexes on the notes table.
+         * <p>
+         * The list index on (modified, _id, title, preview) covers the projections used by
+         * NotesList and the live folder, so the list never reads the table rows, which hold the
+         * full note bodies. A query ordered by {@link NotePad.Notes#DEFAULT_SORT_ORDER} or
+         * {@link NotePad.Notes#PAGE_SORT_ORDER} is answered by walking this index backwards,
+         * without touching the table or sorting, and a keyset page starts with a seek into it.
+         * Its leading column also serves any lookup or range on the modification date by itself.
+         * The created index serves date-range queries on the creation date.
+         */
+        private static void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + LIST_INDEX_NAME + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + CREATED_INDEX_NAME + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ");");
+        }
+
+        /**
+         * Creates the indexes of the pinyin keys of the titles. A query in
+         * {@link NotePad.Notes#PINYIN_SORT_ORDER} walks the pinyin index, whose entries end with
+         * the _ID, without sorting, and a pinyin search is a range scan of each index, see
+         * {@link NotePadProvider#makePinyinWhere}.
+         */
+        private static void createPinyinIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + PINYIN_INDEX_NAME + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INITIALS_INDEX_NAME + " ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + ");");
+        }
+
+        /**
+         * Creates the FTS table that mirrors the title and note columns, and the triggers that
+         * keep it in sync with the notes table. The FTS docid is the note's _ID, so matches can
+         * be joined back to the notes table through its primary key.
+         */
+        private static void createFullTextIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                    + NotePad.Notes.COLUMN_NAME_NOTE
                     + ");");
+
+            createFullTextWriteTriggers(db);
+
+            db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + FTS_TABLE_NAME
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+        }
+
+        /**
+         * Creates the triggers that copy inserted and updated notes into the FTS table. The FTS
+         * table holds the shadow of the text, see {@link SearchNormalizer}, which SQL can't
+         * compute, so the triggers only copy the text that's its own shadow: plain text that's
+         * all ASCII. Other text, and a note that is stored compressed as a BLOB, is left empty
+         * by the insert trigger, and left as it was by the update trigger if it didn't change,
+         * and the provider then writes its shadow itself, see
+         * {@link NotePadProvider#indexShadowText}.
+         */
+        private static void createFullTextWriteTriggers(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (new." + NotePad.Notes._ID + ", CASE WHEN new."
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " GLOB " + NON_ASCII_PATTERN
+                    + " THEN NULL ELSE new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " END, CASE WHEN typeof(new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") = 'blob' OR new." + NotePad.Notes.COLUMN_NAME_NOTE + " GLOB "
+                    + NON_ASCII_PATTERN + " THEN NULL ELSE new."
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " END); END;");
+
+            // Only fires when the indexed columns change, so touching the dates is free.
+            db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "UPDATE " + FTS_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = CASE WHEN new."
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " IS old."
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " THEN "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " WHEN new."
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " GLOB " + NON_ASCII_PATTERN
+                    + " THEN NULL ELSE new." + NotePad.Notes.COLUMN_NAME_TITLE + " END, "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = CASE WHEN new."
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " IS old."
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " THEN "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " WHEN typeof(new."
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ") = 'blob' OR new."
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " GLOB " + NON_ASCII_PATTERN
+                    + " THEN NULL ELSE new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " END WHERE docid = old." + NotePad.Notes._ID + "; END;");
         }
 
         /**
-         * 演示提供者必须考虑当底层数据存储发生变化时会发生什么。在这个示例中，通过销毁现有数据来升级数据库。
-         * 真实的应用程序应该就地升级数据库。
+         * The upgrade steps, one for each database version after 2. A step that changes the schema
+         * adds an entry here and bumps DATABASE_VERSION. Package visible so that each step can be
+         * run on its own from the tests.
+         */
+        static final DatabaseMigrations MIGRATIONS = new DatabaseMigrations(
+
+                // Version 3 added the full-text index. The existing notes are indexed by a chunked
+                // copy after the upgrade is committed.
+                new DatabaseMigrations.Migration(3) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        createFullTextIndex(db);
+                        DatabaseMigrations.scheduleCopy(db, FTS_TABLE_NAME,
+                                "docid, " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                                        + NotePad.Notes.COLUMN_NAME_NOTE,
+                                NotePad.Notes.TABLE_NAME,
+                                NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                                        + NotePad.Notes.COLUMN_NAME_NOTE,
+                                false);
+                    }
+                },
+
+                // Version 4 added the indexes for the list and date-range queries.
+                new DatabaseMigrations.Migration(4) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        createIndexes(db);
+                    }
+                },
+
+                // Version 5 stores large notes compressed, which the FTS triggers must skip.
+                new DatabaseMigrations.Migration(5) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert");
+                        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+                        createFullTextWriteTriggers(db);
+                    }
+                },
+
+                // Version 6 added _ID to the list index, for keyset paging.
+                new DatabaseMigrations.Migration(6) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("DROP INDEX IF EXISTS " + LIST_INDEX_NAME);
+                        createIndexes(db);
+                    }
+                },
+
+                // Version 7 added the preview column to the table and to the list index. The
+                // previews of the existing notes are computed after the upgrade.
+                new DatabaseMigrations.Migration(7) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                                + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+                        db.execSQL("DROP INDEX IF EXISTS " + LIST_INDEX_NAME);
+                        createIndexes(db);
+                        DatabaseMigrations.scheduleBackfill(db, version);
+                    }
+
+                    @Override
+                    long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+                        Cursor cursor = DecompressingCursor.wrap(db.query(NotePad.Notes.TABLE_NAME,
+                                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                                NotePad.Notes._ID + " > " + afterRowId, null, null, null,
+                                NotePad.Notes._ID, Integer.toString(chunkSize)));
+                        SQLiteStatement update = db.compileStatement("UPDATE "
+                                + NotePad.Notes.TABLE_NAME + " SET "
+                                + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ? WHERE "
+                                + NotePad.Notes._ID + " = ?");
+                        long lastRowId = afterRowId;
+                        try {
+                            while (cursor.moveToNext()) {
+                                lastRowId = cursor.getLong(0);
+                                update.bindString(1, makePreview(cursor.getString(1)));
+                                update.bindLong(2, lastRowId);
+                                update.executeUpdateDelete();
+                            }
+                        } finally {
+                            update.close();
+                            cursor.close();
+                        }
+                        return lastRowId;
+                    }
+                },
+
+                // Version 8 added the revision history. The existing notes get theirs from
+                // their next edit on.
+                new DatabaseMigrations.Migration(8) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        NoteRevisions.createTable(db);
+                    }
+                },
+
+                // Version 9 indexes the shadow of the text, with CJK runs split into bigrams.
+                // The triggers now skip the text that isn't ASCII, and the existing notes that
+                // have any are indexed again after the upgrade.
+                new DatabaseMigrations.Migration(9) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert");
+                        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+                        createFullTextWriteTriggers(db);
+                        DatabaseMigrations.scheduleBackfill(db, version);
+                    }
+
+                    @Override
+                    long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+                        Cursor cursor = DecompressingCursor.wrap(db.query(NotePad.Notes.TABLE_NAME,
+                                new String[] {
+                                        NotePad.Notes._ID,
+                                        NotePad.Notes.COLUMN_NAME_TITLE,
+                                        NotePad.Notes.COLUMN_NAME_NOTE
+                                },
+                                NotePad.Notes._ID + " > " + afterRowId, null, null, null,
+                                NotePad.Notes._ID, Integer.toString(chunkSize)));
+                        long lastRowId = afterRowId;
+                        try {
+                            while (cursor.moveToNext()) {
+                                lastRowId = cursor.getLong(0);
+                                String title = cursor.getString(1);
+                                String note = cursor.getString(2);
+                                if (!SearchNormalizer.isAscii(title)
+                                        || !SearchNormalizer.isAscii(note)) {
+                                    indexShadowText(db, "docid = " + lastRowId, null,
+                                            true, title, true, note);
+                                }
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        return lastRowId;
+                    }
+                },
+
+                // Version 10 added the pinyin keys of the titles, and their indexes. The keys of
+                // the existing notes are computed after the upgrade.
+                new DatabaseMigrations.Migration(10) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " TEXT");
+                        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                                + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " TEXT");
+                        createPinyinIndexes(db);
+                        DatabaseMigrations.scheduleBackfill(db, version);
+                    }
+
+                    @Override
+                    long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+                        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME,
+                                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                                NotePad.Notes._ID + " > " + afterRowId, null, null, null,
+                                NotePad.Notes._ID, Integer.toString(chunkSize));
+                        SQLiteStatement update = db.compileStatement("UPDATE "
+                                + NotePad.Notes.TABLE_NAME + " SET "
+                                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " = ?, "
+                                + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " = ? WHERE "
+                                + NotePad.Notes._ID + " = ?");
+                        long lastRowId = afterRowId;
+                        try {
+                            while (cursor.moveToNext()) {
+                                lastRowId = cursor.getLong(0);
+                                String title = cursor.getString(1);
+                                DatabaseUtils.bindObjectToProgram(update, 1,
+                                        PinyinKeys.toPinyin(title));
+                                DatabaseUtils.bindObjectToProgram(update, 2,
+                                        PinyinKeys.toInitials(title));
+                                update.bindLong(3, lastRowId);
+                                update.executeUpdateDelete();
+                            }
+                        } finally {
+                            update.close();
+                            cursor.close();
+                        }
+                        return lastRowId;
+                    }
+                },
+
+                // Version 11 stores the size of the text, which length() gave as the compressed
+                // size for a compressed note. The sizes of the existing notes are filled in
+                // after the upgrade, from the header of a compressed note.
+                new DatabaseMigrations.Migration(11) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                                + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " INTEGER");
+                        DatabaseMigrations.scheduleBackfill(db, version);
+                    }
+
+                    @Override
+                    long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+                        String note = NotePad.Notes.COLUMN_NAME_NOTE;
+                        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME,
+                                new String[] {
+                                        NotePad.Notes._ID,
+                                        "CASE WHEN typeof(" + note + ") = 'blob' THEN substr("
+                                                + note + ", 1, " + NoteCodec.HEADER_SIZE
+                                                + ") ELSE length(CAST(" + note + " AS BLOB)) END"
+                                },
+                                NotePad.Notes._ID + " > " + afterRowId, null, null, null,
+                                NotePad.Notes._ID, Integer.toString(chunkSize));
+                        SQLiteStatement update = db.compileStatement("UPDATE "
+                                + NotePad.Notes.TABLE_NAME + " SET "
+                                + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " = ? WHERE "
+                                + NotePad.Notes._ID + " = ?");
+                        long lastRowId = afterRowId;
+                        try {
+                            while (cursor.moveToNext()) {
+                                lastRowId = cursor.getLong(0);
+                                long size;
+                                if (cursor.getType(1) != Cursor.FIELD_TYPE_BLOB) {
+                                    size = cursor.getLong(1);
+                                } else {
+                                    try {
+                                        size = NoteCodec.decodeLength(cursor.getBlob(1));
+                                    } catch (SQLException e) {
+                                        Log.w(TAG, "Note " + lastRowId + " is corrupt", e);
+                                        size = 0;
+                                    }
+                                }
+                                update.bindLong(1, size);
+                                update.bindLong(2, lastRowId);
+                                update.executeUpdateDelete();
+                            }
+                        } finally {
+                            update.close();
+                            cursor.close();
+                        }
+                        return lastRowId;
+                    }
+                });
+
+        /**
+         * 就地升级数据库，依次执行 {@link #MIGRATIONS} 中的每个步骤。只有版本 2 之前的数据库因无法就地升级而被销毁重建。
          */
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
-            // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
+            // Versions before 2 can't be upgraded in place.
+            if (!MIGRATIONS.canUpgrade(oldVersion)) {
+
+                // Logs that the database is being upgraded
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
 
-            // Kills the table and existing data
-            db.execSQL("DROP TABLE IF EXISTS notes");
+                // Kills the table and existing data
+                db.execSQL("DROP TABLE IF EXISTS notes");
+                db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+                db.execSQL("DROP TABLE IF EXISTS " + NotePad.Revisions.TABLE_NAME);
 
-            // Recreates the database with a new version
-            onCreate(db);
+                // Recreates the database with a new version
+                onCreate(db);
+                return;
+            }
+
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            MIGRATIONS.upgrade(db, oldVersion, newVersion);
+        }
+
+        /**
+         * Called once the database is open. The copies and backfills that the upgrade steps
+         * scheduled aren't run here, since the helper holds its lock for as long as this
+         * runs; the provider finishes them from its open thread instead.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // Before Android 4.1 the helper can't be asked for WAL up front, so the connection
+            // is switched over here instead. enableWriteAheadLogging() has been available since
+            // Android 3.0.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
     }
 
@@ -224,6 +830,33 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // something tries to access it, and it's only created if it doesn't already exist.
         mOpenHelper = new DatabaseHelper(getContext());
 
+        // Gathers the notifications of bursts of writes, such as imports and autosaves.
+        mChangeNotifier = new ChangeNotifier(getContext().getContentResolver());
+
+        // Opens the database on a background thread, so that an upgrade normally runs before the
+        // first query instead of on the UI thread. The same thread then finishes the chunked
+        // copies and backfills that the upgrade scheduled. By then the database is open and the
+        // helper's lock is released, so queries don't wait for them: each chunk is a short
+        // transaction of its own, which WAL lets readers run beside. Until the work is done,
+        // rows that haven't been reached yet lack their previews, index entries or pinyin keys.
+        mOpenThread = new Thread("NotePadProvider open") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                    if (DatabaseHelper.MIGRATIONS.finishPending(db)) {
+
+                        // Refreshes the lists, which may show rows from before the backfills.
+                        notifyChange(NotePad.Notes.CONTENT_URI);
+                    }
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to open the database", e);
+                }
+            }
+        };
+        mOpenThread.start();
+
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
@@ -237,8 +870,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * the query returns no results or an exception occurs.
      * @throws IllegalArgumentException if the incoming URI pattern is invalid.
      */
-   @Override
-public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder,
+                (CancellationSignal) null);
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String,
+     * CancellationSignal)}, on Android 4.1 and later. Queries of the notes, such as searches,
+     * can then be canceled while SQLite runs them.
+     *
+     * @throws android.os.OperationCanceledException if the query is canceled.
+     */
+    @Override
+public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+        String sortOrder, CancellationSignal cancellationSignal) {
+    // The revisions of a note come from their own table.
+    if (sUriMatcher.match(uri) == NOTE_REVISIONS || sUriMatcher.match(uri) == NOTE_REVISION_ID) {
+        return queryRevisions(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    // A ranked search scores its matches itself, and only reads the rows of the best of them.
+    if (sUriMatcher.match(uri) == NOTES_SEARCH
+            && uri.getBooleanQueryParameter(NotePad.Notes.RANK_QUERY_PARAMETER, false)) {
+        return queryRanked(uri, projection, selection, selectionArgs, sortOrder,
+                cancellationSignal);
+    }
+
+    // A whole note read by ID, such as the editor's and the streams' queries, comes from the cache.
+    if (sUriMatcher.match(uri) == NOTE_ID && selection == null && selectionArgs == null
+            && !uri.getBooleanQueryParameter(NotePad.Notes.SNAPSHOT_QUERY_PARAMETER, false)) {
+        Cursor cached = queryCachedNote(uri, projection);
+        if (cached != null) {
+            return cached;
+        }
+    }
+
     SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
     qb.setTables(NotePad.Notes.TABLE_NAME);
 
@@ -255,27 +925,506 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
             break;
         case NOTES_SEARCH:
             qb.setProjectionMap(sNotesProjectionMap);
-            if (selection != null && !selection.isEmpty()) {
-                qb.appendWhere(selection);
+            String query = uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER);
+            String match = SearchNormalizer.toMatchQuery(query);
+            if (match != null) {
+                // The FTS lookup yields the matching docids, which are then fetched from notes by
+                // primary key, so the cost follows the number of hits rather than the table size.
+                qb.appendWhere("(" + NotePad.Notes._ID + " IN (SELECT docid FROM "
+                        + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ");
+                qb.appendWhereEscapeString(match);
+                qb.appendWhere(")");
+
+                // Text that could be pinyin also finds the titles it's the pinyin of.
+                String pinyin = PinyinKeys.toPrefix(query);
+                if (pinyin != null) {
+                    qb.appendWhere(" OR " + makePinyinWhere(pinyin));
+                }
+                qb.appendWhere(")");
             }
             break;
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
     }
 
+    // Paged queries: a limit, and the keyset of the last row of the previous page.
+    String limit = uri.getQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER);
+    if (limit != null && parsePageParameter(limit) <= 0) {
+        throw new IllegalArgumentException("Invalid limit " + limit);
+    }
+    String beforeModified = uri.getQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER);
+    String beforeId = uri.getQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER);
+    if ((beforeModified == null) != (beforeId == null)) {
+        throw new IllegalArgumentException("Incomplete keyset in " + uri);
+    }
+
     String orderBy;
     if (TextUtils.isEmpty(sortOrder)) {
-        orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+        orderBy = limit != null || beforeModified != null
+                ? NotePad.Notes.PAGE_SORT_ORDER : NotePad.Notes.DEFAULT_SORT_ORDER;
     } else {
         orderBy = sortOrder;
     }
 
-    SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-    Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
-    c.setNotificationUri(getContext().getContentResolver(), uri);
+    if (beforeModified != null) {
+        // A keyset only makes sense in the order it was taken from.
+        if (!NotePad.Notes.PAGE_SORT_ORDER.equals(orderBy)) {
+            throw new IllegalArgumentException("Keyset paging requires the page sort order");
+        }
+
+        // The first term bounds the seek into the list index, the second one skips the rows
+        // of the previous page that share its last modification date.
+        long modified = parsePageParameter(beforeModified);
+        long id = parsePageParameter(beforeId);
+        selection = DatabaseUtils.concatenateWhere(selection,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= " + modified + " AND ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < " + modified + " OR "
+                + NotePad.Notes._ID + " < " + id + ")");
+    }
+
+    // Long-running reads can ask for the snapshot connection so they never compete with the UI.
+    SQLiteDatabase db;
+    if (uri.getBooleanQueryParameter(NotePad.Notes.SNAPSHOT_QUERY_PARAMETER, false)) {
+        db = mOpenHelper.getSnapshotDatabase();
+    } else {
+        db = mOpenHelper.getReadableDatabase();
+    }
+    Cursor c = query(qb, db, projection, selection, selectionArgs, orderBy, limit,
+            cancellationSignal);
+
+    // Callers always see the note as plain text, whether or not it's stored compressed.
+    c = DecompressingCursor.wrap(c);
+
+    // Search results change whenever any note changes, so they watch the whole notes URI.
+    if (sUriMatcher.match(uri) == NOTES_SEARCH) {
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+    } else {
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+    }
     return c;
 }
 
+    /**
+     * Runs a search ranked by relevance, see {@link NotePad.Notes#RANK_QUERY_PARAMETER}.
+     * <p>
+     * The matches are read from the FTS table with their matchinfo(), and scored by
+     * {@link SearchRanker} as they're read, keeping only the best ones. Only then are the rows
+     * and the snippets of those read, by docid, so the cost of a search beyond the FTS lookup
+     * follows the number of results asked for rather than the number of matches. A page
+     * further down, asked for with {@link NotePad.Notes#OFFSET_QUERY_PARAMETER}, ranks the IDs
+     * of the rows before it too, but reads the rows and snippets of its own rows only. The
+     * titles found by their pinyin add {@link SearchRanker#PINYIN_SCORE} to their scores. The
+     * snippets are cut from the shadow text, and then mapped back onto the title or the note
+     * by {@link SearchNormalizer#restoreText}.
+     *
+     * @return The best matches, in order of score. A query without words matches nothing.
+     */
+    private Cursor queryRanked(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        if (!TextUtils.isEmpty(sortOrder)) {
+            throw new IllegalArgumentException("A ranked search can't be sorted by " + sortOrder);
+        }
+        if (uri.getQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER) != null
+                || uri.getQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER) != null) {
+            throw new IllegalArgumentException("Keyset paging requires the page sort order");
+        }
+        int limit = NotePad.Notes.RANKED_RESULT_LIMIT;
+        String limitParameter = uri.getQueryParameter(NotePad.Notes.LIMIT_QUERY_PARAMETER);
+        if (limitParameter != null) {
+            long value = parsePageParameter(limitParameter);
+            if (value <= 0) {
+                throw new IllegalArgumentException("Invalid limit " + limitParameter);
+            }
+            limit = (int) Math.min(value, Integer.MAX_VALUE);
+        }
+        int offset = 0;
+        String offsetParameter = uri.getQueryParameter(NotePad.Notes.OFFSET_QUERY_PARAMETER);
+        if (offsetParameter != null) {
+            long value = parsePageParameter(offsetParameter);
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid offset " + offsetParameter);
+            }
+            offset = (int) Math.min(value, Integer.MAX_VALUE - limit);
+        }
+        if (projection == null) {
+            projection = RANKED_PROJECTION;
+        }
+
+        // Splits the projection into the columns of the notes table and the computed ones.
+        ArrayList<String> noteColumns = new ArrayList<String>();
+        boolean snippets = false;
+        for (String column : projection) {
+            if (NotePad.Notes.COLUMN_NAME_SNIPPET.equals(column)
+                    || NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS.equals(column)) {
+                snippets = true;
+            } else if (!NotePad.Notes.COLUMN_NAME_SCORE.equals(column)) {
+                noteColumns.add(column);
+            }
+        }
+        int idColumn = noteColumns.size();
+        noteColumns.add(NotePad.Notes._ID);
+        if (snippets) {
+            noteColumns.add(NotePad.Notes.COLUMN_NAME_TITLE);
+            noteColumns.add(NotePad.Notes.COLUMN_NAME_NOTE);
+        }
+
+        MatrixCursor result = new MatrixCursor(projection);
+        result.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        String match = SearchNormalizer.toMatchQuery(
+                uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER));
+        if (match == null) {
+            return result;
+        }
+
+        SQLiteDatabase db;
+        if (uri.getBooleanQueryParameter(NotePad.Notes.SNAPSHOT_QUERY_PARAMETER, false)) {
+            db = mOpenHelper.getSnapshotDatabase();
+        } else {
+            db = mOpenHelper.getReadableDatabase();
+        }
+
+        // Scores every match, keeping the best ones. The caller's selection filters the matches
+        // before they're ranked.
+        String sql = "SELECT docid, matchinfo(" + FTS_TABLE_NAME + ", '"
+                + SearchRanker.MATCHINFO_FORMAT + "') FROM " + FTS_TABLE_NAME + " WHERE "
+                + FTS_TABLE_NAME + " MATCH ?";
+        String[] args = new String[] { match };
+        if (!TextUtils.isEmpty(selection)) {
+            sql += " AND docid IN (SELECT " + NotePad.Notes._ID + " FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE (" + selection + "))";
+            if (selectionArgs != null) {
+                args = new String[selectionArgs.length + 1];
+                args[0] = match;
+                System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+            }
+        }
+        String query = uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER);
+        HashSet<Long> pinyinMatches = readPinyinMatches(db, PinyinKeys.toPrefix(query),
+                selection, selectionArgs, cancellationSignal);
+        SearchRanker.TopK top = new SearchRanker.TopK(offset + limit);
+        Cursor matches = rawQuery(db, sql, args, cancellationSignal);
+        try {
+            while (matches.moveToNext()) {
+                long id = matches.getLong(0);
+                double score = SearchRanker.score(matches.getBlob(1));
+                if (pinyinMatches.remove(id)) {
+                    score += SearchRanker.PINYIN_SCORE;
+                }
+                top.add(id, score);
+            }
+        } finally {
+            matches.close();
+        }
+        for (long id : pinyinMatches) {
+            top.add(id, SearchRanker.PINYIN_SCORE);
+        }
+        double[] scores = new double[top.size()];
+        long[] ids = top.drain(scores);
+
+        // Only the rows of the page asked for are read. The ones before it were just ranked.
+        if (ids.length <= offset) {
+            return result;
+        }
+        ids = Arrays.copyOfRange(ids, offset, ids.length);
+        scores = Arrays.copyOfRange(scores, offset, scores.length);
+        StringBuilder idList = new StringBuilder(ids.length * 8);
+        for (long id : ids) {
+            if (idList.length() > 0) {
+                idList.append(',');
+            }
+            idList.append(id);
+        }
+
+        // Reads the rows of the best matches, and the text their snippets are cut from.
+        HashMap<Long, Object[]> rows = new HashMap<Long, Object[]>();
+        HashMap<Long, String[]> texts = new HashMap<Long, String[]>();
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        qb.setProjectionMap(sNotesProjectionMap);
+        qb.appendWhere(NotePad.Notes._ID + " IN (" + idList + ")");
+        Cursor c = DecompressingCursor.wrap(qb.query(db,
+                noteColumns.toArray(new String[noteColumns.size()]), null, null, null, null,
+                null));
+        try {
+            while (c.moveToNext()) {
+                Object[] row = new Object[idColumn];
+                for (int i = 0; i < idColumn; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = c.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = c.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = c.getBlob(i);
+                            break;
+                        default:
+                            row[i] = c.getString(i);
+                            break;
+                    }
+                }
+                rows.put(c.getLong(idColumn), row);
+                if (snippets) {
+                    // The wrapper only decodes the first note column, which may be the
+                    // caller's.
+                    int noteColumn = idColumn + 2;
+                    String note = c.getType(noteColumn) == Cursor.FIELD_TYPE_BLOB
+                            ? NoteCodec.decode(c.getBlob(noteColumn))
+                            : c.getString(noteColumn);
+                    texts.put(c.getLong(idColumn),
+                            new String[] { c.getString(idColumn + 1), note });
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        // Reads their snippets, with the matches marked.
+        HashMap<Long, String> snippetTexts = new HashMap<Long, String>();
+        if (snippets) {
+            Cursor s = rawQuery(db, "SELECT docid, snippet(" + FTS_TABLE_NAME + ", ?, ?, ?, -1, "
+                    + SNIPPET_TOKENS + ") FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME
+                    + " MATCH ? AND docid IN (" + idList + ")",
+                    new String[] { String.valueOf(SearchRanker.MATCH_START),
+                            String.valueOf(SearchRanker.MATCH_END), "\u2026", match },
+                    cancellationSignal);
+            try {
+                while (s.moveToNext()) {
+                    snippetTexts.put(s.getLong(0), s.getString(1));
+                }
+            } finally {
+                s.close();
+            }
+        }
+
+        // Puts the rows together in order of score. A note deleted since the match is skipped.
+        for (int i = 0; i < ids.length; i++) {
+            Object[] row = rows.get(ids[i]);
+            if (row == null) {
+                continue;
+            }
+            String snippet = null;
+            StringBuilder offsets = new StringBuilder();
+            String marked = snippetTexts.get(ids[i]);
+            if (marked != null) {
+                String[] text = texts.get(ids[i]);
+                snippet = SearchRanker.stripMatches(SearchNormalizer.restoreText(
+                        SearchNormalizer.restoreSnippet(marked), text[0], text[1]), offsets);
+            }
+            Object[] values = new Object[projection.length];
+            int noteColumn = 0;
+            for (int j = 0; j < projection.length; j++) {
+                if (NotePad.Notes.COLUMN_NAME_SCORE.equals(projection[j])) {
+                    values[j] = scores[i];
+                } else if (NotePad.Notes.COLUMN_NAME_SNIPPET.equals(projection[j])) {
+                    values[j] = snippet;
+                } else if (NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS.equals(projection[j])) {
+                    values[j] = offsets.toString();
+                } else {
+                    values[j] = row[noteColumn++];
+                }
+            }
+            result.addRow(values);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the IDs of the notes whose titles a ranked search finds by their pinyin, see
+     * {@link #makePinyinWhere}.
+     *
+     * @param pinyin The query as a pinyin prefix, or null if it can't be pinyin.
+     * @return The IDs, which are none if the query can't be pinyin.
+     */
+    private static HashSet<Long> readPinyinMatches(SQLiteDatabase db, String pinyin,
+            String selection, String[] selectionArgs, CancellationSignal cancellationSignal) {
+        HashSet<Long> ids = new HashSet<Long>();
+        if (pinyin == null) {
+            return ids;
+        }
+        String sql = "SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE (" + makePinyinWhere(pinyin) + ")";
+        if (!TextUtils.isEmpty(selection)) {
+            sql += " AND (" + selection + ")";
+        } else {
+            selectionArgs = null;
+        }
+        Cursor c = rawQuery(db, sql, selectionArgs, cancellationSignal);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    // Runs a raw query that can be canceled if there's a signal, which is only on Android 4.1
+    // and later.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor rawQuery(SQLiteDatabase db, String sql, String[] args,
+            CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            return db.rawQuery(sql, args, cancellationSignal);
+        }
+        return db.rawQuery(sql, args);
+    }
+
+    // Runs a query of a builder that can be canceled if there's a signal, which is only on
+    // Android 4.1 and later.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor query(SQLiteQueryBuilder qb, SQLiteDatabase db, String[] projection,
+            String selection, String[] selectionArgs, String orderBy, String limit,
+            CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            return qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit,
+                    cancellationSignal);
+        }
+        return qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
+    }
+
+    /**
+     * Serves a query on a single note from the note cache. On a miss, a query whose projection
+     * includes the note text reads the whole row and caches it, while a lighter query, such as
+     * one for the title alone, goes to the database as usual.
+     *
+     * @return A cursor holding the note, or null if the query has to go to the database.
+     */
+    private Cursor queryCachedNote(Uri uri, String[] projection) {
+        // Inside a batch, the rows read may not be committed yet, so they mustn't be cached.
+        if (mBatch.get() != null || !NoteCache.supports(projection)) {
+            return null;
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        Object[] row = mNoteCache.get(id);
+        if (row == null) {
+            if (projection != null
+                    && !Arrays.asList(projection).contains(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                return null;
+            }
+
+            long generation = mNoteCache.getGeneration();
+            Cursor c = DecompressingCursor.wrap(mOpenHelper.getReadableDatabase().query(
+                    NotePad.Notes.TABLE_NAME, NoteCache.COLUMNS, NotePad.Notes._ID + " = " + id,
+                    null, null, null, null));
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                row = NoteCache.readRow(c);
+            } finally {
+                c.close();
+            }
+            mNoteCache.put(id, row, generation);
+        }
+
+        Cursor cursor = NoteCache.newCursor(row, projection);
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    /**
+     * Queries the revisions of a note. The directory lists them, without their text. A single
+     * revision also has its text, rebuilt from its snapshot and deltas.
+     */
+    private Cursor queryRevisions(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c;
+        if (sUriMatcher.match(uri) == NOTE_REVISIONS) {
+            if (projection == null) {
+                projection = REVISION_COLUMNS;
+            } else {
+                for (String column : projection) {
+                    if (!Arrays.asList(REVISION_COLUMNS).contains(column)) {
+                        throw new IllegalArgumentException("Invalid column " + column);
+                    }
+                }
+            }
+            c = db.query(NotePad.Revisions.TABLE_NAME, projection,
+                    DatabaseUtils.concatenateWhere(
+                            NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, selection),
+                    selectionArgs, null, null, TextUtils.isEmpty(sortOrder)
+                            ? NotePad.Revisions.DEFAULT_SORT_ORDER : sortOrder);
+        } else {
+            long revisionId = Long.parseLong(uri.getPathSegments().get(
+                    NotePad.Revisions.REVISION_ID_PATH_POSITION));
+            MatrixCursor revision = new MatrixCursor(new String[] {
+                    NotePad.Revisions._ID, NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+                    NotePad.Revisions.COLUMN_NAME_CREATE_DATE, NotePad.Revisions.COLUMN_NAME_NOTE });
+            Cursor row = db.query(NotePad.Revisions.TABLE_NAME,
+                    new String[] { NotePad.Revisions.COLUMN_NAME_CREATE_DATE },
+                    NotePad.Revisions._ID + " = " + revisionId + " AND "
+                            + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId,
+                    null, null, null, null);
+            try {
+                if (row.moveToFirst()) {
+                    String text = NoteRevisions.reconstruct(db, revisionId);
+                    revision.addRow(new Object[] {
+                            revisionId, Long.parseLong(noteId), row.getLong(0), text });
+                }
+            } finally {
+                row.close();
+            }
+            c = revision;
+        }
+        c.setNotificationUri(getContext().getContentResolver(),
+                NotePad.Revisions.getContentUri(Long.parseLong(noteId)));
+        return c;
+    }
+
+    /**
+     * Returns statistics of the note cache for {@link NotePad.Notes#METHOD_GET_CACHE_STATS}, and
+     * sets the retention of the revisions for {@link NotePad.Revisions#METHOD_SET_RETENTION}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Revisions.METHOD_SET_RETENTION.equals(method)) {
+            if (extras != null) {
+                mRevisionKeepCount = extras.getInt(NotePad.Revisions.KEEP_COUNT,
+                        mRevisionKeepCount);
+                mRevisionKeepMillis = extras.getLong(NotePad.Revisions.KEEP_MILLIS,
+                        mRevisionKeepMillis);
+            }
+            return null;
+        }
+        if (NotePad.Notes.METHOD_GET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(NotePad.Notes.CACHE_HITS, mNoteCache.hitCount());
+            stats.putInt(NotePad.Notes.CACHE_MISSES, mNoteCache.missCount());
+            stats.putInt(NotePad.Notes.CACHE_EVICTIONS, mNoteCache.evictionCount());
+            stats.putInt(NotePad.Notes.CACHE_SIZE, mNoteCache.size());
+            stats.putInt(NotePad.Notes.CACHE_MAX_SIZE, mNoteCache.maxSize());
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Parses a numeric paging parameter.
+     *
+     * @throws IllegalArgumentException if the value isn't a number.
+     */
+    private static long parsePageParameter(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging parameter " + value);
+        }
+    }
+
     /**
      * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
      * Returns the MIME data type of the URI given as a parameter.
@@ -292,15 +1441,22 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, returns the general content type.
+            // If the pattern is for notes, live folders or search, returns the general content type.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            case NOTE_REVISIONS:
+                return NotePad.Revisions.CONTENT_TYPE;
+
+            case NOTE_REVISION_ID:
+                return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -315,14 +1471,27 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[]{ClipDescription.MIMETYPE_TEXT_PLAIN});
 
+    /**
+     * This describes the MIME types that are supported for exporting all of the notes through
+     * the notes URI. The first one is the default.
+     */
+    static ClipDescription NOTES_EXPORT_TYPES = new ClipDescription(null,
+            new String[]{NotePad.Notes.EXPORT_JSON_LINES_TYPE, NotePad.Notes.EXPORT_ZIP_TYPE});
+
+    /**
+     * Writes the streams of the notes URI.
+     */
+    private final NoteExporter mExporter = new NoteExporter();
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * The application can convert such a note to a plain text stream. The notes URI is also
+     * supported, as an export of every note, in JSON Lines or as a ZIP archive.
      *
      * @param uri            the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     *                       type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     *                       type for MIME types that match the filter.
+     * @return the matching data stream MIME types, or null if there are none.
      * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
      */
     @Override
@@ -332,10 +1501,16 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, return the export types that match the filter.
             case NOTES:
+                return NOTES_EXPORT_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for live folders or search, return null. Data streams are not
+            // supported for this type of URI.
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -371,15 +1546,25 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // Exports of the notes URI read the notes on the pipe's thread, a chunk at a time, from
+        // the snapshot connection so that they don't hold up the UI's queries.
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, mOpenHelper.getSnapshotDatabase(),
+                            mExporter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
             // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
+            // rather than using the database query method. The note's contents are read later,
+            // by writeDataToPipe().
             Cursor c = query(
                     uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                    // and contents
+                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID and
+                    // title
                     null,                   // No WHERE clause, get all matching records
                     null,                   // Since there is no WHERE clause, no selection criteria
                     null                    // Use the default sort order (modification date,
@@ -387,59 +1572,264 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
             );
 
 
-            // If the query fails or the cursor is empty, stop
-            if (c == null || !c.moveToFirst()) {
+            // If the query fails or the cursor is empty, stop
+            if (c == null || !c.moveToFirst()) {
+
+                // If the cursor is empty, simply close the cursor and return
+                if (c != null) {
+                    c.close();
+                }
+
+                // If the cursor is null, throw an exception
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+
+            // Start a new thread that pipes the stream data back to the caller.
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        // If the MIME type is not supported, return a read-only handle to the file.
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
+     * to perform the actual work of converting the data in one of cursors to a
+     * stream of data for the client to read.
+     * <p>
+     * The note's contents never become a String. The stored value is copied once, by SQLite,
+     * into a shared memory region outside of the Java heap, and decoded from there into the pipe
+     * one buffer at a time, so the heap taken is the same for any size of note. Reading the
+     * value in substr() slices instead would make SQLite load the whole value for every slice.
+     * <p>
+     * The title comes first, unless the {@link NotePad.Notes#STREAM_BODY_ONLY} option is set, in
+     * which case the stream holds the text of the note and nothing else.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, Cursor c) {
+        // We currently only support conversion-to-text from a single note entry,
+        // so no need for cursor data type checking here.
+        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        BufferedOutputStream out = new BufferedOutputStream(fout, STREAM_BUFFER_SIZE);
+        InputStream note = null;
+        boolean bodyOnly = opts != null && opts.getBoolean(NotePad.Notes.STREAM_BODY_ONLY, false);
+        try {
+            if (!bodyOnly) {
+                out.write((c.getString(READ_NOTE_TITLE_INDEX) + "\n\n").getBytes("UTF-8"));
+            }
+
+            // The value is null if the note is null.
+            ParcelFileDescriptor value = DatabaseUtils.blobFileDescriptorForQuery(
+                    mOpenHelper.getReadableDatabase(), STREAM_NOTE_SQL,
+                    new String[] { Long.toString(c.getLong(READ_NOTE_ID_INDEX)) });
+            if (value == null) {
+                if (!bodyOnly) {
+                    out.write("null".getBytes("UTF-8"));
+                }
+            } else {
+                note = new ParcelFileDescriptor.AutoCloseInputStream(value);
+                NoteCodec.decode(note, out, new byte[STREAM_BUFFER_SIZE]);
+            }
+            if (!bodyOnly) {
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            // The reader usually closed the pipe before reading everything.
+            Log.w(TAG, "Streaming of " + uri + " stopped", e);
+        } catch (SQLException e) {
+            // The note was deleted after it was opened, or its value is corrupt.
+            Log.w(TAG, "Failed to stream " + uri, e);
+        } finally {
+            c.close();
+            try {
+                if (note != null) {
+                    note.close();
+                }
+                out.flush();
+            } catch (IOException e) {
+            }
+            try {
+                fout.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+//END_INCLUDE(stream)
+
+    /**
+     * Opens a pipe that writes the text of a note, so that notes of any size can be written
+     * without going through the size limit of a Binder transaction. The caller writes the UTF-8
+     * text into the returned descriptor and closes it. The provider reads the pipe on a thread
+     * of its own, and once the caller has closed it, replaces the note's text, and updates its
+     * modification date, in a single update. Nothing is written if the note is deleted in the
+     * meantime.
+     * <p>
+     * Nothing is written either unless the writer is known to have finished. On Android 4.4 and
+     * later the pipe is a reliable one, so a writer that crashes, or that closes the descriptor
+     * with {@link ParcelFileDescriptor#closeWithError}, leaves the note as it was. Before that,
+     * a pipe can't tell an aborted writer from one that's done, so the caller must give the
+     * length of the text in {@link NotePad.Notes#LENGTH_QUERY_PARAMETER}, and the text is only
+     * stored if that many bytes arrive. The length is checked on every version when it's given.
+     *
+     * @param uri A note ID URI, with the length of the text in bytes if needed.
+     * @param mode "w" or "wt". The note's text is always replaced.
+     * @return The write end of the pipe.
+     * @throws FileNotFoundException if the URI isn't a note ID URI, the mode isn't a write
+     * mode, the length is missing or invalid, or the note doesn't exist.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_ID || !("w".equals(mode) || "wt".equals(mode))) {
+            return super.openFile(uri, mode);
+        }
+
+        final int length;
+        String lengthParameter = uri.getQueryParameter(NotePad.Notes.LENGTH_QUERY_PARAMETER);
+        if (lengthParameter != null) {
+            try {
+                length = Integer.parseInt(lengthParameter);
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException("Invalid length " + lengthParameter);
+            }
+            if (length < 0) {
+                throw new FileNotFoundException("Invalid length " + lengthParameter);
+            }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            length = -1;
+        } else {
+            throw new FileNotFoundException("Writing " + uri + " requires a length");
+        }
+
+        long id = ContentUris.parseId(uri);
+        if (DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(),
+                NotePad.Notes.TABLE_NAME, NotePad.Notes._ID + " = " + id, null) == 0) {
+            throw new FileNotFoundException("No note at " + uri);
+        }
 
-                // If the cursor is empty, simply close the cursor and return
-                if (c != null) {
-                    c.close();
-                }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = createWritePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create a pipe for " + uri);
+        }
 
-                // If the cursor is null, throw an exception
-                throw new FileNotFoundException("Unable to query " + uri);
+        final Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
+        new Thread("NotePadProvider write " + id) {
+            @Override
+            public void run() {
+                readNoteFromPipe(noteUri, pipe[0], length);
             }
+        }.start();
+        return pipe[1];
+    }
 
-            // Start a new thread that pipes the stream data back to the caller.
-            return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+    /**
+     * Creates the pipe returned by {@link #openFile}: a reliable one where there are any, which
+     * is on Android 4.4 and later.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static ParcelFileDescriptor[] createWritePipe() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return ParcelFileDescriptor.createReliablePipe();
         }
-
-        // If the MIME type is not supported, return a read-only handle to the file.
-        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        return ParcelFileDescriptor.createPipe();
     }
 
     /**
-     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
-     * to perform the actual work of converting the data in one of cursors to a
-     * stream of data for the client to read.
+     * Reads the text of a note from the read end of a pipe opened by {@link #openFile}, until
+     * the writer closes it, and stores it through {@link #update}, which compresses and indexes
+     * it. Those both need the whole text, so it's collected here as it arrives, rather than
+     * appended to the row in pieces, which would rewrite the growing value for every piece. It's
+     * collected as UTF-8, which is what arrives, in a buffer that grows with it up to the given
+     * length if there is one, and decoded once, so that the only copy of the text besides that
+     * is the String that's stored. The buffer only grows as the bytes arrive, since the length
+     * is the caller's.
+     * <p>
+     * The text isn't stored if the pipe reports that the writer failed, or if the number of
+     * bytes that arrived isn't the given length. Package visible for testing.
+     *
+     * @param length The length of the text in bytes, or -1 if it isn't known, in which case the
+     * pipe must be a reliable one.
+     * @return true if the text was stored.
      */
-    @Override
-    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
-                                Bundle opts, Cursor c) {
-        // We currently only support conversion-to-text from a single note entry,
-        // so no need for cursor data type checking here.
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    boolean readNoteFromPipe(Uri uri, ParcelFileDescriptor input, int length) {
+        InputStream in = null;
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
-        } finally {
-            c.close();
-            if (pw != null) {
-                pw.flush();
+            in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+            byte[] bytes = new byte[length >= 0 ? Math.min(length, STREAM_BUFFER_SIZE)
+                    : STREAM_BUFFER_SIZE];
+            int size = 0;
+            while (true) {
+                if (size == bytes.length) {
+                    if (size == length) {
+                        // Anything past the given length means the length was wrong.
+                        if (in.read() >= 0) {
+                            Log.w(TAG, "Dropped the text written to " + uri
+                                    + ", which is longer than " + length + " bytes");
+                            return false;
+                        }
+                        break;
+                    }
+                    long capacity = Math.min((long) bytes.length * 2, MAX_ARRAY_SIZE);
+                    if (length >= 0) {
+                        capacity = Math.min(capacity, length);
+                    }
+                    if (capacity == bytes.length) {
+                        Log.w(TAG, "Dropped the text written to " + uri
+                                + ", which is longer than " + size + " bytes");
+                        return false;
+                    }
+                    bytes = Arrays.copyOf(bytes, (int) capacity);
+                }
+                int count = in.read(bytes, size, bytes.length - size);
+                if (count < 0) {
+                    break;
+                }
+                size += count;
             }
+
+            // A reliable pipe throws here if the writer crashed, or closed it with an error.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                input.checkError();
+            }
+            if (length >= 0 && size != length) {
+                Log.w(TAG, "Dropped the text written to " + uri + ", which ended after " + size
+                        + " of " + length + " bytes");
+                return false;
+            }
+
+            String note = new String(bytes, 0, size, "UTF-8");
+
+            // Lets the bytes go while the note is stored.
+            bytes = null;
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            if (update(uri, values, null, null) == 0) {
+                Log.w(TAG, "Dropped the text written to " + uri + ", which no longer exists");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropped the text written to " + uri + ", whose writer failed", e);
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to store the text written to " + uri, e);
+        } finally {
             try {
-                fout.close();
+                if (in != null) {
+                    in.close();
+                } else {
+                    input.close();
+                }
             } catch (IOException e) {
             }
         }
+        return false;
     }
-//END_INCLUDE(stream)
 
     /**
      * This is called when a client calls
@@ -459,6 +1849,38 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        // Fills in the default values for any columns the caller left out.
+        ContentValues values = applyInsertDefaults(initialValues);
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Performs the insert and returns the ID of the new note.
+        long rowId = insertNote(db, values);
+
+        // If the insert succeeded, the row ID exists.
+        if (rowId > 0) {
+            // Creates a URI with the note ID pattern and the new row ID appended to it.
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+
+            // Notifies observers registered against this provider that the data changed.
+            notifyChange(noteUri);
+            return noteUri;
+        }
+
+        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Returns a copy of the incoming values with the creation date, modification date, title and
+     * note text filled in where the caller didn't supply them.
+     *
+     * @param initialValues The values passed to insert, or null.
+     * @return A new map that contains every column of a note.
+     */
+    private static ContentValues applyInsertDefaults(ContentValues initialValues) {
+
         // A map to hold the new record's values.
         ContentValues values;
 
@@ -496,30 +1918,280 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
-        // Opens the database object in "write" mode.
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        return values;
+    }
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
+    /**
+     * Writes one row into the notes table. Inside a batch, rows that contain exactly the
+     * {@link #INSERT_COLUMNS} go through the batch's compiled insert statement, so the SQL is
+     * parsed once per batch instead of once per row.
+     *
+     * @param db The writable database.
+     * @param values The complete values of the new note, see {@link #applyInsertDefaults}.
+     * @return The row ID of the new note, or -1 if the insert failed.
+     */
+    private long insertNote(SQLiteDatabase db, ContentValues values) {
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, makePreview(note));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, NoteCodec.utf8Length(note));
+        putPinyinKeys(values, title);
+        Object stored = NoteCodec.encode(note);
+        boolean compressed = stored instanceof byte[];
+        if (!compressed && SearchNormalizer.isAscii(title) && SearchNormalizer.isAscii(note)) {
+            return insertRow(db, values);
+        }
+
+        // A note that the FTS triggers can't index is written, and its shadow text indexed, in
+        // one transaction.
+        if (compressed) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, (byte[]) stored);
+        }
+        db.beginTransaction();
+        try {
+            long rowId = insertRow(db, values);
+            if (rowId > 0) {
+                indexShadowText(db, "docid = " + rowId, null, true, title, true, note);
+            }
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts the values, which are ready to store, into the notes table. See
+     * {@link #insertNote}.
+     */
+    private long insertRow(SQLiteDatabase db, ContentValues values) {
+        Batch batch = mBatch.get();
+        if (batch != null && values.size() == INSERT_COLUMNS.length) {
+            SQLiteStatement insert = batch.getInsertStatement(db);
+            for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                DatabaseUtils.bindObjectToProgram(insert, i + 1, values.get(INSERT_COLUMNS[i]));
+            }
+            return insert.executeInsert();
+        }
+
+        return db.insert(
                 NotePad.Notes.TABLE_NAME,        // The table to insert into.
                 NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
                 // if values is empty.
                 values                           // A map of column names, and the values to insert
                 // into the columns.
         );
+    }
 
-        // If the insert succeeded, the row ID exists.
-        if (rowId > 0) {
-            // Creates a URI with the note ID pattern and the new row ID appended to it.
-            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+    /**
+     * Puts the pinyin keys of a title into the values of a note, see {@link PinyinKeys}.
+     */
+    private static void putPinyinKeys(ContentValues values, String title) {
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN, PinyinKeys.toPinyin(title));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS, PinyinKeys.toInitials(title));
+    }
 
-            // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+    /**
+     * Returns the where clause that selects the notes whose title's pinyin, or pinyin initials,
+     * starts with a prefix from {@link PinyinKeys#toPrefix}. Each term is a range scan of the
+     * index of its key, and SQLite reads the two ranges and merges them. The pinyin of a title
+     * without any characters that have pinyin is only the title itself, lower-cased, so such
+     * titles are left to the full-text search.
+     */
+    static String makePinyinWhere(String prefix) {
+        String start = DatabaseUtils.sqlEscapeString(prefix);
+        String end = DatabaseUtils.sqlEscapeString(PinyinKeys.endOfPrefix(prefix));
+        return "(" + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " >= " + start + " AND "
+                + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " < " + end + ") OR ("
+                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " >= " + start + " AND "
+                + NotePad.Notes.COLUMN_NAME_TITLE_PINYIN + " < " + end + " AND "
+                + NotePad.Notes.COLUMN_NAME_TITLE_INITIALS + " IS NOT NULL)";
+    }
+
+    /**
+     * Returns the preview of a note: the start of its text, with every run of whitespace
+     * collapsed into a single space, cut at {@link NotePad.Notes#PREVIEW_LENGTH} characters.
+     * Only the start of the note is looked at, however long the note is.
+     *
+     * @param note The note text, or null.
+     * @return The preview, which is empty if the note is.
+     */
+    static String makePreview(String note) {
+        if (note == null) {
+            return "";
+        }
+        StringBuilder preview = new StringBuilder(
+                Math.min(note.length(), NotePad.Notes.PREVIEW_LENGTH));
+        boolean pendingSpace = false;
+        for (int i = 0; i < note.length() && preview.length() < NotePad.Notes.PREVIEW_LENGTH;
+                i++) {
+            char c = note.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                // Leading whitespace is dropped, any other run becomes one space.
+                pendingSpace = preview.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                if (preview.length() + 1 >= NotePad.Notes.PREVIEW_LENGTH) {
+                    break;
+                }
+                preview.append(' ');
+                pendingSpace = false;
+            }
+            preview.append(c);
         }
 
-        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
-        throw new SQLException("Failed to insert row into " + uri);
+        // Doesn't leave half of a surrogate pair at the end.
+        int length = preview.length();
+        if (length > 0 && Character.isHighSurrogate(preview.charAt(length - 1))) {
+            preview.setLength(length - 1);
+        }
+        return preview.toString();
+    }
+
+    /**
+     * Writes the shadow text of notes, see {@link SearchNormalizer}, into the full-text index,
+     * in place of what the FTS triggers left there for text that isn't ASCII or is stored
+     * compressed. Must be called in the transaction that wrote the notes.
+     *
+     * @param db The writable database.
+     * @param where Selects the notes in the FTS table, by docid.
+     * @param whereArgs The arguments of the where clause, or null if it has none.
+     * @param writesTitle True if the title is written.
+     * @param title The plain text of the title.
+     * @param writesNote True if the note is written.
+     * @param note The plain text of the note.
+     */
+    private static void indexShadowText(SQLiteDatabase db, String where, Object[] whereArgs,
+            boolean writesTitle, String title, boolean writesNote, String note) {
+        StringBuilder sql = new StringBuilder("UPDATE " + FTS_TABLE_NAME + " SET ");
+        ArrayList<Object> args = new ArrayList<Object>(4);
+        if (writesTitle) {
+            sql.append(NotePad.Notes.COLUMN_NAME_TITLE).append(" = ?");
+            args.add(SearchNormalizer.normalize(title));
+        }
+        if (writesNote) {
+            sql.append(writesTitle ? ", " : "").append(NotePad.Notes.COLUMN_NAME_NOTE)
+                    .append(" = ?");
+            args.add(SearchNormalizer.normalize(note));
+        }
+        sql.append(" WHERE ").append(where);
+        if (whereArgs != null) {
+            Collections.addAll(args, whereArgs);
+        }
+        db.execSQL(sql.toString(), args.toArray());
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in a single transaction through one compiled insert statement,
+     * applying the same defaults as {@link #insert(Uri, ContentValues)}, and notifies listeners
+     * once when the transaction has been committed.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if any of the inserts fails. No rows are inserted in that case.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        try {
+            for (ContentValues initialValues : values) {
+                if (insertNote(db, applyInsertDefaults(initialValues)) <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+            }
+            if (values.length > 0) {
+                batch.changedUris.add(NotePad.Notes.CONTENT_URI);
+            }
+            db.setTransactionSuccessful();
+            batch.successful = true;
+        } finally {
+            endBatch(db, batch);
+        }
+        return values.length;
+    }
+
+    /**
+     * Applies all of the operations in a single transaction. The inserts, updates and deletes
+     * that the operations perform share one compiled insert statement, and listeners are
+     * notified once per changed URI after the transaction has been committed, instead of once
+     * per operation.
+     *
+     * @throws OperationApplicationException if any of the operations fails. None of the
+     * operations take effect in that case.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            batch.successful = true;
+            return results;
+        } finally {
+            endBatch(db, batch);
+        }
+    }
+
+    /**
+     * Starts a transaction and marks the calling thread as running a batch, so that
+     * {@link #insertNote} and {@link #notifyChange} defer to it.
+     */
+    private Batch beginBatch(SQLiteDatabase db) {
+        db.beginTransaction();
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch}. If anything changed, drops the cached
+     * notes, and if the transaction was also committed, hands the changed URIs to the
+     * {@link ChangeNotifier}, which sends them together.
+     */
+    private void endBatch(SQLiteDatabase db, Batch batch) {
+        mBatch.remove();
+        if (batch.insertStatement != null) {
+            batch.insertStatement.close();
+        }
+        db.endTransaction();
+        if (!batch.changedUris.isEmpty()) {
+            mNoteCache.clear();
+        }
+        if (batch.successful) {
+            mChangeNotifier.notifyChanges(batch.changedUris);
+        }
+    }
+
+    /**
+     * Notifies observers that the data at the given URI changed, and drops the cached notes that
+     * it covers. Called after the change has been committed. The cached notes are dropped right
+     * away, while the notification goes through the {@link ChangeNotifier}, which coalesces it
+     * with the other changes of the next few milliseconds. While the calling thread is running
+     * a batch, both are folded into the end of the batch.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.changedUris.add(uri);
+            return;
+        }
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            mNoteCache.remove(ContentUris.parseId(uri));
+        } else {
+            mNoteCache.clear();
+        }
+        mChangeNotifier.notifyChange(uri);
     }
 
     /**
@@ -596,7 +2268,7 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows deleted.
         return count;
@@ -630,80 +2302,290 @@ public Cursor query(Uri uri, String[] projection, String selection, String[] sel
         int count;
         String finalWhere;
 
-        // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        // Updates the preview and the size along with the note, and compresses a long note.
+        // Neither can be written directly. The caller's map is left as it is.
+        String note = null;
+        int noteSize = 0;
+        byte[] compressed = null;
+        boolean writesNote = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        boolean writesTitle = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE);
+        String title = writesTitle ? values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE) : null;
+        long revisedNoteId = -1;
+        if (writesNote) {
+            note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            values = new ContentValues(values);
+            values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, makePreview(note));
+            noteSize = NoteCodec.utf8Length(note);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, noteSize);
+            Object stored = NoteCodec.encode(note);
+            if (stored instanceof byte[]) {
+                compressed = (byte[]) stored;
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, compressed);
+            }
 
-            // If the incoming URI matches the general notes pattern, does the update based on
-            // the incoming data.
-            case NOTES:
+        } else if (values.containsKey(NotePad.Notes.COLUMN_NAME_PREVIEW)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_SIZE)) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+        }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
-                        whereArgs                 // The where clause column values to select on.
-                );
-                break;
+        // Likewise, the pinyin keys are updated along with the title, and never on their own.
+        if (writesTitle) {
+            values = new ContentValues(values);
+            putPinyinKeys(values, title);
+        } else if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS)) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_TITLE_PINYIN);
+            values.remove(NotePad.Notes.COLUMN_NAME_TITLE_INITIALS);
+        }
 
-            // If the incoming URI matches a single note ID, does the update based on the incoming
-            // data, but modifies the where clause to restrict it to the particular note ID.
-            case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        // Text that the FTS triggers can't index has its shadow written by the provider.
+        boolean indexesShadow = (writesNote
+                && (compressed != null || !SearchNormalizer.isAscii(note)))
+                || (writesTitle && !SearchNormalizer.isAscii(title));
 
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                                " = " +                                          // test for equality
-                                uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
+        // The note, its index entry and its revision are written in one transaction.
+        boolean inTransaction = writesNote || indexesShadow;
+        if (inTransaction) {
+            db.beginTransaction();
+        }
 
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
+        try {
 
+            // Does the update based on the incoming URI pattern
+            switch (sUriMatcher.match(uri)) {
+
+                // If the incoming URI matches the general notes pattern, does the update based on
+                // the incoming data.
+                case NOTES:
+
+                    // Does the update and returns the number of rows updated.
+                    count = db.update(
+                            NotePad.Notes.TABLE_NAME, // The database table name.
+                            values,                   // A map of column names and new values to use.
+                            where,                    // The where clause column names.
+                            whereArgs                 // The where clause column values to select on.
+                    );
+
+                    // The updated rows are among the ones that now hold the new values. Any other
+                    // row there already has the same shadow text.
+                    if (indexesShadow && count > 0) {
+                        indexShadowText(db, makeUpdatedRowsWhere(writesTitle, writesNote),
+                                makeUpdatedRowsArgs(writesTitle, title, writesNote,
+                                        compressed != null ? compressed : note),
+                                writesTitle, title, writesNote, note);
+                    }
+                    break;
+
+                // If the incoming URI matches a single note ID, does the update based on the incoming
+                // data, but modifies the where clause to restrict it to the particular note ID.
+                case NOTE_ID:
+                    // From the incoming URI, get the note ID
+                    String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+
+                    /*
+                     * Starts creating the final WHERE clause by restricting it to the incoming
+                     * note ID.
+                     */
+                    finalWhere =
+                            NotePad.Notes._ID +                              // The ID column name
+                                    " = " +                                          // test for equality
+                                    uri.getPathSegments().                           // the incoming note ID
+                                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                    ;
+
+                    // If there were additional selection criteria, append them to the final WHERE
+                    // clause
+                    if (where != null) {
+                        finalWhere = finalWhere + " AND " + where;
+                    }
+
+                    // The text that the update replaces, for the revision history. A large
+                    // note has none, so that a save doesn't hold it several times over.
+                    String oldNote = null;
+                    if (writesNote && noteSize <= NoteRevisions.MAX_TEXT_SIZE
+                            && readNoteSize(db, finalWhere, whereArgs)
+                                    <= NoteRevisions.MAX_TEXT_SIZE) {
+                        oldNote = readNoteText(db, finalWhere, whereArgs);
+                    }
+
+                    // Does the update and returns the number of rows updated.
+                    count = db.update(
+                            NotePad.Notes.TABLE_NAME, // The database table name.
+                            values,                   // A map of column names and new values to use.
+                            finalWhere,               // The final WHERE clause to use
+                            // placeholders for whereArgs
+                            whereArgs                 // The where clause column values to select on, or
+                            // null if the values are in the where argument.
+                    );
+                    if (indexesShadow && count > 0) {
+                        indexShadowText(db, "docid = " + noteId, null, writesTitle, title,
+                                writesNote, note);
+                    }
+                    String newNote = note == null ? "" : note;
+                    if (count > 0 && oldNote != null && !oldNote.equals(newNote)) {
+                        revisedNoteId = Long.parseLong(noteId);
+                        NoteRevisions.record(db, revisedNoteId, oldNote, newNote,
+                                System.currentTimeMillis());
+                    }
+                    break;
+                // If the incoming pattern is invalid, throws an exception.
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        finalWhere,               // The final WHERE clause to use
-                        // placeholders for whereArgs
-                        whereArgs                 // The where clause column values to select on, or
-                        // null if the values are in the where argument.
-                );
-                break;
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            if (inTransaction) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (inTransaction) {
+                db.endTransaction();
+            }
+        }
+
+        // Old revisions are dropped in the background, once the new one is committed.
+        if (revisedNoteId >= 0) {
+            scheduleRevisionPrune(revisedNoteId);
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Returns the where clause, on the docid of the FTS table, that selects the notes that hold
+     * the values written by an update of the notes URI, with {@link #makeUpdatedRowsArgs}.
+     */
+    private static String makeUpdatedRowsWhere(boolean writesTitle, boolean writesNote) {
+        StringBuilder where = new StringBuilder("docid IN (SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE ");
+        if (writesTitle) {
+            where.append(NotePad.Notes.COLUMN_NAME_TITLE).append(" IS ?");
+        }
+        if (writesNote) {
+            where.append(writesTitle ? " AND " : "").append(NotePad.Notes.COLUMN_NAME_NOTE)
+                    .append(" IS ?");
+        }
+        return where.append(')').toString();
+    }
+
+    /**
+     * Returns the arguments of {@link #makeUpdatedRowsWhere}.
+     *
+     * @param storedNote The note as it's stored, which is compressed if it's long.
+     */
+    private static Object[] makeUpdatedRowsArgs(boolean writesTitle, String title,
+            boolean writesNote, Object storedNote) {
+        ArrayList<Object> args = new ArrayList<Object>(2);
+        if (writesTitle) {
+            args.add(title);
+        }
+        if (writesNote) {
+            args.add(storedNote);
+        }
+        return args.toArray();
+    }
+
+    /**
+     * Reads the size of the text of the note that a where clause selects, without the text.
+     *
+     * @return The size, see {@link NotePad.Notes#COLUMN_NAME_NOTE_SIZE}, or 0 if there's no
+     * such note.
+     */
+    private static long readNoteSize(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_SIZE }, where, whereArgs,
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Reads the text of the note that a where clause selects, as it's stored before an update.
+     *
+     * @return The text, which is empty for a null note, or null if there's no such note.
+     */
+    private static String readNoteText(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = DecompressingCursor.wrap(db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, where, whereArgs,
+                null, null, null));
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            String note = c.getString(0);
+            return note == null ? "" : note;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Prunes the revisions of a note on the pruning thread, according to the retention set
+     * with {@link NotePad.Revisions#METHOD_SET_RETENTION}. A note waiting to be pruned isn't
+     * queued again, so a burst of edits costs one prune.
+     */
+    private void scheduleRevisionPrune(final long noteId) {
+        synchronized (mPendingPrunes) {
+            if (!mPendingPrunes.add(noteId)) {
+                return;
+            }
+        }
+        mRevisionPruner.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingPrunes) {
+                    mPendingPrunes.remove(noteId);
+                }
+                try {
+                    NoteRevisions.prune(mOpenHelper.getWritableDatabase(), noteId,
+                            mRevisionKeepCount, mRevisionKeepMillis, System.currentTimeMillis());
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to prune the revisions of note " + noteId, e);
+                }
+            }
+        });
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
      * instantiating the provider in a test context; {@link android.test.ProviderTestCase2} does
      * this during the call to setUp()
      *
+     * Waits for the provider's open thread first, so that the copies and backfills it runs
+     * don't race the test's own.
+     *
      * @return a handle to the database helper object for the provider's data.
      */
     DatabaseHelper getOpenHelperForTest() {
+        try {
+            mOpenThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         return mOpenHelper;
     }
+
+    /**
+     * A test package can call this to get the notifier that coalesces the provider's change
+     * notifications, so it can turn coalescing off, or flush it, to observe notifications
+     * deterministically.
+     *
+     * @return the change notifier of the provider.
+     */
+    ChangeNotifier getChangeNotifierForTest() {
+        return mChangeNotifier;
+    }
 }
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Stores the revision history of the notes in the {@link NotePad.Revisions} table.
+ * <p>
+ * A revision is a version of a note's text. Most revisions are stored as a {@link NoteDelta}
+ * from the revision before them, which takes about as much space as the edit. Every
+ * {@link #SNAPSHOT_INTERVAL} revisions, and whenever a delta would be larger, a revision is
+ * stored whole instead, compressed by {@link NoteCodec}: so any revision is rebuilt from the
+ * snapshot before it with fewer than SNAPSHOT_INTERVAL deltas. Each revision records its depth,
+ * the number of deltas since its snapshot, and the length and hash of its text, which tell
+ * whether the latest revision is still the text in the notes table.
+ * <p>
+ * Pruning drops the revisions that the retention policy no longer keeps, a whole delta chain
+ * at a time: the oldest revision kept is rebuilt from its snapshot, so it keeps the revisions
+ * between the two.
+ */
+final class NoteRevisions {
+
+    /**
+     * The largest number of revisions from one snapshot to the next.
+     */
+    static final int SNAPSHOT_INTERVAL = 16;
+
+    /**
+     * The default number of revisions kept for each note.
+     */
+    static final int DEFAULT_KEEP_COUNT = 50;
+
+    /**
+     * The default time that revisions are kept for.
+     */
+    static final long DEFAULT_KEEP_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The size of the text, in UTF-8 bytes, above which a note has no revisions: recording one
+     * holds the old and new texts, their bytes and a delta on the heap at once. It's the size
+     * from which the editor opens a note in large-document mode.
+     */
+    static final int MAX_TEXT_SIZE = NoteEditor.LARGE_NOTE_SIZE;
+
+    // The columns that the provider keeps to itself. A depth of 0 marks a snapshot.
+    static final String COLUMN_DEPTH = "depth";
+    static final String COLUMN_HASH = "hash";
+    static final String COLUMN_DATA = "data";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SELECT_DATA_SQL = "SELECT " + COLUMN_DATA + " FROM "
+            + NotePad.Revisions.TABLE_NAME + " WHERE " + NotePad.Revisions._ID + " = ?";
+
+    // This class can't be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Creates the revisions table, its index, and the trigger that deletes the revisions of a
+     * deleted note.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Revisions.COLUMN_NAME_LENGTH + " INTEGER,"
+                + COLUMN_DEPTH + " INTEGER,"
+                + COLUMN_HASH + " INTEGER,"
+                + COLUMN_DATA + " BLOB"
+                + ");");
+        db.execSQL("CREATE INDEX " + NotePad.Revisions.TABLE_NAME + "_note_index ON "
+                + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", " + NotePad.Revisions._ID + ");");
+        db.execSQL("CREATE TRIGGER " + NotePad.Revisions.TABLE_NAME + "_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old."
+                + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * Records the new text of a note as a revision. Called in the transaction that writes it.
+     * If the latest revision isn't the old text, because the note was written some other way
+     * or has no history yet, the old text is recorded first, so that it isn't lost.
+     *
+     * @param db The database, in a transaction.
+     * @param noteId The _ID of the note.
+     * @param oldText The text that's being replaced.
+     * @param newText The new text.
+     * @param now The time of the revision.
+     * @return The _ID of the new revision.
+     */
+    static long record(SQLiteDatabase db, long noteId, String oldText, String newText, long now) {
+        int depth = -1;
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[] { COLUMN_DEPTH, NotePad.Revisions.COLUMN_NAME_LENGTH, COLUMN_HASH },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.Revisions._ID + " DESC", "1");
+        try {
+            if (c.moveToFirst() && c.getInt(1) == oldText.length()
+                    && c.getInt(2) == oldText.hashCode()) {
+                depth = c.getInt(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        // An empty note, such as a new one, has nothing worth going back to.
+        if (depth < 0 && oldText.length() > 0) {
+            insert(db, noteId, now, oldText, 0, encodeSnapshot(oldText));
+            depth = 0;
+        }
+
+        if (depth >= 0 && depth + 1 < SNAPSHOT_INTERVAL) {
+            byte[] newBytes = newText.getBytes(UTF_8);
+            byte[] delta = NoteDelta.create(oldText.getBytes(UTF_8), newBytes);
+            if (delta.length <= newBytes.length / 2) {
+                return insert(db, noteId, now, newText, depth + 1, delta);
+            }
+
+            // A rewrite of most of the note can be smaller as a compressed snapshot.
+            byte[] snapshot = encodeSnapshot(newText);
+            if (snapshot.length < delta.length) {
+                return insert(db, noteId, now, newText, 0, snapshot);
+            }
+            return insert(db, noteId, now, newText, depth + 1, delta);
+        }
+        return insert(db, noteId, now, newText, 0, encodeSnapshot(newText));
+    }
+
+    /**
+     * Rebuilds the text of a revision.
+     *
+     * @return The text, or null if there's no such revision.
+     * @throws SQLException if the revision or one it's built from is corrupt.
+     */
+    static String reconstruct(SQLiteDatabase db, long revisionId) {
+        long noteId;
+        int depth;
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE_ID, COLUMN_DEPTH },
+                NotePad.Revisions._ID + " = " + revisionId, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            noteId = c.getLong(0);
+            depth = c.getInt(1);
+        } finally {
+            c.close();
+        }
+
+        // The revision and the ones before it, back to its snapshot, newest first.
+        long[] ids = new long[depth + 1];
+        int[] depths = new int[depth + 1];
+        int length = 0;
+        int hash = 0;
+        c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[] { NotePad.Revisions._ID, COLUMN_DEPTH,
+                        NotePad.Revisions.COLUMN_NAME_LENGTH, COLUMN_HASH },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId + " AND "
+                        + NotePad.Revisions._ID + " <= " + revisionId,
+                null, null, null, NotePad.Revisions._ID + " DESC", Integer.toString(depth + 1));
+        try {
+            for (int i = 0; i <= depth; i++) {
+                if (!c.moveToNext()) {
+                    throw new SQLException("Missing revisions before " + revisionId);
+                }
+                ids[i] = c.getLong(0);
+                depths[i] = c.getInt(1);
+                if (i == 0) {
+                    length = c.getInt(2);
+                    hash = c.getInt(3);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (depths[depth] != 0) {
+            throw new SQLException("Missing snapshot of revision " + revisionId);
+        }
+
+        byte[] text = decodeSnapshot(readData(db, ids[depth]));
+        for (int i = depth - 1; i >= 0; i--) {
+            text = NoteDelta.apply(text, readData(db, ids[i]));
+        }
+        String result = new String(text, UTF_8);
+        if (result.length() != length || result.hashCode() != hash) {
+            throw new SQLException("Corrupt revision " + revisionId);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the revisions of a note that the retention policy doesn't keep: all but the
+     * newest keepCount, and those older than keepMillis. The newest revision is always kept,
+     * and so are the revisions that the oldest one kept is rebuilt from.
+     *
+     * @return The number of revisions deleted.
+     */
+    static int prune(SQLiteDatabase db, long noteId, int keepCount, long keepMillis, long now) {
+        String ofNote = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        long keepFrom = DatabaseUtils.longForQuery(db, "SELECT min(" + NotePad.Revisions._ID
+                + ") FROM (SELECT " + NotePad.Revisions._ID + " FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE " + ofNote + " AND "
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " >= " + (now - keepMillis)
+                + " ORDER BY " + NotePad.Revisions._ID + " DESC LIMIT "
+                + Math.max(keepCount, 1) + ")", null);
+        if (keepFrom == 0) {
+            keepFrom = DatabaseUtils.longForQuery(db, "SELECT max(" + NotePad.Revisions._ID
+                    + ") FROM " + NotePad.Revisions.TABLE_NAME + " WHERE " + ofNote, null);
+        }
+        long snapshot = DatabaseUtils.longForQuery(db, "SELECT max(" + NotePad.Revisions._ID
+                + ") FROM " + NotePad.Revisions.TABLE_NAME + " WHERE " + ofNote + " AND "
+                + COLUMN_DEPTH + " = 0 AND " + NotePad.Revisions._ID + " <= " + keepFrom, null);
+        if (snapshot == 0) {
+            return 0;
+        }
+        return db.delete(NotePad.Revisions.TABLE_NAME,
+                ofNote + " AND " + NotePad.Revisions._ID + " < " + snapshot, null);
+    }
+
+    private static long insert(SQLiteDatabase db, long noteId, long now, String text, int depth,
+            byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, now);
+        values.put(NotePad.Revisions.COLUMN_NAME_LENGTH, text.length());
+        values.put(COLUMN_DEPTH, depth);
+        values.put(COLUMN_HASH, text.hashCode());
+        values.put(COLUMN_DATA, data);
+        long id = db.insert(NotePad.Revisions.TABLE_NAME, null, values);
+        if (id < 0) {
+            throw new SQLException("Failed to record a revision of note " + noteId);
+        }
+        return id;
+    }
+
+    // A snapshot is the note's codec BLOB, or the CODEC_NONE tag and the text for short notes.
+    private static byte[] encodeSnapshot(String text) {
+        Object encoded = NoteCodec.encode(text);
+        if (encoded instanceof byte[]) {
+            return (byte[]) encoded;
+        }
+        byte[] bytes = text.getBytes(UTF_8);
+        byte[] snapshot = new byte[bytes.length + 1];
+        snapshot[0] = NoteCodec.CODEC_NONE;
+        System.arraycopy(bytes, 0, snapshot, 1, bytes.length);
+        return snapshot;
+    }
+
+    private static byte[] decodeSnapshot(byte[] snapshot) {
+        if (snapshot.length > 0 && snapshot[0] == NoteCodec.CODEC_NONE) {
+            byte[] bytes = new byte[snapshot.length - 1];
+            System.arraycopy(snapshot, 1, bytes, 0, bytes.length);
+            return bytes;
+        }
+        return NoteCodec.decode(snapshot).getBytes(UTF_8);
+    }
+
+    // Reads the data of a revision through shared memory, which a large snapshot can need.
+    private static byte[] readData(SQLiteDatabase db, long revisionId) {
+        ParcelFileDescriptor value = DatabaseUtils.blobFileDescriptorForQuery(db,
+                SELECT_DATA_SQL, new String[] { Long.toString(revisionId) });
+        if (value == null) {
+            throw new SQLException("Missing data of revision " + revisionId);
+        }
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(value);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new SQLException("Failed to read revision " + revisionId + ": " + e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
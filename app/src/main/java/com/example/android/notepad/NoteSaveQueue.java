@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the editors' saves behind their back, so that pausing an editor doesn't wait for the
+ * database.
+ * <p>
+ * A save is queued by the UI thread and committed by a single background thread, in the order
+ * the saves were made, so the writes to a note are never reordered. While a save of a note is
+ * waiting, further saves of the same note are merged into it, later values winning, so a burst
+ * of pauses costs one write. A delete replaces the saves of its note that are still waiting.
+ * <p>
+ * While writes are waiting, the queue keeps {@link NoteSaveService} started, so the process
+ * isn't killed before they're committed even though the editor that queued them has been
+ * stopped, and no UI thread ever waits for the queue. An editor that reads back a note with a
+ * write waiting does it {@link #whenCommitted once it's committed}.
+ */
+final class NoteSaveQueue {
+
+    private static final String TAG = "NoteSaveQueue";
+
+    private static NoteSaveQueue sInstance;
+
+    private final ContentResolver mResolver;
+
+    // The context that starts NoteSaveService while there's work, or null.
+    private final Context mContext;
+
+    // The single thread that commits the saves.
+    private final ExecutorService mExecutor;
+
+    // The writes that are waiting, by note URI: the values of a save, or null for a delete.
+    // Guarded by itself.
+    private final HashMap<Uri, ContentValues> mPending = new HashMap<Uri, ContentValues>();
+
+    // The texts of the waiting saves that are turned into a String by the queue's thread, by
+    // note URI. Guarded by mPending.
+    private final HashMap<Uri, CharSequence> mPendingText = new HashMap<Uri, CharSequence>();
+
+    // The number of tasks given to mExecutor that haven't finished. Guarded by mPending.
+    private int mTaskCount;
+
+    /**
+     * Returns the queue of the process.
+     */
+    static synchronized NoteSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            Context app = context.getApplicationContext();
+            sInstance = new NoteSaveQueue(app.getContentResolver(), app);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue of its own, for tests. It doesn't keep the process alive.
+     */
+    NoteSaveQueue(ContentResolver resolver) {
+        this(resolver, null);
+    }
+
+    private NoteSaveQueue(ContentResolver resolver, Context context) {
+        mResolver = resolver;
+        mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG);
+            }
+        });
+    }
+
+    /**
+     * Queues an update of a note. Returns immediately.
+     *
+     * @param uri The URI of the note.
+     * @param values The columns to update. The map is copied.
+     */
+    void save(Uri uri, ContentValues values) {
+        save(uri, values, null);
+    }
+
+    /**
+     * Queues an update of the text of a note, and of its modification date. The text is only
+     * turned into a String on the queue's thread, so a large note, such as the
+     * {@link PieceTable} of the editor's large-document mode, doesn't hold up the caller.
+     * Returns immediately.
+     *
+     * @param uri The URI of the note.
+     * @param text The text, which mustn't change afterwards.
+     */
+    void saveText(Uri uri, CharSequence text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        save(uri, values, text);
+    }
+
+    private void save(Uri uri, ContentValues values, CharSequence text) {
+        synchronized (mPending) {
+            if (mPending.containsKey(uri)) {
+                // A waiting delete wins: the update would find nothing after it.
+                ContentValues pending = mPending.get(uri);
+                if (pending != null) {
+                    pending.putAll(values);
+                    if (text != null) {
+                        mPendingText.put(uri, text);
+                    } else if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                        mPendingText.remove(uri);
+                    }
+                }
+                return;
+            }
+            mPending.put(uri, new ContentValues(values));
+            if (text != null) {
+                mPendingText.put(uri, text);
+            }
+        }
+        schedule(uri);
+    }
+
+    /**
+     * Queues the deletion of a note, in place of any of its updates that are still waiting.
+     * Returns immediately.
+     */
+    void delete(Uri uri) {
+        synchronized (mPending) {
+            boolean scheduled = mPending.containsKey(uri);
+            mPending.put(uri, null);
+            mPendingText.remove(uri);
+            if (scheduled) {
+                return;
+            }
+        }
+        schedule(uri);
+    }
+
+    /**
+     * Runs a task on the queue's thread once every write queued so far has been committed.
+     * Returns immediately.
+     */
+    void whenCommitted(Runnable task) {
+        execute(task);
+    }
+
+    /**
+     * Waits until every write queued so far has been committed. Not for the UI thread, see
+     * {@link #whenCommitted}.
+     */
+    void flush() {
+        Future<?> barrier = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The barrier doesn't throw.
+        }
+    }
+
+    /**
+     * Returns true if a write of the note is waiting.
+     */
+    boolean isPending(Uri uri) {
+        synchronized (mPending) {
+            return mPending.containsKey(uri);
+        }
+    }
+
+    private void schedule(final Uri uri) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                commit(uri);
+            }
+        });
+    }
+
+    // Runs a task on the queue's thread, with the service started until the queue is empty.
+    private void execute(final Runnable task) {
+        synchronized (mPending) {
+            if (mTaskCount++ == 0 && mContext != null) {
+                mContext.startService(new Intent(mContext, NoteSaveService.class));
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (mPending) {
+                        if (--mTaskCount == 0 && mContext != null) {
+                            mContext.stopService(new Intent(mContext, NoteSaveService.class));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Commits the waiting write of a note, on the queue's thread.
+    private void commit(Uri uri) {
+        ContentValues values;
+        CharSequence text;
+        synchronized (mPending) {
+            values = mPending.remove(uri);
+            text = mPendingText.remove(uri);
+        }
+        try {
+            if (text != null) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            }
+            if (values == null) {
+                mResolver.delete(uri, null, null);
+            } else {
+                mResolver.update(uri, values, null, null);
+            }
+        } catch (RuntimeException e) {
+            // There's no one left to tell, so the failure is logged, and the queue carries on.
+            Log.e(TAG, "Failed to save " + uri, e);
+        }
+    }
+}
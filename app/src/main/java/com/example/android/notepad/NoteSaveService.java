@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * A service that does nothing, and is only started while {@link NoteSaveQueue} has writes
+ * waiting. A process with a started service is killed after the processes of stopped
+ * activities, so the saves queued when an editor is paused are committed without the editor
+ * waiting for them.
+ */
+public class NoteSaveService extends Service {
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The queue stops the service once it's empty. If the process dies first, the writes
+        // are lost with it, and there's nothing to restart the service for.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
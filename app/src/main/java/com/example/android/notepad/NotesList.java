@@ -20,6 +20,7 @@ import static java.security.AccessController.getContext;
 
 import com.example.android.notepad.NotePad;
 
+import android.Manifest;
 import android.app.ListActivity;
 import android.content.ClipboardManager;
 import android.content.ClipData;
@@ -27,10 +28,14 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.DataSetObserver;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.speech.RecognizerIntent;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -43,15 +48,14 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SearchView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
+import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
@@ -68,56 +72,84 @@ public class NotesList extends ListActivity {
     // For logging and debugging
     private static final String TAG = "NotesList";
 
+    // The index of the title column in the rows of PagedNotesAdapter
+    private static final int COLUMN_INDEX_TITLE = 1;
+
+    private SearchView searchView;
+
+    // 分页读取笔记的适配器
+    private PagedNotesAdapter mAdapter;
+
+    // 显示正在进行的导出的进度
+    private ExportProgress mExportProgress;
+
+    private static final int REQUEST_WRITE_STORAGE = 112;
+    private static final int REQUEST_READ_STORAGE = 113;
+
     /**
-     * The columns needed by the cursor adapter
+     * 输入搜索词后等待的时间，期间没有新的输入才开始搜索，快速输入时只搜索最后的搜索词
      */
-    // The columns needed by the cursor adapter
-    private static final String[] PROJECTION = new String[]{
-            NotePad.Notes._ID, // 0
-            NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE // 2
+    static final long SEARCH_DELAY_MILLIS = 250;
+
+    // 等待开始的搜索
+    private final Handler mHandler = new Handler();
+    private String mPendingQuery;
+    private final Runnable mPendingSearch = new Runnable() {
+        @Override
+        public void run() {
+            performSearch(mPendingQuery);
+        }
     };
 
-    // The index of the title column
-    private static final int COLUMN_INDEX_TITLE = 1;
+    // 当前显示的搜索词，空字符串表示显示所有笔记，null 表示显示的是即时搜索的结果
+    private String mQuery = "";
 
-    // The index of the modification date column
-    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+    /**
+     * 即时搜索最多显示的笔记数量
+     */
+    static final int INSTANT_RESULT_LIMIT = 500;
 
-    private SearchView searchView;
+    // 标题和摘要的内存三元组索引，在输入时立即给出结果
+    private InstantSearch mInstantSearch;
+
+    // 用内存索引立即显示标题或摘要包含搜索词的笔记，之后的全文搜索再替换这些结果。
+    // 索引还没建好，或者搜索词少于三个字符时不做任何事
+    private void showInstantResults(String query) {
+        long[] ids = mInstantSearch.search(query, INSTANT_RESULT_LIMIT);
+        if (ids == null) {
+            return;
+        }
+        mQuery = null;
+        mAdapter.setQuery(getIntent().getData(), InstantSearch.makeSelection(ids), null);
+    }
+
+    // 输入搜索词后稍等再搜索。清空搜索框时立即恢复列表
+    private void scheduleSearch(String query) {
+        mHandler.removeCallbacks(mPendingSearch);
+        mPendingQuery = query;
+        mHandler.postDelayed(mPendingSearch, query.isEmpty() ? 0 : SEARCH_DELAY_MILLIS);
+    }
 
     private void performSearch(String query) {
+        mHandler.removeCallbacks(mPendingSearch);
+        if (query.equals(mQuery)) {
+            return;
+        }
+        mQuery = query;
+
+        // 适配器在读取新的 URI 时取消正在进行的查询，并关闭被替换的页面
         if (query.isEmpty()) {
             // 恢复到初始状态，显示所有笔记
-            Cursor cursor = managedQuery(
-                    NotePad.Notes.CONTENT_URI,
-                    PROJECTION,
-                    null,
-                    null,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
-            SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
-            adapter.changeCursor(cursor);
+            mAdapter.setUri(getIntent().getData());
         } else {
-            String selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-            String[] selectionArgs = {"%" + query + "%", "%" + query + "%"};
-            Cursor cursor = managedQuery(
-                    NotePad.Notes.CONTENT_URI, // 直接使用 NotePad.Notes.CONTENT_URI 而不是 Uri.withAppendedPath
-                    PROJECTION,
-                    selection,
-                    selectionArgs,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
-
-            // 添加日志输出，检查查询结果
-            if (cursor == null || cursor.getCount() == 0) {
-                Log.d(TAG, "No notes found for query: " + query);
-            } else {
-                Log.d(TAG, "Found " + cursor.getCount() + " notes for query: " + query);
-            }
-
-            SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
-            adapter.changeCursor(cursor);
+            // 通过全文索引搜索，代价随命中数量增长，而不是随笔记总数增长。
+            // 结果按相关性排序，最相关的笔记出现在第一屏，并显示高亮了匹配的摘录
+            Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                    .appendQueryParameter(NotePad.Notes.RANK_QUERY_PARAMETER, "true")
+                    .build();
+            Log.d(TAG, "Searching notes for query: " + query);
+            mAdapter.setUri(searchUri);
         }
     }
 
@@ -137,6 +169,9 @@ public class NotesList extends ListActivity {
 
         getListView().setOnCreateContextMenuListener(this);
 
+        // 在后台保存上次进程被杀死时编辑器日志中尚未保存的修改，恢复的笔记会通知列表刷新
+        DraftJournal.recoverAllLater(DraftJournal.getDirectory(this), getContentResolver());
+
         setContentView(R.layout.activity_notes_list);
 
         // 初始化搜索框
@@ -150,49 +185,30 @@ public class NotesList extends ListActivity {
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                performSearch(newText);
+                showInstantResults(newText);
+                scheduleSearch(newText);
                 return true;
             }
         });
 
-        Cursor cursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                null,
-                null,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
-        String[] dataColumns = {NotePad.Notes.COLUMN_NAME_TITLE};
-        int[] viewIDs = {android.R.id.text1};
-
-        SimpleCursorAdapter adapter = new SimpleCursorAdapter(
-                this,
-                R.layout.noteslist_item,
-                cursor,
-                new String[]{NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
-                new int[]{android.R.id.text1, R.id.timestamp},
-                0
-        ) {
+        // 搜索框获得焦点时在后台建立即时搜索的索引，输入搜索词时通常已经建好
+        mInstantSearch = new InstantSearch(getContentResolver(), mHandler);
+        searchView.setOnQueryTextFocusChangeListener(new View.OnFocusChangeListener() {
             @Override
-            public void setViewText(TextView v, String text) {
-                if (v.getId() == R.id.timestamp) {
-                    long timestamp = Long.parseLong(text);
-                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-                    sdf.setTimeZone(TimeZone.getTimeZone("Asia/Shanghai"));
-                    String formattedDate = sdf.format(new Date(timestamp));
-                    v.setText(formattedDate);
-                } else {
-                    super.setViewText(v, text);
+            public void onFocusChange(View view, boolean hasFocus) {
+                if (hasFocus) {
+                    mInstantSearch.prepare();
                 }
             }
-        };
+        });
 
-        setListAdapter(adapter);
+        // 笔记按页在后台读取：首帧只需等待第一页，之后的页面在滚动到列表末尾附近时读取
+        mAdapter = new PagedNotesAdapter(this, getIntent().getData());
+        setListAdapter(mAdapter);
 
-        // 设置过渡效果
+        // 设置过渡效果，在第一页读取完成后开始
         postponeEnterTransition();
-        adapter.registerDataSetObserver(new DataSetObserver() {
+        mAdapter.registerDataSetObserver(new DataSetObserver() {
             @Override
             public void onChanged() {
                 super.onChanged();
@@ -201,6 +217,81 @@ public class NotesList extends ListActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // 取消等待开始的搜索，关闭已读取的页面，并停止监听笔记的变化
+        mHandler.removeCallbacks(mPendingSearch);
+        mAdapter.close();
+        mInstantSearch.close();
+
+        // 隐藏正在进行的导出的进度，导出本身在后台继续
+        if (mExportProgress != null) {
+            mExportProgress.detach();
+        }
+    }
+
+    /**
+     * Exports every note to a ZIP archive in the Download directory, in the background.
+     */
+    private void exportAllNotes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                requestPermissions(new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQUEST_WRITE_STORAGE);
+                return;
+            }
+        }
+
+        File dir = new File(Environment.getExternalStorageDirectory(), "Download");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File file = new File(dir, "notes-" + System.currentTimeMillis() + ".zip");
+
+        if (mExportProgress != null) {
+            mExportProgress.detach();
+        }
+        mExportProgress = new ExportProgress(this);
+        mExportProgress.attach(BackgroundExporter.exportNotes(getContentResolver(),
+                NotePad.Notes.EXPORT_ZIP_TYPE, file, mExportProgress));
+    }
+
+    /**
+     * Imports every text file in the Download directory as a new note, in the background, with
+     * the same progress dialog as an export.
+     */
+    private void importAllNotes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                requestPermissions(new String[]{Manifest.permission.READ_EXTERNAL_STORAGE}, REQUEST_READ_STORAGE);
+                return;
+            }
+        }
+
+        File dir = new File(Environment.getExternalStorageDirectory(), "Download");
+        File[] found = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".txt");
+            }
+        });
+        if (found == null || found.length == 0) {
+            Toast.makeText(this, "No text files to import in " + dir.getAbsolutePath(),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        Arrays.sort(found);
+
+        if (mExportProgress != null) {
+            mExportProgress.detach();
+        }
+        mExportProgress = new ExportProgress(this, R.string.import_progress,
+                "Imported notes from ", "Failed to import");
+        mExportProgress.attach(BackgroundExporter.importNotes(getContentResolver(),
+                Arrays.asList(found), dir, mExportProgress));
+    }
+
     /**
      * Called when the user clicks the device's Menu button the first time for
      * this Activity. Android passes in a Menu object that is populated with items.
@@ -348,6 +439,12 @@ public class NotesList extends ListActivity {
                 pasteIntent.setData(getIntent().getData());
                 startActivity(pasteIntent);
                 return true;
+            case R.id.menu_export_all:
+                exportAllNotes();
+                return true;
+            case R.id.menu_import_all:
+                importAllNotes();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.graphics.Typeface;
+import android.net.Uri;
+import android.os.Handler;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A list adapter that reads notes from the provider one page at a time, in the background.
+ * <p>
+ * Each row shows the title, the preview and the modification date of a note, all of which are
+ * read from the list index without touching the note bodies.
+ * <p>
+ * The first page is all that has to be read before the list can be drawn, and further pages
+ * are read as the user scrolls towards the end of the loaded rows. Each page is a keyset query
+ * (see {@link NotePad.Notes#BEFORE_MODIFIED_QUERY_PARAMETER}) that seeks into the list index
+ * right after the last row of the previous page, so reading a page costs the same however far
+ * down the list it is.
+ * <p>
+ * Only the pages around the rows on screen keep their cursors. A page further away than
+ * {@link #KEEP_RADIUS} pages is closed, and only its number of rows, and the keyset of its last
+ * row, are kept, so the memory held stays flat however far the user scrolls. A page that
+ * comes back into view is read again by its range of keys: the rows after the last row of the
+ * page before it, up to its own last row. Its rows are blank, and can't be clicked, until the
+ * page arrives.
+ * <p>
+ * When the notes change, only the pages around the rows on screen are read again, each by its
+ * range of keys, so a change costs the same however far the user has scrolled. A page whose
+ * range has grown past {@link #MAX_PAGE_ROWS} rows, such as the first page after an import,
+ * keeps that many, and the pages after it are read again as the user scrolls to them.
+ * <p>
+ * A search ranked by relevance (see {@link NotePad.Notes#RANK_QUERY_PARAMETER}) can't be paged
+ * by keyset, so its pages are read by position instead, with
+ * {@link NotePad.Notes#OFFSET_QUERY_PARAMETER}. Its rows show the snippet of each note, with
+ * the matches in bold, in place of the preview.
+ * <p>
+ * The queries run on a {@link QueryRunner}, one at a time, so reading from another URI, such as
+ * the search URI of the next keystroke, cancels the query that's running, and the result of a
+ * query that's been superseded is closed as soon as it arrives.
+ */
+class PagedNotesAdapter extends BaseAdapter {
+
+    /**
+     * The number of notes read by each query.
+     */
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * The most rows that a page read again by its range of keys keeps.
+     */
+    static final int MAX_PAGE_ROWS = 2 * PAGE_SIZE;
+
+    /**
+     * The pages this close to the page on screen are read if they aren't loaded.
+     */
+    static final int LOAD_RADIUS = 1;
+
+    /**
+     * The pages further than this from the page on screen are closed.
+     */
+    static final int KEEP_RADIUS = 2;
+
+    // The next page is requested when a row this close to the end of the known rows is shown.
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    // The columns read for each note.
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,                            // 0
+            NotePad.Notes.COLUMN_NAME_TITLE,              // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,  // 2
+            NotePad.Notes.COLUMN_NAME_PREVIEW             // 3
+    };
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+    private static final int COLUMN_INDEX_PREVIEW = 3;
+
+    // The columns read for each note of a ranked search.
+    private static final String[] RANKED_PROJECTION = new String[] {
+            NotePad.Notes._ID,                            // 0
+            NotePad.Notes.COLUMN_NAME_TITLE,              // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,  // 2
+            NotePad.Notes.COLUMN_NAME_PREVIEW,            // 3
+            NotePad.Notes.COLUMN_NAME_SNIPPET,            // 4
+            NotePad.Notes.COLUMN_NAME_SNIPPET_OFFSETS     // 5
+    };
+    private static final int COLUMN_INDEX_SNIPPET = 4;
+    private static final int COLUMN_INDEX_SNIPPET_OFFSETS = 5;
+
+    // The kinds of query.
+    private static final int LOAD_FIRST = 0;
+    private static final int LOAD_NEXT = 1;
+    private static final int LOAD_AGAIN = 2;
+
+    private final LayoutInflater mInflater;
+    private final QueryRunner mQueryRunner;
+    private final ContentObserver mObserver;
+    private final Context mContext;
+    private final SimpleDateFormat mDateFormat;
+
+    // The URI that the pages are read from, without paging parameters, and the selection that
+    // they're filtered with, if any.
+    private Uri mUri;
+    private String mSelection;
+    private String[] mSelectionArgs;
+
+    // True if the URI is a search ranked by relevance.
+    private boolean mRanked;
+
+    // The pages read so far, in order, the position of the first row of each, and the total
+    // number of rows in them.
+    private final ArrayList<Page> mPages = new ArrayList<Page>();
+    private int[] mPageStarts = new int[0];
+    private int mCount;
+
+    // The last position that was shown, and the page that holds it.
+    private int mFocusPosition;
+    private int mFocusPage;
+
+    // True while a query is running, and once the last page has been read.
+    private boolean mLoading;
+    private boolean mComplete;
+
+    // Incremented whenever the rows are read again from the start, so that the results of the
+    // queries that were running at that point are dropped.
+    private int mGeneration;
+
+    // Incremented whenever the notes change, so that a page read before the change is read
+    // again.
+    private int mChangeCount;
+
+    // The change count when a page failed to be read again. It isn't tried again, in a loop,
+    // until the notes change.
+    private int mFailedChangeCount = -1;
+
+    private boolean mClosed;
+
+    /**
+     * A page of rows.
+     */
+    private static final class Page {
+
+        // The rows, or null while the page is closed.
+        Cursor cursor;
+
+        // The number of rows, which is kept while the page is closed.
+        int count;
+
+        // The keyset of the last row, which bounds the page when it's read again.
+        long lastModified;
+        long lastId;
+
+        // The change count when the rows were read.
+        int changeCount;
+    }
+
+    /**
+     * Describes a running query. Passed as the cookie of the query.
+     */
+    private static final class PageRequest {
+        final int generation;
+        final int changeCount;
+        final int kind;
+
+        // The page that's read again, for LOAD_AGAIN.
+        final int page;
+
+        final int limit;
+
+        PageRequest(int generation, int changeCount, int kind, int page, int limit) {
+            this.generation = generation;
+            this.changeCount = changeCount;
+            this.kind = kind;
+            this.page = page;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * @param context The context of the list.
+     * @param uri The notes URI to read, such as {@link NotePad.Notes#CONTENT_URI}.
+     */
+    PagedNotesAdapter(Context context, Uri uri) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mQueryRunner = new QueryRunner(context.getContentResolver(), new Handler(),
+                new QueryRunner.Callback() {
+                    @Override
+                    public void onQueryComplete(Object cookie, Cursor cursor) {
+                        onPageLoaded((PageRequest) cookie, cursor);
+                    }
+                });
+        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+        mDateFormat.setTimeZone(TimeZone.getTimeZone("Asia/Shanghai"));
+
+        mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (mPages.isEmpty()) {
+                    loadFirstPage();
+                } else {
+                    mChangeCount++;
+                    loadMore();
+                }
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                NotePad.Notes.CONTENT_URI, true, mObserver);
+
+        setUri(uri);
+    }
+
+    /**
+     * Starts reading the notes from another URI, such as a search URI. The rows loaded so far
+     * stay in the list until the first page of the new URI arrives.
+     */
+    void setUri(Uri uri) {
+        setQuery(uri, null, null);
+    }
+
+    /**
+     * Starts reading the notes from another URI, filtered by a selection, such as the notes
+     * found by {@link InstantSearch}. The rows loaded so far stay in the list until the first
+     * page of the new query arrives.
+     */
+    void setQuery(Uri uri, String selection, String[] selectionArgs) {
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mRanked = uri.getBooleanQueryParameter(NotePad.Notes.RANK_QUERY_PARAMETER, false);
+        loadFirstPage();
+    }
+
+    /**
+     * Releases the pages and stops watching the provider. The adapter can't be used afterwards.
+     */
+    void close() {
+        mClosed = true;
+        mQueryRunner.close();
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        closePages(0);
+    }
+
+    // Reads the first page, which replaces all of the loaded rows once it arrives.
+    private void loadFirstPage() {
+        if (mClosed) {
+            return;
+        }
+        mGeneration++;
+        startQuery(new PageRequest(mGeneration, mChangeCount, LOAD_FIRST, 0, PAGE_SIZE),
+                null, null);
+    }
+
+    // Starts the next query that the rows around the focus need, unless one is running: a page
+    // near the focus that's closed or older than the last change, starting with the focus
+    // itself, or else the page after the last one.
+    private void loadMore() {
+        if (mClosed || mLoading || mPages.isEmpty() || mFailedChangeCount == mChangeCount) {
+            return;
+        }
+        for (int distance = 0; distance <= LOAD_RADIUS; distance++) {
+            int after = mFocusPage + distance;
+            if (after < mPages.size() && needsLoad(mPages.get(after))) {
+                loadAgain(after);
+                return;
+            }
+            int before = mFocusPage - distance;
+            if (before >= 0 && before < mPages.size() && needsLoad(mPages.get(before))) {
+                loadAgain(before);
+                return;
+            }
+        }
+        if (!mComplete && mFocusPosition >= mCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    private boolean needsLoad(Page page) {
+        return page.cursor == null || page.changeCount != mChangeCount;
+    }
+
+    // Reads the page that follows the last known row.
+    private void loadNextPage() {
+        int index = mPages.size();
+        startQuery(new PageRequest(mGeneration, mChangeCount, LOAD_NEXT, index, PAGE_SIZE),
+                mPages.get(index - 1), null);
+    }
+
+    // Reads a known page again, by its range of keys, or by its position in a ranked search.
+    private void loadAgain(int index) {
+        if (mRanked) {
+            startQuery(new PageRequest(mGeneration, mChangeCount, LOAD_AGAIN, index, PAGE_SIZE),
+                    null, null);
+            return;
+        }
+
+        // The first page has no upper bound, so that new notes show up in it, and the last
+        // page of a finished list has no lower bound, so that old ones do.
+        Page previous = index > 0 ? mPages.get(index - 1) : null;
+        String lowerBound = null;
+        if (index < mPages.size() - 1 || !mComplete) {
+            Page page = mPages.get(index);
+            String modified = Long.toString(page.lastModified);
+            lowerBound = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " >= " + modified
+                    + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " > " + modified
+                    + " OR " + NotePad.Notes._ID + " >= " + page.lastId + ")";
+        }
+        startQuery(new PageRequest(mGeneration, mChangeCount, LOAD_AGAIN, index,
+                MAX_PAGE_ROWS + 1), previous, lowerBound);
+    }
+
+    /**
+     * Starts a query for a page.
+     *
+     * @param previous The page whose last row the rows come after, or null to start from the
+     * first row. Ignored by a ranked search.
+     * @param lowerBound A selection that bounds the rows from below, or null.
+     */
+    private void startQuery(PageRequest request, Page previous, String lowerBound) {
+        mLoading = true;
+        Uri.Builder builder = mUri.buildUpon().appendQueryParameter(
+                NotePad.Notes.LIMIT_QUERY_PARAMETER, Integer.toString(request.limit));
+        if (mRanked) {
+            builder.appendQueryParameter(NotePad.Notes.OFFSET_QUERY_PARAMETER,
+                    Integer.toString(request.page * PAGE_SIZE));
+            mQueryRunner.startQuery(request, builder.build(), RANKED_PROJECTION, mSelection,
+                    mSelectionArgs, null);
+            return;
+        }
+        if (previous != null) {
+            builder.appendQueryParameter(NotePad.Notes.BEFORE_MODIFIED_QUERY_PARAMETER,
+                    Long.toString(previous.lastModified))
+                    .appendQueryParameter(NotePad.Notes.BEFORE_ID_QUERY_PARAMETER,
+                            Long.toString(previous.lastId));
+        }
+        mQueryRunner.startQuery(request, builder.build(), PROJECTION,
+                DatabaseUtils.concatenateWhere(mSelection, lowerBound), mSelectionArgs,
+                NotePad.Notes.PAGE_SORT_ORDER);
+    }
+
+    // Puts the rows of a finished query into the list, and starts the next query, if any.
+    private void onPageLoaded(PageRequest request, Cursor cursor) {
+        if (mClosed || request.generation != mGeneration) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mLoading = false;
+
+        switch (request.kind) {
+            case LOAD_FIRST:
+                closePages(0);
+                mFocusPosition = 0;
+                mFocusPage = 0;
+                mComplete = true;
+                if (cursor != null) {
+                    addPage(request, cursor);
+                }
+                break;
+
+            case LOAD_NEXT:
+                if (cursor == null || cursor.getCount() == 0) {
+                    mComplete = true;
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                } else {
+                    addPage(request, cursor);
+                }
+                break;
+
+            default:
+                if (cursor == null) {
+                    mFailedChangeCount = request.changeCount;
+                } else {
+                    replacePage(request, cursor);
+                }
+                break;
+        }
+        updatePageStarts();
+        closeDistantPages();
+        notifyDataSetChanged();
+        loadMore();
+    }
+
+    // Appends a page that was read by LOAD_FIRST or LOAD_NEXT.
+    private void addPage(PageRequest request, Cursor cursor) {
+        Page page = new Page();
+        page.cursor = cursor;
+        page.count = cursor.getCount();
+        page.changeCount = request.changeCount;
+        if (cursor.moveToLast()) {
+            page.lastModified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+            page.lastId = cursor.getLong(COLUMN_INDEX_ID);
+        }
+        mPages.add(page);
+        mComplete = cursor.getCount() < request.limit;
+    }
+
+    // Replaces the rows of a page that was read again.
+    private void replacePage(PageRequest request, Cursor cursor) {
+        Page page = mPages.get(request.page);
+        if (page.cursor != null) {
+            page.cursor.close();
+        }
+        page.cursor = cursor;
+        page.changeCount = request.changeCount;
+        boolean last = request.page == mPages.size() - 1;
+
+        if (mRanked) {
+            // A short page is the new end of the results, a full last page may not be any more.
+            page.count = cursor.getCount();
+            if (page.count < PAGE_SIZE) {
+                closePages(request.page + 1);
+                mComplete = true;
+            } else if (last) {
+                mComplete = false;
+            }
+            return;
+        }
+
+        if (cursor.getCount() > MAX_PAGE_ROWS) {
+            // The range has grown too much to be read in one page, so the page keeps its first
+            // rows and ends there, and the pages after it are read again as the list scrolls.
+            page.count = MAX_PAGE_ROWS;
+            cursor.moveToPosition(MAX_PAGE_ROWS - 1);
+            page.lastModified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+            page.lastId = cursor.getLong(COLUMN_INDEX_ID);
+            closePages(request.page + 1);
+            mComplete = false;
+        } else {
+            page.count = cursor.getCount();
+
+            // The last page of a finished list was read without a lower bound, so it ends at
+            // whatever its last row is now.
+            if (last && mComplete && cursor.moveToLast()) {
+                page.lastModified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+                page.lastId = cursor.getLong(COLUMN_INDEX_ID);
+            }
+        }
+    }
+
+    // Closes the pages from the given one to the end, and removes them from the list.
+    private void closePages(int from) {
+        while (mPages.size() > from) {
+            Page page = mPages.remove(mPages.size() - 1);
+            if (page.cursor != null) {
+                page.cursor.close();
+            }
+        }
+        updatePageStarts();
+    }
+
+    // Closes the cursors of the pages that are far from the focus, keeping what's needed to read
+    // them again.
+    private void closeDistantPages() {
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if (page.cursor != null && Math.abs(i - mFocusPage) > KEEP_RADIUS) {
+                page.cursor.close();
+                page.cursor = null;
+            }
+        }
+    }
+
+    private void updatePageStarts() {
+        if (mPageStarts.length != mPages.size()) {
+            mPageStarts = new int[mPages.size()];
+        }
+        int count = 0;
+        for (int i = 0; i < mPages.size(); i++) {
+            mPageStarts[i] = count;
+            count += mPages.get(i).count;
+        }
+        mCount = count;
+    }
+
+    // Returns the index of the page that holds the row, which must exist.
+    private int findPage(int position) {
+        int index = Arrays.binarySearch(mPageStarts, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+
+        // Empty pages start at the same position as the page after them.
+        while (index + 1 < mPageStarts.length && mPageStarts[index + 1] == position) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the page that holds the row, moved to it, or null if the page isn't loaded.
+     */
+    @Override
+    public Object getItem(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        int index = findPage(position);
+        Cursor cursor = mPages.get(index).cursor;
+        if (cursor == null) {
+            return null;
+        }
+        cursor.moveToPosition(position - mPageStarts[index]);
+        return cursor;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Cursor cursor = (Cursor) getItem(position);
+        return cursor == null ? AdapterView.INVALID_ROW_ID : cursor.getLong(COLUMN_INDEX_ID);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns false for the blank rows of a page that's being read again.
+     */
+    @Override
+    public boolean isEnabled(int position) {
+        return getItem(position) != null;
+    }
+
+    // Moves the focus to a row that's being shown, and reads or closes pages to match.
+    private void setFocus(int position) {
+        mFocusPosition = position;
+        int page = findPage(position);
+        if (page != mFocusPage) {
+            mFocusPage = page;
+            closeDistantPages();
+        }
+        loadMore();
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        setFocus(position);
+
+        View view = convertView;
+        if (view == null) {
+            view = mInflater.inflate(R.layout.noteslist_item, parent, false);
+        }
+
+        Cursor cursor = (Cursor) getItem(position);
+        if (cursor == null) {
+            ((TextView) view.findViewById(android.R.id.text1)).setText(null);
+            ((TextView) view.findViewById(R.id.preview)).setText(null);
+            ((TextView) view.findViewById(R.id.timestamp)).setText(null);
+            return view;
+        }
+        ((TextView) view.findViewById(android.R.id.text1))
+                .setText(cursor.getString(COLUMN_INDEX_TITLE));
+        ((TextView) view.findViewById(R.id.preview)).setText(getPreview(cursor));
+        ((TextView) view.findViewById(R.id.timestamp))
+                .setText(mDateFormat.format(new Date(cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE))));
+        return view;
+    }
+
+    // Returns the snippet of a ranked search's row, with its matches in bold, or the preview.
+    private static CharSequence getPreview(Cursor cursor) {
+        if (cursor.getColumnCount() <= COLUMN_INDEX_SNIPPET
+                || cursor.isNull(COLUMN_INDEX_SNIPPET)) {
+            return cursor.getString(COLUMN_INDEX_PREVIEW);
+        }
+        SpannableString snippet = new SpannableString(cursor.getString(COLUMN_INDEX_SNIPPET));
+        int[] offsets = SearchRanker.parseOffsets(
+                cursor.getString(COLUMN_INDEX_SNIPPET_OFFSETS));
+        for (int i = 0; i + 1 < offsets.length; i += 2) {
+            if (offsets[i] < offsets[i + 1] && offsets[i + 1] <= snippet.length()) {
+                snippet.setSpan(new StyleSpan(Typeface.BOLD), offsets[i], offsets[i + 1],
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        return snippet;
+    }
+}
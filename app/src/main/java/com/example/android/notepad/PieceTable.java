@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The text of a note that's too large to edit as a whole, for the large-document mode of
+ * {@link NoteEditor}.
+ * <p>
+ * The text is a sequence of pieces: ranges of the original text, which is never copied, and
+ * strings of inserted text. An edit splits the pieces at its ends and replaces the pieces in
+ * between, so it costs the number of pieces rather than the length of the text, and the
+ * original text can stay outside of the Java heap, in the memory-mapped file that
+ * {@link #load} decodes it into. The line breaks of the original are indexed once, and every
+ * piece keeps its number of line breaks, so lines are found by binary search as well.
+ * <p>
+ * A piece table belongs to one thread. The pieces themselves never change, so a
+ * {@link #snapshot} is a cheap copy, which another thread can read while this one carries on.
+ */
+final class PieceTable implements CharSequence {
+
+    // Typing extends the inserted piece before it, rather than adding a piece per keystroke,
+    // while that piece is shorter than this.
+    private static final int MERGE_LIMIT = 4096;
+
+    // The size of the buffer that the original text is decoded through.
+    private static final int LOAD_BUFFER_SIZE = 32 * 1024;
+
+    // A range of the original text, or of a string of inserted text.
+    private static final class Piece {
+        final CharSequence source;
+        final int start;
+        final int length;
+        final int lineBreaks;
+
+        Piece(CharSequence source, int start, int length, int lineBreaks) {
+            this.source = source;
+            this.start = start;
+            this.length = length;
+            this.lineBreaks = lineBreaks;
+        }
+    }
+
+    private final CharSequence mOriginal;
+
+    // The offsets of the line breaks of the original, in ascending order.
+    private final int[] mOriginalBreaks;
+    private final int mOriginalBreakCount;
+
+    private final ArrayList<Piece> mPieces;
+    private int mLength;
+    private int mLineBreaks;
+    private boolean mModified;
+
+    // The offset, and the number of line breaks, before each piece and after the last one.
+    // Rebuilt after an edit, when they're next needed.
+    private int[] mPieceStarts;
+    private int[] mPieceBreaks;
+    private boolean mIndexed;
+
+    /**
+     * Creates a piece table on the given text, which mustn't change afterwards.
+     */
+    PieceTable(CharSequence original) {
+        this(original, findBreaks(original), -1);
+    }
+
+    private PieceTable(CharSequence original, int[] breaks, int breakCount) {
+        mOriginal = original;
+        mOriginalBreaks = breaks;
+        mOriginalBreakCount = breakCount < 0 ? breaks.length : breakCount;
+        mPieces = new ArrayList<Piece>();
+        mLength = original.length();
+        mLineBreaks = mOriginalBreakCount;
+        if (mLength > 0) {
+            mPieces.add(new Piece(original, 0, mLength, mLineBreaks));
+        }
+    }
+
+    private PieceTable(PieceTable other) {
+        mOriginal = other.mOriginal;
+        mOriginalBreaks = other.mOriginalBreaks;
+        mOriginalBreakCount = other.mOriginalBreakCount;
+        mPieces = new ArrayList<Piece>(other.mPieces);
+        mLength = other.mLength;
+        mLineBreaks = other.mLineBreaks;
+        mModified = other.mModified;
+    }
+
+    /**
+     * Decodes UTF-8 text from a stream into a file, as UTF-16, and returns a piece table on
+     * the memory mapping of the file, so that the text takes no room on the Java heap. The file
+     * is deleted once it's mapped, and its pages are freed when the mapping is collected.
+     *
+     * @param in The UTF-8 text. Not closed.
+     * @param file A file to decode into, which is replaced.
+     * @throws IOException if reading the stream or writing the file fails.
+     */
+    static PieceTable load(InputStream in, File file) throws IOException {
+        int[] breaks = new int[1024];
+        int breakCount = 0;
+        int length = 0;
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), "UTF-16BE"),
+                    LOAD_BUFFER_SIZE);
+            try {
+                char[] buffer = new char[LOAD_BUFFER_SIZE];
+                int count;
+                while ((count = reader.read(buffer)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        if (buffer[i] == '\n') {
+                            if (breakCount == breaks.length) {
+                                breaks = Arrays.copyOf(breaks, breakCount * 2);
+                            }
+                            breaks[breakCount++] = length + i;
+                        }
+                    }
+                    writer.write(buffer, 0, count);
+                    length += count;
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (length == 0) {
+                return new PieceTable("", breaks, 0);
+            }
+
+            // The mapping stays valid once the file is closed, and deleted.
+            RandomAccessFile mapped = new RandomAccessFile(file, "r");
+            try {
+                CharBuffer text = mapped.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, (long) length * 2)
+                        .asCharBuffer();
+                return new PieceTable(text, breaks, breakCount);
+            } finally {
+                mapped.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns a copy of this piece table, which isn't affected by later edits of this one.
+     */
+    PieceTable snapshot() {
+        return new PieceTable(this);
+    }
+
+    /**
+     * Returns true if the text has been edited since it was loaded, or since
+     * {@link #clearModified} was last called.
+     */
+    boolean isModified() {
+        return mModified;
+    }
+
+    /**
+     * Marks the text as saved.
+     */
+    void clearModified() {
+        mModified = false;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index=" + index + " length=" + mLength);
+        }
+        index();
+        int i = findPiece(index);
+        Piece piece = mPieces.get(i);
+        return piece.source.charAt(piece.start + index - mPieceStarts[i]);
+    }
+
+    /**
+     * Returns the text between two offsets as a String.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Copies the text between two offsets into an array, a piece at a time.
+     */
+    void getChars(int start, int end, char[] dest, int destStart) {
+        if (start < 0 || end < start || end > mLength) {
+            throw new IndexOutOfBoundsException(
+                    "start=" + start + " end=" + end + " length=" + mLength);
+        }
+        if (start == end) {
+            return;
+        }
+        index();
+        for (int i = findPiece(start); start < end; i++) {
+            Piece piece = mPieces.get(i);
+            int from = piece.start + start - mPieceStarts[i];
+            int count = Math.min(end - start, piece.length - (start - mPieceStarts[i]));
+            copy(piece.source, from, from + count, dest, destStart);
+            start += count;
+            destStart += count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, mLength).toString();
+    }
+
+    /**
+     * Replaces a range of the text.
+     *
+     * @param start The offset of the range.
+     * @param deleteCount The length of the range, which may be 0.
+     * @param text The text to put in its place, which may be empty.
+     */
+    void replace(int start, int deleteCount, CharSequence text) {
+        int end = start + deleteCount;
+        if (start < 0 || deleteCount < 0 || end > mLength) {
+            throw new IndexOutOfBoundsException(
+                    "start=" + start + " deleteCount=" + deleteCount + " length=" + mLength);
+        }
+        if (deleteCount == 0 && text.length() == 0) {
+            return;
+        }
+
+        int first = split(start);
+        int last = split(end);
+        for (int i = first; i < last; i++) {
+            Piece piece = mPieces.get(i);
+            mLength -= piece.length;
+            mLineBreaks -= piece.lineBreaks;
+        }
+        mPieces.subList(first, last).clear();
+
+        if (text.length() > 0) {
+            String inserted = text.toString();
+            int lineBreaks = countBreaks(inserted, 0, inserted.length());
+            Piece before = first > 0 ? mPieces.get(first - 1) : null;
+            if (before != null && before.source != mOriginal && before.length < MERGE_LIMIT) {
+                String merged = before.source.subSequence(before.start,
+                        before.start + before.length).toString() + inserted;
+                mPieces.set(first - 1,
+                        new Piece(merged, 0, merged.length(), before.lineBreaks + lineBreaks));
+            } else {
+                mPieces.add(first, new Piece(inserted, 0, inserted.length(), lineBreaks));
+            }
+            mLength += inserted.length();
+            mLineBreaks += lineBreaks;
+        }
+        mIndexed = false;
+        mModified = true;
+    }
+
+    /**
+     * Returns the number of lines, which is one more than the number of line breaks.
+     */
+    int getLineCount() {
+        return mLineBreaks + 1;
+    }
+
+    /**
+     * Returns the offset of the first character of a line.
+     */
+    int getLineStart(int line) {
+        if (line < 0 || line > mLineBreaks) {
+            throw new IndexOutOfBoundsException("line=" + line + " lines=" + getLineCount());
+        }
+        if (line == 0) {
+            return 0;
+        }
+        index();
+
+        // Finds the piece that holds the line break that ends the previous line.
+        int low = 0;
+        int high = mPieces.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mPieceBreaks[middle + 1] >= line) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        Piece piece = mPieces.get(low);
+        int nth = line - mPieceBreaks[low];
+        int offset;
+        if (piece.source == mOriginal) {
+            offset = mOriginalBreaks[lowerBound(piece.start) + nth - 1];
+        } else {
+            offset = piece.start - 1;
+            for (int seen = 0; seen < nth; ) {
+                if (piece.source.charAt(++offset) == '\n') {
+                    seen++;
+                }
+            }
+        }
+        return mPieceStarts[low] + offset - piece.start + 1;
+    }
+
+    /**
+     * Returns the line that holds the character at an offset.
+     */
+    int getLineForOffset(int offset) {
+        if (offset < 0 || offset > mLength) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + mLength);
+        }
+        if (offset == mLength) {
+            return mLineBreaks;
+        }
+        index();
+        int i = findPiece(offset);
+        Piece piece = mPieces.get(i);
+        return mPieceBreaks[i]
+                + countBreaks(piece.source, piece.start, piece.start + offset - mPieceStarts[i]);
+    }
+
+    // Makes a piece start at the offset, and returns its index, or the number of pieces if
+    // the offset is the end of the text.
+    private int split(int offset) {
+        index();
+        if (offset == mLength) {
+            return mPieces.size();
+        }
+        int i = findPiece(offset);
+        if (mPieceStarts[i] == offset) {
+            return i;
+        }
+        Piece piece = mPieces.get(i);
+        int head = offset - mPieceStarts[i];
+        int headBreaks = countBreaks(piece.source, piece.start, piece.start + head);
+        mPieces.set(i, new Piece(piece.source, piece.start, head, headBreaks));
+        mPieces.add(i + 1, new Piece(piece.source, piece.start + head, piece.length - head,
+                piece.lineBreaks - headBreaks));
+        mIndexed = false;
+        return i + 1;
+    }
+
+    // Returns the index of the piece that holds the character at an offset below the length.
+    private int findPiece(int offset) {
+        int low = 0;
+        int high = mPieces.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mPieceStarts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void index() {
+        if (mIndexed) {
+            return;
+        }
+        int count = mPieces.size();
+        if (mPieceStarts == null || mPieceStarts.length < count + 1) {
+            mPieceStarts = new int[count + 1 + count / 2];
+            mPieceBreaks = new int[mPieceStarts.length];
+        }
+        int offset = 0;
+        int breaks = 0;
+        for (int i = 0; i < count; i++) {
+            Piece piece = mPieces.get(i);
+            mPieceStarts[i] = offset;
+            mPieceBreaks[i] = breaks;
+            offset += piece.length;
+            breaks += piece.lineBreaks;
+        }
+        mPieceStarts[count] = offset;
+        mPieceBreaks[count] = breaks;
+        mIndexed = true;
+    }
+
+    // Counts the line breaks in a range of a piece's source.
+    private int countBreaks(CharSequence source, int start, int end) {
+        if (source == mOriginal) {
+            return lowerBound(end) - lowerBound(start);
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Returns the number of line breaks of the original before an offset.
+    private int lowerBound(int offset) {
+        int low = 0;
+        int high = mOriginalBreakCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mOriginalBreaks[middle] < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int[] findBreaks(CharSequence text) {
+        int[] breaks = new int[16];
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == breaks.length) {
+                    breaks = Arrays.copyOf(breaks, count * 2);
+                }
+                breaks[count++] = i;
+            }
+        }
+        return Arrays.copyOf(breaks, count);
+    }
+
+    private static void copy(CharSequence source, int start, int end, char[] dest,
+            int destStart) {
+        if (source instanceof String) {
+            ((String) source).getChars(start, end, dest, destStart);
+        } else if (source instanceof CharBuffer) {
+            // A duplicate has a position of its own, so snapshots can read on any thread.
+            CharBuffer buffer = ((CharBuffer) source).duplicate();
+            buffer.position(start);
+            buffer.get(dest, destStart, end - start);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destStart++] = source.charAt(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs queries on a background thread, one at a time, and delivers their cursors on the
+ * thread of a handler. Only the latest query counts: starting one cancels the one that's
+ * running, and skips the ones that haven't started yet.
+ * <p>
+ * On Android 4.1 and later, a running query is canceled through a {@link CancellationSignal},
+ * which interrupts SQLite in the provider, so a search that's been typed past stops working
+ * right away. Earlier versions let it finish. Either way, the cursor of a query that was
+ * canceled is closed without being delivered. A delivered cursor has already been filled, by
+ * {@link Cursor#getCount()} on the background thread, so that the UI thread doesn't wait for
+ * its first window.
+ * <p>
+ * This is what {@link android.content.AsyncQueryHandler} does, with cancellation added.
+ */
+final class QueryRunner {
+
+    private static final String TAG = "QueryRunner";
+
+    /**
+     * Receives the result of a query, on the handler's thread.
+     */
+    interface Callback {
+        /**
+         * @param cookie The cookie passed to {@link QueryRunner#startQuery}.
+         * @param cursor The result, which the callback owns, or null if the query failed.
+         */
+        void onQueryComplete(Object cookie, Cursor cursor);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final ExecutorService mExecutor;
+
+    // Incremented by every query that's started, and by cancel(). A query whose number isn't
+    // the current one anymore has been superseded. Guarded by this.
+    private int mSequence;
+
+    // The cancellation signal of the latest query, on Android 4.1 and later. Guarded by this.
+    private CancellationSignal mSignal;
+
+    /**
+     * @param resolver The resolver to query.
+     * @param handler The handler of the thread that the results are delivered on.
+     * @param callback Receives the results.
+     */
+    QueryRunner(ContentResolver resolver, Handler handler, Callback callback) {
+        mResolver = resolver;
+        mHandler = handler;
+        mCallback = callback;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG);
+            }
+        });
+    }
+
+    /**
+     * Starts a query, and cancels the previous one if it hasn't been delivered yet.
+     *
+     * @param cookie An object that's passed back with the result.
+     */
+    void startQuery(final Object cookie, final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs, final String sortOrder) {
+        final int sequence;
+        final CancellationSignal signal;
+        synchronized (this) {
+            cancelLocked();
+            sequence = mSequence;
+            signal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? new CancellationSignal() : null;
+            mSignal = signal;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runQuery(sequence, signal, cookie, uri, projection, selection, selectionArgs,
+                        sortOrder);
+            }
+        });
+    }
+
+    /**
+     * Cancels the latest query, if it hasn't been delivered yet.
+     */
+    void cancel() {
+        synchronized (this) {
+            cancelLocked();
+        }
+    }
+
+    /**
+     * Cancels the latest query, and stops the background thread. The runner can't be used
+     * afterwards.
+     */
+    void close() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    // The signal is only set on Android 4.1 and later.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void cancelLocked() {
+        mSequence++;
+        if (mSignal != null) {
+            mSignal.cancel();
+            mSignal = null;
+        }
+    }
+
+    private synchronized boolean isCurrent(int sequence) {
+        return sequence == mSequence;
+    }
+
+    // Runs a query on the background thread, and posts its result. There's only a signal on
+    // Android 4.1 and later.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void runQuery(final int sequence, CancellationSignal signal, final Object cookie,
+            Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        // Skips the queries that were superseded while they waited.
+        if (!isCurrent(sequence)) {
+            return;
+        }
+
+        Cursor cursor = null;
+        try {
+            if (signal != null) {
+                cursor = mResolver.query(uri, projection, selection, selectionArgs, sortOrder,
+                        signal);
+            } else {
+                cursor = mResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+            }
+            if (cursor != null) {
+                cursor.getCount();
+            }
+        } catch (RuntimeException e) {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+            if (signal != null && signal.isCanceled()) {
+                return;
+            }
+            Log.w(TAG, "Query of " + uri + " failed", e);
+        }
+
+        final Cursor result = cursor;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrent(sequence)) {
+                    mCallback.onQueryComplete(cookie, result);
+                } else if (result != null) {
+                    result.close();
+                }
+            }
+        });
+    }
+}
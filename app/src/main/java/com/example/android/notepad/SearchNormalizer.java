@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Turns the text of the notes, and the queries, into the form that the full-text index holds.
+ * <p>
+ * The index uses SQLite's "simple" tokenizer, which splits words on ASCII punctuation and
+ * spaces, folds ASCII case, and nothing else: a run of Chinese text would be a single token, a
+ * full-width letter wouldn't match its ASCII form, and punctuation such as "，" would stick to
+ * the words around it. So the provider doesn't index the text as it is, but its shadow:
+ * <ul>
+ * <li>NFKC-normalized, so that full-width letters, digits and punctuation, and compatibility
+ * characters, become their plain forms.</li>
+ * <li>With the letters outside ASCII lower-cased, and the other characters outside ASCII, such
+ * as punctuation and symbols, turned into spaces.</li>
+ * <li>With every run of CJK characters turned into the overlapping bigrams of the run, followed
+ * by its last character on its own, each between {@link #RUN_SEPARATOR}s: "今天天气" becomes
+ * "今天 天天 天气 气". Any two characters of a run are then a token, and a longer word is the
+ * phrase of its bigrams, without a dictionary.</li>
+ * </ul>
+ * Text that's all ASCII is its own shadow, which is what lets the FTS triggers index it without
+ * the provider's help.
+ * <p>
+ * The queries go through the same steps, see {@link #toMatchQuery}, and the snippets of the
+ * index are turned back into the text they were cut from by {@link #restoreSnippet} and
+ * {@link #restoreText}.
+ */
+final class SearchNormalizer {
+
+    /**
+     * Separates the tokens of a CJK run in the shadow text. It's a separator for the tokenizer,
+     * like a space, but it can't be in the shadow text otherwise, so the runs can be told apart
+     * from the rest of a snippet.
+     */
+    static final char RUN_SEPARATOR = '\u001f';
+
+    // The ellipsis that the provider asks snippet() to put where it cuts the text.
+    private static final char ELLIPSIS = '…';
+
+    // This class can't be instantiated
+    private SearchNormalizer() {
+    }
+
+    /**
+     * Returns true if the text is null or all ASCII, in which case it's its own shadow.
+     */
+    static boolean isAscii(String text) {
+        if (text == null) {
+            return true;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for the characters that are indexed as bigrams: the CJK ideographs, kana and
+     * hangul.
+     */
+    static boolean isCjk(int codePoint) {
+        return (codePoint >= 0x3040 && codePoint <= 0x30ff)     // Hiragana and Katakana
+                || (codePoint >= 0x3400 && codePoint <= 0x4dbf)  // CJK Extension A
+                || (codePoint >= 0x4e00 && codePoint <= 0x9fff)  // CJK Unified Ideographs
+                || (codePoint >= 0xac00 && codePoint <= 0xd7af)  // Hangul Syllables
+                || (codePoint >= 0xf900 && codePoint <= 0xfaff)  // CJK Compatibility Ideographs
+                || (codePoint >= 0x20000 && codePoint <= 0x2fa1f); // CJK Extensions B and on
+    }
+
+    /**
+     * Returns the shadow of a title or a note, which is what the full-text index holds for it.
+     *
+     * @param text The text, or null.
+     * @return The shadow, or null if the text is null.
+     */
+    static String normalize(String text) {
+        if (isAscii(text)) {
+            return text;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        StringBuilder shadow = new StringBuilder(normalized.length() * 2);
+        int runStart = -1;
+        for (int i = 0; i < normalized.length(); ) {
+            int c = normalized.codePointAt(i);
+            if (isCjk(c)) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else {
+                if (runStart >= 0) {
+                    appendRun(shadow, normalized, runStart, i, true);
+                    runStart = -1;
+                }
+                appendFolded(shadow, c);
+            }
+            i += Character.charCount(c);
+        }
+        if (runStart >= 0) {
+            appendRun(shadow, normalized, runStart, normalized.length(), true);
+        }
+        return shadow.toString();
+    }
+
+    /**
+     * Turns the text typed by the user into an FTS MATCH expression. Every word becomes a quoted
+     * phrase of the tokens of its shadow, with a prefix on the last one, so that a partially
+     * typed word still matches, a CJK word matches wherever it is in a run, and FTS operators in
+     * the input are treated as plain text.
+     *
+     * @param query The raw search text.
+     * @return The MATCH expression, or null if the query contains no words.
+     */
+    static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC);
+        for (String term : normalized.replace('"', ' ').trim().split("\\s+")) {
+            String tokens = toPhrase(term);
+            if (tokens.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(tokens).append("*\"");
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    // Returns the tokens of a word of a query, separated by spaces, as they're found in the
+    // shadow of a note that contains the word.
+    private static String toPhrase(String term) {
+        StringBuilder phrase = new StringBuilder(term.length() * 3);
+        int runStart = -1;
+        for (int i = 0; i < term.length(); ) {
+            int c = term.codePointAt(i);
+            if (isCjk(c)) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else {
+                if (runStart >= 0) {
+                    // The run ends here in the note too, so it ends with its last character.
+                    appendRun(phrase, term, runStart, i, true);
+                    runStart = -1;
+                }
+                appendFolded(phrase, c);
+            }
+            i += Character.charCount(c);
+        }
+        if (runStart >= 0) {
+            // The run may go on in the note, so only its bigrams are certain, unless it's a
+            // single character, which is a prefix of the bigrams that start with it.
+            appendRun(phrase, term, runStart, term.length(), false);
+        }
+        return phrase.toString().replace(RUN_SEPARATOR, ' ').trim().replaceAll(" +", " ");
+    }
+
+    // Appends a character outside a CJK run: ASCII as it is, letters and digits lower-cased,
+    // anything else as a space.
+    private static void appendFolded(StringBuilder shadow, int c) {
+        if (c < 0x80) {
+            shadow.append((char) c);
+        } else if (Character.isLetterOrDigit(c)) {
+            shadow.appendCodePoint(Character.toLowerCase(c));
+        } else {
+            shadow.append(' ');
+        }
+    }
+
+    // Appends the bigrams of text[start, end), a run of CJK characters, and, if last is true or
+    // the run is a single character, its last character.
+    private static void appendRun(StringBuilder shadow, String text, int start, int end,
+            boolean last) {
+        shadow.append(RUN_SEPARATOR);
+        int i = start;
+        while (true) {
+            int next = i + Character.charCount(text.codePointAt(i));
+            if (next >= end) {
+                if (last || i == start) {
+                    shadow.append(text, i, next).append(RUN_SEPARATOR);
+                }
+                break;
+            }
+            int after = next + Character.charCount(text.codePointAt(next));
+            shadow.append(text, i, after).append(RUN_SEPARATOR);
+            i = next;
+        }
+    }
+
+    /**
+     * Turns a snippet of the shadow text back into readable text: each CJK run of bigrams
+     * becomes the run of characters again, with a character marked as a match if a token that
+     * covers it was.
+     *
+     * @param snippet A snippet of the shadow text, with the matched tokens between
+     * {@link SearchRanker#MATCH_START} and {@link SearchRanker#MATCH_END}.
+     * @return The snippet, with the matched characters between the same markers.
+     */
+    static String restoreSnippet(String snippet) {
+        if (snippet.indexOf(RUN_SEPARATOR) < 0) {
+            return snippet;
+        }
+
+        // The ellipses that snippet() adds where it cuts are kept out of the runs.
+        int start = 0;
+        int end = snippet.length();
+        if (end > 0 && snippet.charAt(0) == ELLIPSIS) {
+            start++;
+        }
+        if (end > start && snippet.charAt(end - 1) == ELLIPSIS) {
+            end--;
+        }
+
+        StringBuilder text = new StringBuilder(snippet.length());
+        text.append(snippet, 0, start);
+        String[] parts = snippet.substring(start, end).split(String.valueOf(RUN_SEPARATOR), -1);
+        int runStart = -1;
+        for (int i = 0; i <= parts.length; i++) {
+            boolean token = i < parts.length && isRunToken(parts[i]);
+            if (token && runStart < 0) {
+                runStart = i;
+            } else if (!token) {
+                if (runStart >= 0) {
+                    appendRestoredRun(text, parts, runStart, i);
+                    runStart = -1;
+                }
+                if (i < parts.length) {
+                    text.append(parts[i]);
+                }
+            }
+        }
+        text.append(snippet, end, snippet.length());
+        return text.toString();
+    }
+
+    /**
+     * Finds the part of a title or a note that a snippet restored by {@link #restoreSnippet}
+     * was cut from, so that it shows the text as it's written rather than its shadow, with its
+     * punctuation, case and full-width characters.
+     *
+     * @param snippet A restored snippet, with the matched characters between
+     * {@link SearchRanker#MATCH_START} and {@link SearchRanker#MATCH_END}.
+     * @param title The title of the note the snippet is from, or null.
+     * @param note The text of the note the snippet is from, or null.
+     * @return The part of the title or the note, with the same matches marked, or the snippet
+     * itself if it's from text that's all ASCII, which is its own shadow, or it can't be found.
+     */
+    static String restoreText(String snippet, String title, String note) {
+        int start = 0;
+        int end = snippet.length();
+        if (end > 0 && snippet.charAt(0) == ELLIPSIS) {
+            start++;
+        }
+        if (end > start && snippet.charAt(end - 1) == ELLIPSIS) {
+            end--;
+        }
+        StringBuilder offsets = new StringBuilder();
+        String plain = SearchRanker.stripMatches(snippet.substring(start, end), offsets);
+        if (plain.length() == 0) {
+            return snippet;
+        }
+        int[] matches = SearchRanker.parseOffsets(offsets.toString());
+        for (String text : new String[] { title, note }) {
+            if (isAscii(text)) {
+                continue;
+            }
+            FoldedText folded = new FoldedText(text);
+            int at = folded.text.indexOf(plain);
+            if (at < 0) {
+                continue;
+            }
+            StringBuilder restored = new StringBuilder(snippet.length() + 8);
+            restored.append(snippet, 0, start);
+            int from = folded.starts[at];
+            for (int i = 0; i < matches.length; i += 2) {
+                int matchStart = folded.starts[at + matches[i]];
+                int matchEnd = folded.ends[at + matches[i + 1] - 1];
+                if (matchStart < from || matchEnd <= matchStart) {
+                    continue;
+                }
+                restored.append(text, from, matchStart).append(SearchRanker.MATCH_START)
+                        .append(text, matchStart, matchEnd).append(SearchRanker.MATCH_END);
+                from = matchEnd;
+            }
+            restored.append(text, from, folded.ends[at + plain.length() - 1]);
+            return restored.append(snippet, end, snippet.length()).toString();
+        }
+        return snippet;
+    }
+
+    /**
+     * A text folded the way its shadow is, but with the CJK runs left as they are, which is
+     * what {@link #restoreSnippet} turns a snippet back into, and where each folded character
+     * comes from in the text.
+     */
+    private static final class FoldedText {
+        final String text;
+
+        // The part of the original text that each character of the folded one comes from.
+        final int[] starts;
+        final int[] ends;
+
+        FoldedText(String original) {
+            StringBuilder folded = new StringBuilder(original.length());
+            int[] starts = new int[original.length() + 16];
+            int[] ends = new int[starts.length];
+            for (int i = 0; i < original.length(); ) {
+                // NFKC joins a character with the marks that follow it, so they're folded
+                // together.
+                int end = i + Character.charCount(original.codePointAt(i));
+                while (end < original.length() && isMark(original.codePointAt(end))) {
+                    end += Character.charCount(original.codePointAt(end));
+                }
+                int length = folded.length();
+                if (end == i + 1 && original.charAt(i) < 0x80) {
+                    folded.append(original.charAt(i));
+                } else {
+                    String normalized = Normalizer.normalize(original.substring(i, end),
+                            Normalizer.Form.NFKC);
+                    for (int j = 0; j < normalized.length(); ) {
+                        int c = normalized.codePointAt(j);
+                        if (isCjk(c)) {
+                            folded.appendCodePoint(c);
+                        } else {
+                            appendFolded(folded, c);
+                        }
+                        j += Character.charCount(c);
+                    }
+                }
+                if (folded.length() > starts.length) {
+                    starts = Arrays.copyOf(starts, folded.length() * 2);
+                    ends = Arrays.copyOf(ends, starts.length);
+                }
+                for (int j = length; j < folded.length(); j++) {
+                    starts[j] = i;
+                    ends[j] = end;
+                }
+                i = end;
+            }
+            this.text = folded.toString();
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        private static boolean isMark(int c) {
+            int type = Character.getType(c);
+            return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK;
+        }
+    }
+
+    // True if a part of a snippet is a token of a CJK run, marked or not.
+    private static boolean isRunToken(String part) {
+        String token = unmark(part);
+        if (token.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); ) {
+            int c = token.codePointAt(i);
+            if (!isCjk(c)) {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+        return true;
+    }
+
+    private static String unmark(String part) {
+        if (part.indexOf(SearchRanker.MATCH_START) < 0 && part.indexOf(SearchRanker.MATCH_END) < 0) {
+            return part;
+        }
+        return part.replace(String.valueOf(SearchRanker.MATCH_START), "")
+                .replace(String.valueOf(SearchRanker.MATCH_END), "");
+    }
+
+    // Appends the characters of the run of tokens parts[start, end): the first character of
+    // every token, and the rest of the last one.
+    private static void appendRestoredRun(StringBuilder text, String[] parts, int start,
+            int end) {
+        boolean open = false;
+        boolean previousMarked = false;
+        boolean previousBigram = false;
+        for (int i = start; i < end; i++) {
+            boolean marked = parts[i].indexOf(SearchRanker.MATCH_START) >= 0;
+            String token = unmark(parts[i]);
+            int firstLength = Character.charCount(token.codePointAt(0));
+            boolean bigram = firstLength < token.length();
+
+            // The first character is covered by this token, and by the previous one if that
+            // was a bigram.
+            open = mark(text, open, marked || (previousMarked && previousBigram));
+            text.append(token, 0, firstLength);
+            if (i == end - 1 && bigram) {
+                open = mark(text, open, marked);
+                text.append(token, firstLength, token.length());
+            }
+            previousMarked = marked;
+            previousBigram = bigram;
+        }
+        mark(text, open, false);
+    }
+
+    // Opens or closes a match before the next character, and returns whether one is open.
+    private static boolean mark(StringBuilder text, boolean open, boolean marked) {
+        if (marked && !open) {
+            text.append(SearchRanker.MATCH_START);
+        } else if (!marked && open) {
+            text.append(SearchRanker.MATCH_END);
+        }
+        return marked;
+    }
+}
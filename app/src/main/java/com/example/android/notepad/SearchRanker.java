@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Scores full-text matches for the ranked search, see
+ * {@link NotePad.Notes#RANK_QUERY_PARAMETER}.
+ * <p>
+ * FTS4 has no ranking function of its own, but its matchinfo() function gives, for each
+ * matching row, the statistics that BM25 needs: the number of rows, the average and the row's
+ * length of each column in tokens, and, for each phrase of the query in each column, the number
+ * of hits in the row and the number of rows with a hit. The score of a row is the sum over the
+ * phrases and the columns of the column's weight times the BM25 term weight, so a hit in the
+ * title counts {@link #TITLE_WEIGHT} times as much as one in the note.
+ * <p>
+ * The rows are scored as they're read, and only the best ones are kept, in a {@link TopK} heap,
+ * so a search never holds more rows than it returns.
+ */
+final class SearchRanker {
+
+    /**
+     * The format string of the matchinfo() calls that {@link #score} reads.
+     */
+    static final String MATCHINFO_FORMAT = "pcnalx";
+
+    /**
+     * The weight of a hit in the title, against 1 for a hit in the note.
+     */
+    static final double TITLE_WEIGHT = 3.0;
+
+    // The weights of the columns of the FTS table, in order: the title, then the note.
+    private static final double[] COLUMN_WEIGHTS = new double[] { TITLE_WEIGHT, 1.0 };
+
+    // The BM25 parameters: how quickly repeated hits saturate, and how much the length of a
+    // column scales its hits.
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /**
+     * The score of a note whose title starts with the pinyin of the query, which is added to its
+     * score for the text. It's about what a hit in the title of a word that one note in ten has
+     * scores.
+     */
+    static final double PINYIN_SCORE = 2 * TITLE_WEIGHT;
+
+    /**
+     * The characters that the provider asks snippet() to put around the matches. They're in the
+     * private use area, where a note is unlikely to have any.
+     */
+    static final char MATCH_START = '\uE000';
+    static final char MATCH_END = '\uE001';
+
+    // This class can't be instantiated
+    private SearchRanker() {
+    }
+
+    /**
+     * Returns the BM25 score of a row from its matchinfo() in {@link #MATCHINFO_FORMAT}.
+     */
+    static double score(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        int rows = info.get(2);
+        int averages = 3;
+        int lengths = averages + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns && column < COLUMN_WEIGHTS.length; column++) {
+                int x = hits + 3 * (column + phrase * columns);
+                int frequency = info.get(x);
+                if (frequency == 0) {
+                    continue;
+                }
+                int rowsWithHits = info.get(x + 2);
+                double idf = Math.log(1 + (rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+                double average = Math.max(info.get(averages + column), 1);
+                double norm = K1 * (1 - B + B * info.get(lengths + column) / average);
+                score += COLUMN_WEIGHTS[column] * idf * frequency * (K1 + 1) / (frequency + norm);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Takes the markers out of a snippet.
+     *
+     * @param snippet A snippet with the matches between {@link #MATCH_START} and
+     * {@link #MATCH_END}.
+     * @param offsets Receives the start and end offsets of the matches in the result, as
+     * described for {@link NotePad.Notes#COLUMN_NAME_SNIPPET_OFFSETS}.
+     * @return The snippet without the markers.
+     */
+    static String stripMatches(String snippet, StringBuilder offsets) {
+        StringBuilder text = new StringBuilder(snippet.length());
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == MATCH_START || c == MATCH_END) {
+                if (offsets.length() > 0) {
+                    offsets.append(' ');
+                }
+                offsets.append(text.length());
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Parses {@link NotePad.Notes#COLUMN_NAME_SNIPPET_OFFSETS}.
+     *
+     * @return The start and end offsets of the matches, in pairs.
+     */
+    static int[] parseOffsets(String offsets) {
+        if (offsets == null || offsets.length() == 0) {
+            return new int[0];
+        }
+        String[] values = offsets.split(" ");
+        int[] result = new int[values.length & ~1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the k best of the rows it's given, in a binary min-heap, so that the worst of them
+     * is replaced in O(log k) when a better one comes along.
+     */
+    static final class TopK {
+        private final long[] mIds;
+        private final double[] mScores;
+        private int mSize;
+
+        TopK(int k) {
+            mIds = new long[k];
+            mScores = new double[k];
+        }
+
+        /**
+         * Offers a row. Between equal scores, the higher ID, which is the newer note, wins.
+         */
+        void add(long id, double score) {
+            if (mSize < mIds.length) {
+                int i = mSize++;
+                mIds[i] = id;
+                mScores[i] = score;
+                siftUp(i);
+            } else if (mSize > 0 && isBetter(id, score, 0)) {
+                mIds[0] = id;
+                mScores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Empties the heap into arrays of IDs and scores, from the best row.
+         */
+        long[] drain(double[] scores) {
+            long[] ids = new long[mSize];
+            for (int i = mSize - 1; i >= 0; i--) {
+                ids[i] = mIds[0];
+                scores[i] = mScores[0];
+                mSize--;
+                mIds[0] = mIds[mSize];
+                mScores[0] = mScores[mSize];
+                siftDown(0);
+            }
+            return ids;
+        }
+
+        // True if the row is better than the one at the given position of the heap.
+        private boolean isBetter(long id, double score, int i) {
+            return score > mScores[i] || (score == mScores[i] && id > mIds[i]);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isBetter(mIds[parent], mScores[parent], i)) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize && isBetter(mIds[child], mScores[child], child + 1)) {
+                    child++;
+                }
+                if (!isBetter(mIds[i], mScores[i], child)) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = mIds[i];
+            mIds[i] = mIds[j];
+            mIds[j] = id;
+            double score = mScores[i];
+            mScores[i] = mScores[j];
+            mScores[j] = score;
+        }
+    }
+}
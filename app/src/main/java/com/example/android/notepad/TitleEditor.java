@@ -58,6 +58,13 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // True between onResume() and onPause().
+    private boolean mResumed;
+
+    // True once the title has been shown. Until then the EditText is disabled and empty, and
+    // nothing is saved from it.
+    private boolean mLoaded;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -103,10 +110,44 @@ public class TitleEditor extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+
+        /*
+         * A save of the note that's still waiting, from this editor or the note editor, would
+         * be read back stale, so the title is shown once the save is committed. Until then,
+         * the EditText keeps what it had, or stays disabled if the title hasn't been shown yet.
+         */
+        NoteSaveQueue queue = NoteSaveQueue.getInstance(this);
+        if (mCursor != null && queue.isPending(mUri)) {
+            if (!mLoaded) {
+                mText.setEnabled(false);
+            }
+            queue.whenCommitted(new Runnable() {
+                @Override
+                public void run() {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mResumed) {
+                                showTitle();
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        showTitle();
+    }
 
+    // Reads the title back, and shows it. Called when the editor is resumed.
+    private void showTitle() {
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
         if (mCursor != null) {
+            mLoaded = true;
+            mText.setEnabled(true);
+            mCursor.requery();
 
             // The Cursor was just retrieved, so its index is set to one record *before* the first
             // record retrieved. This moves it to the first record.
@@ -131,11 +172,13 @@ public class TitleEditor extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
 
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
+        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0. The title
+        // isn't saved until it has been shown, since the EditText is empty until then.
 
-        if (mCursor != null) {
+        if (mCursor != null && mLoaded) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
@@ -144,20 +187,12 @@ public class TitleEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
 
             /*
-             * Updates the provider with the note's new title.
+             * Queues the update of the provider with the note's new title.
              *
-             * Note: This is being done on the UI thread. It will block the thread until the
-             * update completes. In a sample app, going against a simple provider based on a
-             * local database, the block will be momentary, but in a real app you should use
-             * android.content.AsyncQueryHandler or android.os.AsyncTask.
+             * Note: The update is committed on a background thread, so that the UI thread
+             * doesn't wait for the database. The queue keeps the process alive until it is.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
-                values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
-            );
-
+            NoteSaveQueue.getInstance(this).save(mUri, values);
         }
     }
 
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+/**
+ * An in-memory trigram index of the titles and previews of the notes, which finds the notes
+ * that contain a piece of text without going to the provider.
+ * <p>
+ * The text is folded to lower case, with runs of white space collapsed into a single space, as
+ * the previews are. Every run of three characters of a note's title or preview is a trigram,
+ * and the notes that contain a trigram are its posting list. A search looks up the trigrams of
+ * the query and intersects their posting lists, rarest first. A note that contains every
+ * trigram of the query is a candidate: for a query of three characters it contains the query,
+ * but for a longer one the trigrams may be in another order, so the candidates are checked
+ * against the folded text, which the index keeps as well. The provider can't do that check,
+ * since SQLite's LIKE only folds the case of ASCII letters and doesn't collapse white space.
+ * Queries shorter than three characters can't be answered.
+ * <p>
+ * The notes are numbered in list order, which the posting lists are sorted in, so the
+ * candidates come out in list order too, and the search stops once it has found as many as it
+ * needs. Everything is held in a few primitive arrays: the notes' IDs and folded text, an
+ * open-addressing hash table of trigrams, one byte array with the posting lists, each encoded
+ * as varint gaps between note numbers, and skip entries into the long lists, which a rare
+ * trigram jumps through. An index never changes once it's built, so it can be searched on any
+ * thread.
+ */
+final class TrigramIndex {
+
+    // The number of notes of a posting list between two of its skip entries.
+    private static final int SKIP_INTERVAL = 64;
+
+    // The IDs of the notes, in list order.
+    private final long[] mIds;
+
+    // The folded title and preview of each note, one after the other, separated by a line
+    // break, which folded text never contains. The text of a note runs from mTextStarts[note]
+    // to mTextStarts[note + 1].
+    private final char[] mText;
+    private final int[] mTextStarts;
+
+    // The trigrams, in an open-addressing table of a power of two slots, 0 for an empty slot,
+    // and the offset and the length of the posting list of each one.
+    private final long[] mTrigrams;
+    private final int[] mPostingStarts;
+    private final int[] mPostingCounts;
+
+    // The posting lists, one after the other.
+    private final byte[] mPostings;
+
+    // The skip entries of the posting lists: the note at the end of every SKIP_INTERVAL notes
+    // of a list, and the offset of the note that follows it. The entries of the list in a slot
+    // run from mSkipStarts[slot] to mSkipStarts[slot + 1].
+    private final int[] mSkipStarts;
+    private final int[] mSkipNotes;
+    private final int[] mSkipPositions;
+
+    private TrigramIndex(long[] ids, char[] text, int[] textStarts, long[] trigrams,
+            int[] postingStarts, int[] postingCounts, byte[] postings) {
+        mIds = ids;
+        mText = text;
+        mTextStarts = textStarts;
+        mTrigrams = trigrams;
+        mPostingStarts = postingStarts;
+        mPostingCounts = postingCounts;
+        mPostings = postings;
+
+        mSkipStarts = new int[trigrams.length + 1];
+        int skipCount = 0;
+        for (int slot = 0; slot < trigrams.length; slot++) {
+            mSkipStarts[slot] = skipCount;
+            skipCount += Math.max(postingCounts[slot] - 1, 0) / SKIP_INTERVAL;
+        }
+        mSkipStarts[trigrams.length] = skipCount;
+        mSkipNotes = new int[skipCount];
+        mSkipPositions = new int[skipCount];
+        for (int slot = 0; slot < trigrams.length; slot++) {
+            if (mSkipStarts[slot + 1] == mSkipStarts[slot]) {
+                continue;
+            }
+            Posting posting = new Posting(slot);
+            for (int entry = mSkipStarts[slot]; entry < mSkipStarts[slot + 1]; entry++) {
+                for (int i = 0; i < SKIP_INTERVAL; i++) {
+                    next(posting);
+                }
+                mSkipNotes[entry] = posting.note;
+                mSkipPositions[entry] = posting.position;
+            }
+        }
+    }
+
+    /**
+     * Builds an index of the rows of a cursor, in the order of the cursor.
+     *
+     * @param cursor Rows of a note ID, a title and a preview, in the order the notes are listed.
+     */
+    static TrigramIndex build(Cursor cursor, int idColumn, int titleColumn, int previewColumn) {
+        Builder builder = new Builder(cursor.getCount());
+        while (cursor.moveToNext()) {
+            builder.add(cursor.getLong(idColumn), cursor.getString(titleColumn),
+                    cursor.getString(previewColumn));
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Returns the number of notes in the index.
+     */
+    int getNoteCount() {
+        return mIds.length;
+    }
+
+    /**
+     * Returns the number of bytes taken by the arrays of the index.
+     */
+    long getMemorySize() {
+        return mIds.length * 8L + mText.length * 2L + mTextStarts.length * 4L
+                + mTrigrams.length * 8L + mPostingStarts.length * 4L
+                + mPostingCounts.length * 4L + mPostings.length + mSkipStarts.length * 4L
+                + mSkipNotes.length * 4L + mSkipPositions.length * 4L;
+    }
+
+    /**
+     * Finds the notes whose title or preview contains the query, once both are folded.
+     *
+     * @param query The text to look for.
+     * @param limit The largest number of notes to return.
+     * @return The IDs of the notes, in list order, or null if the query is shorter than three
+     * characters once folded.
+     */
+    long[] search(String query, int limit) {
+        String folded = fold(query);
+        if (folded.length() < 3) {
+            return null;
+        }
+
+        // Looks up the trigrams of the query, and sorts them from the rarest.
+        int count = folded.length() - 2;
+        long[] lists = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = find(trigram(folded, i));
+            if (slot < 0) {
+                return new long[0];
+            }
+            lists[i] = (long) mPostingCounts[slot] << 32 | slot;
+        }
+        Arrays.sort(lists);
+
+        // Walks all of the lists at once, in note order, and stops at the limit, so a query
+        // made of common trigrams doesn't decode the whole of their lists, and a rare trigram
+        // skips through the common ones.
+        Posting[] postings = new Posting[count];
+        int listCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || (int) lists[i] != (int) lists[i - 1]) {
+                postings[listCount++] = new Posting((int) lists[i]);
+            }
+        }
+
+        Posting rarest = postings[0];
+        long[] ids = new long[Math.min(limit, rarest.remaining)];
+        int found = 0;
+        while (found < ids.length && next(rarest)) {
+            int target = rarest.note;
+            int i = 1;
+            while (i < listCount) {
+                if (!advance(postings[i], target)) {
+                    return Arrays.copyOf(ids, found);
+                } else if (postings[i].note > target) {
+                    // Catches the rarest list up, and checks the others again.
+                    if (!advance(rarest, postings[i].note)) {
+                        return Arrays.copyOf(ids, found);
+                    }
+                    target = rarest.note;
+                    i = 1;
+                } else {
+                    i++;
+                }
+            }
+            if (count == 1 || contains(target, folded)) {
+                ids[found++] = mIds[target];
+            }
+        }
+        return found == ids.length ? ids : Arrays.copyOf(ids, found);
+    }
+
+    // Returns true if the folded text of a note contains the folded query.
+    private boolean contains(int note, String query) {
+        char first = query.charAt(0);
+        int last = mTextStarts[note + 1] - query.length();
+        for (int start = mTextStarts[note]; start <= last; start++) {
+            if (mText[start] != first) {
+                continue;
+            }
+            int i = 1;
+            while (i < query.length() && mText[start + i] == query.charAt(i)) {
+                i++;
+            }
+            if (i == query.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A position in a posting list.
+     */
+    private final class Posting {
+        final int slot;
+
+        // The offset of the next note in the postings, the number of notes after it, and the
+        // current note, -1 before the first one.
+        int position;
+        int remaining;
+        int note = -1;
+
+        // The next skip entry of the list.
+        int skip;
+
+        Posting(int slot) {
+            this.slot = slot;
+            position = mPostingStarts[slot];
+            remaining = mPostingCounts[slot];
+            skip = mSkipStarts[slot];
+        }
+    }
+
+    // Moves a list to its next note, and returns false at its end.
+    private boolean next(Posting posting) {
+        if (posting.remaining == 0) {
+            return false;
+        }
+        int position = posting.position;
+        int gap = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = mPostings[position++];
+            gap |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        posting.position = position;
+        posting.remaining--;
+        posting.note += gap;
+        return true;
+    }
+
+    // Moves a list to its first note at or after the target, if it isn't there already, and
+    // returns false at its end.
+    private boolean advance(Posting posting, int target) {
+        // Jumps over whole intervals of the list that are before the target.
+        int skipEnd = mSkipStarts[posting.slot + 1];
+        int skip = posting.skip;
+        while (skip < skipEnd && mSkipNotes[skip] < target) {
+            skip++;
+        }
+        if (skip > posting.skip) {
+            int entry = skip - 1;
+            if (mSkipNotes[entry] > posting.note) {
+                posting.note = mSkipNotes[entry];
+                posting.position = mSkipPositions[entry];
+                posting.remaining = mPostingCounts[posting.slot]
+                        - (entry - mSkipStarts[posting.slot] + 1) * SKIP_INTERVAL;
+            }
+            posting.skip = skip;
+        }
+
+        while (posting.note < target) {
+            if (!next(posting)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the slot of a trigram, or -1 if no note contains it.
+    private int find(long trigram) {
+        int mask = mTrigrams.length - 1;
+        for (int slot = hash(trigram) & mask; ; slot = (slot + 1) & mask) {
+            if (mTrigrams[slot] == trigram) {
+                return slot;
+            } else if (mTrigrams[slot] == 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Folds text as the index does: lower case, with white space collapsed into single spaces
+     * and trimmed.
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder folded = new StringBuilder(text.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = folded.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    folded.append(' ');
+                    pendingSpace = false;
+                }
+                folded.append(Character.toLowerCase(c));
+            }
+        }
+        return folded.toString();
+    }
+
+    // The three characters at an offset, packed into a long that's never 0.
+    private static long trigram(String text, int offset) {
+        return 1L << 48 | (long) text.charAt(offset) << 32 | (long) text.charAt(offset + 1) << 16
+                | text.charAt(offset + 2);
+    }
+
+    private static int hash(long trigram) {
+        long h = trigram * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32);
+    }
+
+    /**
+     * Collects the trigrams of the notes, one note at a time, in list order.
+     */
+    private static final class Builder {
+        private long[] mIds;
+        private int[] mTextStarts;
+        private final StringBuilder mText = new StringBuilder();
+        private int mNoteCount;
+
+        // The trigrams seen so far, in a growing open-addressing table, with, for each one, its
+        // posting list so far, the number of notes in it, and the last of them.
+        private long[] mTrigrams = new long[1 << 12];
+        private byte[][] mLists = new byte[1 << 12][];
+        private int[] mListSizes = new int[1 << 12];
+        private int[] mListCounts = new int[1 << 12];
+        private int[] mLastNotes = new int[1 << 12];
+        private int mTrigramCount;
+
+        Builder(int noteCount) {
+            mIds = new long[Math.max(noteCount, 16)];
+            mTextStarts = new int[mIds.length + 1];
+        }
+
+        void add(long id, String title, String preview) {
+            if (mNoteCount == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mNoteCount * 2);
+                mTextStarts = Arrays.copyOf(mTextStarts, mIds.length + 1);
+            }
+            int note = mNoteCount++;
+            mIds[note] = id;
+            mTextStarts[note] = mText.length();
+            String foldedTitle = fold(title);
+            String foldedPreview = fold(preview);
+            mText.append(foldedTitle).append('\n').append(foldedPreview);
+            addText(note, foldedTitle);
+            addText(note, foldedPreview);
+        }
+
+        private void addText(int note, String text) {
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                int slot = insert(trigram(text, i));
+                if (mLastNotes[slot] == note) {
+                    continue;
+                }
+
+                // Appends the gap from the previous note of the list.
+                int gap = note - mLastNotes[slot];
+                mLastNotes[slot] = note;
+                mListCounts[slot]++;
+                byte[] list = mLists[slot];
+                int size = mListSizes[slot];
+                if (list == null) {
+                    list = mLists[slot] = new byte[4];
+                } else if (list.length - size < 5) {
+                    list = mLists[slot] = Arrays.copyOf(list, list.length * 2);
+                }
+                while ((gap & ~0x7f) != 0) {
+                    list[size++] = (byte) (gap & 0x7f | 0x80);
+                    gap >>>= 7;
+                }
+                list[size++] = (byte) gap;
+                mListSizes[slot] = size;
+            }
+        }
+
+        // Returns the slot of a trigram, adding it if it's new.
+        private int insert(long trigram) {
+            if (mTrigramCount * 2 >= mTrigrams.length) {
+                grow();
+            }
+            int mask = mTrigrams.length - 1;
+            int slot = hash(trigram) & mask;
+            while (mTrigrams[slot] != trigram) {
+                if (mTrigrams[slot] == 0) {
+                    mTrigrams[slot] = trigram;
+                    mLastNotes[slot] = -1;
+                    mTrigramCount++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] trigrams = mTrigrams;
+            byte[][] lists = mLists;
+            int[] sizes = mListSizes;
+            int[] counts = mListCounts;
+            int[] lastNotes = mLastNotes;
+            int capacity = trigrams.length * 2;
+            mTrigrams = new long[capacity];
+            mLists = new byte[capacity][];
+            mListSizes = new int[capacity];
+            mListCounts = new int[capacity];
+            mLastNotes = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < trigrams.length; i++) {
+                if (trigrams[i] == 0) {
+                    continue;
+                }
+                int slot = hash(trigrams[i]) & mask;
+                while (mTrigrams[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                mTrigrams[slot] = trigrams[i];
+                mLists[slot] = lists[i];
+                mListSizes[slot] = sizes[i];
+                mListCounts[slot] = counts[i];
+                mLastNotes[slot] = lastNotes[i];
+            }
+        }
+
+        // Packs the posting lists into a single array, and drops the rest.
+        TrigramIndex finish() {
+            int total = 0;
+            for (int i = 0; i < mTrigrams.length; i++) {
+                total += mListSizes[i];
+            }
+            byte[] postings = new byte[total];
+            int[] starts = new int[mTrigrams.length];
+            int offset = 0;
+            for (int i = 0; i < mTrigrams.length; i++) {
+                if (mTrigrams[i] != 0) {
+                    System.arraycopy(mLists[i], 0, postings, offset, mListSizes[i]);
+                    starts[i] = offset;
+                    offset += mListSizes[i];
+                }
+            }
+            mTextStarts[mNoteCount] = mText.length();
+            char[] text = new char[mText.length()];
+            mText.getChars(0, text.length, text, 0);
+            return new TrigramIndex(Arrays.copyOf(mIds, mNoteCount), text,
+                    Arrays.copyOf(mTextStarts, mNoteCount + 1), mTrigrams, starts, mListCounts,
+                    postings);
+        }
+    }
+}